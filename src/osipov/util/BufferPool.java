@@ -0,0 +1,210 @@
+package osipov.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Pool of reusable byte[], char[], heap and direct ByteBuffer buffers.
+ * Requested sizes are rounded up to a power of two size class between
+ * 512 bytes and 1MB, each size class keeps a fixed number of slots that are
+ * claimed and returned with compare-and-set operations, so borrowing and returning
+ * a buffer neither locks nor allocates. The total amount of memory held by the pool
+ * is capped, buffers returned past the cap or buffers outside of the size classes
+ * are simply dropped and left to the garbage collector.
+ *
+ * Usage:
+ * byte[] buf = BufferPool.getDefault().getBytes(8192);
+ * try {
+ *     ...
+ * } finally {
+ *     BufferPool.getDefault().release(buf);
+ * }
+ *
+ * A buffer must not be used after it was returned to the pool.
+ *
+ * @author @osipov
+ */
+public class BufferPool {
+	private static final int MIN_SHIFT = 9;
+	private static final int MAX_SHIFT = 20;
+	private static final int SLOTS = 32;
+
+	private static final BufferPool DEFAULT = new BufferPool(32L * 1024 * 1024);
+
+	/**
+	 * @return the pool shared by the osipov.util classes
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	private final long maxRetainedBytes;
+	private final AtomicLong retainedBytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	private final Slots bytes = new Slots();
+	private final Slots chars = new Slots();
+	private final Slots heap = new Slots();
+	private final Slots direct = new Slots();
+
+	/**
+	 * @param maxRetainedBytes upper bound on the number of bytes held by the pool's idle buffers
+	 */
+	public BufferPool(long maxRetainedBytes) {
+		this.maxRetainedBytes = maxRetainedBytes;
+	}
+
+	/**
+	 * Borrows a byte array with a length of at least the specified size
+	 * @param size minimum length of the array
+	 * @return byte array, possibly longer than requested
+	 */
+	public byte[] getBytes(int size) {
+		int c = sizeClass(size);
+		byte[] b = (byte[])bytes.acquire(c);
+		return b != null ? b : new byte[c < 0 ? size : 1 << c];
+	}
+
+	/**
+	 * Returns the byte array to the pool
+	 * @param b byte array previously borrowed with getBytes
+	 */
+	public void release(byte[] b) {
+		if (b != null)
+			bytes.release(b, exactClass(b.length), b.length);
+	}
+
+	/**
+	 * Borrows a char array with a length of at least the specified size
+	 * @param size minimum length of the array
+	 * @return char array, possibly longer than requested
+	 */
+	public char[] getChars(int size) {
+		int c = sizeClass(size);
+		char[] b = (char[])chars.acquire(c);
+		return b != null ? b : new char[c < 0 ? size : 1 << c];
+	}
+
+	/**
+	 * Returns the char array to the pool
+	 * @param b char array previously borrowed with getChars
+	 */
+	public void release(char[] b) {
+		if (b != null)
+			chars.release(b, exactClass(b.length), 2L * b.length);
+	}
+
+	/**
+	 * Borrows a cleared byte buffer with a capacity of at least the specified size
+	 * @param size minimum capacity of the buffer
+	 * @param isDirect controls whether a direct or a heap buffer is returned
+	 * @return cleared byte buffer, possibly with a larger capacity than requested
+	 */
+	public ByteBuffer getByteBuffer(int size, boolean isDirect) {
+		int c = sizeClass(size);
+		ByteBuffer b = (ByteBuffer)(isDirect ? direct : heap).acquire(c);
+		if (b == null)
+			return isDirect ? ByteBuffer.allocateDirect(c < 0 ? size : 1 << c) : ByteBuffer.allocate(c < 0 ? size : 1 << c);
+		b.clear();
+		return b;
+	}
+
+	/**
+	 * Returns the byte buffer to the pool. Slices, duplicates and read only
+	 * buffers are not pooled.
+	 * @param b byte buffer previously borrowed with getByteBuffer
+	 */
+	public void release(ByteBuffer b) {
+		if (b == null || b.isReadOnly() || (!b.isDirect() && b.arrayOffset() != 0)) return;
+		(b.isDirect() ? direct : heap).release(b, exactClass(b.capacity()), b.capacity());
+	}
+
+	/**
+	 * @return number of requests served with a pooled buffer
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return number of requests that had to allocate a new buffer
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return number of bytes held by the idle buffers in the pool
+	 */
+	public long getRetainedBytes() {
+		return retainedBytes.get();
+	}
+
+	public long getMaxRetainedBytes() {
+		return maxRetainedBytes;
+	}
+
+	public String toString() {
+		return "hits=" + getHits() + " misses=" + getMisses() + " retained=" + getRetainedBytes() + "/" + getMaxRetainedBytes();
+	}
+
+	/**
+	 * @return power of two exponent of the size class large enough for the size or -1 if the
+	 * size exceeds the largest size class
+	 */
+	private static int sizeClass(int size) {
+		if (size <= 1 << MIN_SHIFT) return MIN_SHIFT;
+		if (size > 1 << MAX_SHIFT) return -1;
+		return 32 - Integer.numberOfLeadingZeros(size - 1);
+	}
+
+	/**
+	 * @return power of two exponent of the size class matching the length exactly or -1
+	 * if the length is not one of the size classes
+	 */
+	private static int exactClass(int length) {
+		int c = sizeClass(length);
+		return c > -1 && length == 1 << c ? c : -1;
+	}
+
+	/**
+	 * Fixed slots for each of the size classes of one kind of buffer. The slot scan
+	 * starts at a position derived from the calling thread to spread concurrent
+	 * threads across the slots.
+	 */
+	private class Slots {
+		private final AtomicReferenceArray slots = new AtomicReferenceArray((MAX_SHIFT + 1) * SLOTS);
+
+		Object acquire(int c) {
+			if (c > -1) {
+				int start = (int)Thread.currentThread().getId();
+				for (int i = 0; i < SLOTS; i++) {
+					int slot = c * SLOTS + ((start + i) & (SLOTS - 1));
+					if (slots.get(slot) == null) continue;
+					Object o = slots.getAndSet(slot, null);
+					if (o != null) {
+						retainedBytes.addAndGet(-(o instanceof char[] ? 2L << c : 1L << c));
+						hits.incrementAndGet();
+						return o;
+					}
+				}
+			}
+			misses.incrementAndGet();
+			return null;
+		}
+
+		void release(Object o, int c, long size) {
+			if (c < 0) return;
+			if (retainedBytes.addAndGet(size) > maxRetainedBytes) {
+				retainedBytes.addAndGet(-size);
+				return;
+			}
+			int start = (int)Thread.currentThread().getId();
+			for (int i = 0; i < SLOTS; i++)
+				if (slots.compareAndSet(c * SLOTS + ((start + i) & (SLOTS - 1)), null, o)) return;
+			retainedBytes.addAndGet(-size);
+		}
+	}
+}
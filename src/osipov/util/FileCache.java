@@ -0,0 +1,462 @@
+package osipov.util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content addressed, size bounded cache of local copies of remote files.
+ * The contents of each file are stored once, under the SHA-256 digest of the contents:
+ * ${root}/objects/${first two digits of the digest}/${digest}/${file name}
+ * so that URLs referencing identical files share the copy. An index maps each cache key
+ * (typically a URL and a validator such as the last modified stamp or a checksum) to the
+ * contents. The index is held in memory and persisted in ${root}/index, looking up a key
+ * does not touch the file system. Each key can carry a validator, such as an HTTP entity tag,
+ * used to check whether the cached copy is still current.
+ *
+ * When the total size of the cached files exceeds the quota, the least recently used
+ * files are deleted, except:
+ * - files returned by @see #get(String) or put within the grace period, since callers such as
+ *   @see FileUtil#resolveUrlAsFile(java.net.URL) hand out the path without telling when they are done with it
+ * - files that are pinned, @see #pin(File), for callers that use a file for longer than the grace period
+ *
+ * The root directory, the quota and the grace period of the default cache are configured with the
+ * osipov.cache.dir (default ${java.io.tmpdir}/osipov/cache), osipov.cache.quota
+ * (in bytes, default 1GB) and osipov.cache.grace (in milliseconds, default 1 minute) system properties.
+ *
+ * Instances are thread safe, but a cache directory should only be used by one process at a time.
+ *
+ * @author @osipov
+ */
+public class FileCache {
+	public static final String ROOT_PROPERTY = "osipov.cache.dir";
+	public static final String QUOTA_PROPERTY = "osipov.cache.quota";
+	public static final String GRACE_PROPERTY = "osipov.cache.grace";
+	public static final long DEFAULT_QUOTA = 1024L * 1024 * 1024;
+	public static final long DEFAULT_GRACE = 60 * 1000L;
+
+	private static FileCache defaultCache;
+
+	/**
+	 * @return the cache used by @see FileUtil#resolveUrlAsFile(java.net.URL)
+	 */
+	public static synchronized FileCache getDefault() {
+		if (defaultCache == null)
+			defaultCache = new FileCache(new File(System.getProperty(ROOT_PROPERTY,
+				System.getProperty("java.io.tmpdir") + File.separator + "osipov" + File.separator + "cache")),
+				Long.getLong(QUOTA_PROPERTY, DEFAULT_QUOTA).longValue(), Long.getLong(GRACE_PROPERTY, DEFAULT_GRACE).longValue());
+		return defaultCache;
+	}
+
+	/**
+	 * A stored file, shared by all of the keys that resolved to the same contents and name
+	 */
+	private static class Content {
+		final String digest, name;
+		final File file;
+		final long size;
+		final List keys = new ArrayList();
+		int pins = 0;
+		//when the file was last returned to a caller
+		long used = 0;
+
+		Content(String digest, String name, File file, long size) {
+			this.digest = digest;
+			this.name = name;
+			this.file = file;
+			this.size = size;
+		}
+	}
+
+	private final File root, objects, tmp, partial, index;
+	private final long quota;
+	private final long grace;
+	private final Map keys = new HashMap();
+	private final Map validators = new HashMap();
+	//contents in least recently used order, keyed by the path of the stored file
+	private final LinkedHashMap contents = new LinkedHashMap(16, 0.75f, true);
+	private long size = 0;
+	private long counter = System.nanoTime();
+
+	/**
+	 * @param root directory holding the cached files
+	 * @param quota upper bound on the total size of the cached files in bytes
+	 */
+	public FileCache(File root, long quota) {
+		this(root, quota, DEFAULT_GRACE);
+	}
+
+	/**
+	 * @param root directory holding the cached files
+	 * @param quota upper bound on the total size of the cached files in bytes
+	 * @param grace milliseconds during which a returned file is not evicted
+	 */
+	public FileCache(File root, long quota, long grace) {
+		this.root = root.getAbsoluteFile();
+		this.objects = new File(this.root, "objects");
+		this.tmp = new File(this.root, "tmp");
+		this.partial = new File(this.root, "partial");
+		this.index = new File(this.root, "index");
+		this.quota = quota;
+		this.grace = grace;
+		load();
+	}
+
+	public File getRoot() {
+		return root;
+	}
+
+	public long getQuota() {
+		return quota;
+	}
+
+	public long getGrace() {
+		return grace;
+	}
+
+	/**
+	 * @return total size of the cached files in bytes
+	 */
+	public synchronized long size() {
+		return size;
+	}
+
+	/**
+	 * Looks up the file cached under the key, without accessing the file system
+	 * @param key cache key
+	 * @return the cached file or null if nothing is cached under the key
+	 */
+	public synchronized File get(String key) {
+		Content c = (Content)keys.get(key);
+		if (c == null) return null;
+		contents.get(c.file.getPath());
+		c.used = System.currentTimeMillis();
+		return c.file;
+	}
+
+	/**
+	 * @param key cache key
+	 * @return the validator stored with the key or null
+	 */
+	public synchronized String getValidator(String key) {
+		return (String)validators.get(key);
+	}
+
+	/**
+	 * Location for an incomplete download of the key, the file is kept across restarts
+	 * so that the download can be resumed and is removed when the key is stored
+	 * with @see #put(String, String, File, String)
+	 * @param key cache key
+	 * @return file that may or may not exist
+	 */
+	public File getPartialFile(String key) {
+		try {
+			return new File(partial, hex(newDigest().digest(key.getBytes("UTF-8"))));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Stores the contents of the stream in the cache under the key. If a file with the
+	 * same contents and name is already cached, the stored copy is reused. The stream is closed.
+	 * @param key cache key
+	 * @param name file name of the stored file
+	 * @param in contents of the file
+	 * @return the cached file
+	 * @throws IOException
+	 */
+	public File put(String key, String name, InputStream in) throws IOException {
+		return put(key, name, in, null);
+	}
+
+	/**
+	 * Stores the contents of the stream in the cache under the key along with a validator,
+	 * @see #put(String, String, InputStream)
+	 * @param validator stored with the key, @see #getValidator(String)
+	 */
+	public File put(String key, String name, InputStream in, String validator) throws IOException {
+		File t;
+		MessageDigest md = newDigest();
+		synchronized (this) {
+			t = new File(tmp, Long.toString(counter++));
+		}
+		try {
+			tmp.mkdirs();
+			OutputStream out = new DigestOutputStream(new FileOutputStream(t), md);
+			if (IOUtil.transfer(in, out, true) < 0) throw new IOException("Unable to cache " + key);
+			return store(key, name, t, hex(md.digest()), validator);
+		} finally {
+			t.delete();
+		}
+	}
+
+	/**
+	 * Moves the downloaded file into the cache under the key along with a validator.
+	 * The file is renamed rather than copied, it is only read once to compute the digest.
+	 * @param key cache key
+	 * @param name file name of the stored file
+	 * @param file complete download, typically @see #getPartialFile(String)
+	 * @param validator stored with the key, @see #getValidator(String)
+	 * @return the cached file
+	 * @throws IOException
+	 */
+	public File put(String key, String name, File file, String validator) throws IOException {
+		MessageDigest md = newDigest();
+		InputStream in = new FileInputStream(file);
+		byte[] buf = BufferPool.getDefault().getBytes(IOUtil.CACHE_SIZE);
+		try {
+			for (int n; (n = in.read(buf)) != -1; )
+				md.update(buf, 0, n);
+		} finally {
+			BufferPool.getDefault().release(buf);
+			in.close();
+		}
+		try {
+			return store(key, name, file, hex(md.digest()), validator);
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Renames the file to its content addressed location unless the contents are already
+	 * stored and maps the key to the stored contents
+	 */
+	private File store(String key, String name, File t, String digest, String validator) throws IOException {
+		File file = new File(objects, digest.substring(0, 2) + File.separator + digest + File.separator + name);
+		synchronized (this) {
+			Content c = (Content)contents.get(file.getPath());
+			if (c == null) {
+				file.getParentFile().mkdirs();
+				if (!file.exists() && !t.renameTo(file)) throw new IOException("Unable to rename " + t + " to " + file);
+				c = new Content(digest, name, file, file.length());
+				contents.put(file.getPath(), c);
+				size += c.size;
+			}
+			Content previous = (Content)keys.put(key, c);
+			if (previous != null && previous != c) previous.keys.remove(key);
+			if (!c.keys.contains(key)) c.keys.add(key);
+			if (validator != null) validators.put(key, validator);
+			else validators.remove(key);
+			c.used = System.currentTimeMillis();
+			c.pins++;
+			try {
+				evict();
+			} finally {
+				c.pins--;
+			}
+			save();
+			return file;
+		}
+	}
+
+	/**
+	 * Removes the key from the cache, the cached file is deleted once no other key refers to it
+	 * @param key cache key
+	 */
+	public synchronized void remove(String key) {
+		Content c = (Content)keys.remove(key);
+		validators.remove(key);
+		if (c == null) return;
+		c.keys.remove(key);
+		if (c.keys.isEmpty() && c.pins == 0) delete(c);
+		save();
+	}
+
+	/**
+	 * Protects a cached file from eviction until it is unpinned
+	 * @param file file returned by the cache
+	 * @return false if the file is not in the cache
+	 */
+	public synchronized boolean pin(File file) {
+		Content c = (Content)contents.get(file.getAbsolutePath());
+		if (c == null) return false;
+		c.pins++;
+		return true;
+	}
+
+	public synchronized void unpin(File file) {
+		Content c = (Content)contents.get(file.getAbsolutePath());
+		if (c != null && c.pins > 0) c.pins--;
+		evict();
+	}
+
+	/**
+	 * Deletes the least recently used files that are neither pinned nor within the grace period
+	 * until the total size is within the quota
+	 */
+	private void evict() {
+		boolean changed = false;
+		long now = System.currentTimeMillis();
+		for (Iterator i = contents.values().iterator(); size > quota && i.hasNext(); ) {
+			Content c = (Content)i.next();
+			if (c.pins > 0 || now - c.used < grace) continue;
+			i.remove();
+			for (int j = 0; j < c.keys.size(); j++) {
+				keys.remove(c.keys.get(j));
+				validators.remove(c.keys.get(j));
+			}
+			size -= c.size;
+			deleteFile(c);
+			changed = true;
+		}
+		if (changed) save();
+	}
+
+	private void delete(Content c) {
+		contents.remove(c.file.getPath());
+		size -= c.size;
+		deleteFile(c);
+	}
+
+	private static void deleteFile(Content c) {
+		c.file.delete();
+		c.file.getParentFile().delete();
+	}
+
+	/**
+	 * Reads the persisted index, entries whose files no longer exist are dropped
+	 */
+	private synchronized void load() {
+		if (!index.isFile()) return;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+			for (String line; (line = reader.readLine()) != null; ) {
+				String[] f = WordUtil.split(new String[5], line, "\t", 4);
+				if (f[3] == null) continue;
+				File file = new File(objects, f[0].substring(0, 2) + File.separator + f[0] + File.separator + f[1]);
+				Content c = (Content)contents.get(file.getPath());
+				if (c == null) {
+					if (!file.isFile()) continue;
+					c = new Content(f[0], f[1], file, file.length());
+					contents.put(file.getPath(), c);
+					size += c.size;
+				}
+				keys.put(f[3], c);
+				c.keys.add(f[3]);
+				if (f[4] != null) validators.put(f[3], f[4]);
+			}
+		} catch (IOException e) {
+			//a missing or damaged index only costs downloading the files again
+		} finally {
+			if (reader != null) try {reader.close();} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Writes the index in least recently used order to a temporary file and renames it
+	 */
+	private void save() {
+		File t = new File(root, "index.tmp");
+		try {
+			root.mkdirs();
+			Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(t), "UTF-8"));
+			try {
+				for (Iterator i = contents.values().iterator(); i.hasNext(); ) {
+					Content c = (Content)i.next();
+					for (int j = 0; j < c.keys.size(); j++) {
+						String validator = (String)validators.get(c.keys.get(j));
+						writer.write(c.digest + "\t" + c.name + "\t" + c.size + "\t" + c.keys.get(j)
+							+ (validator != null ? "\t" + validator : "") + "\n");
+					}
+				}
+			} finally {
+				writer.close();
+			}
+			index.delete();
+			t.renameTo(index);
+		} catch (IOException e) {
+			t.delete();
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static String hex(byte[] b) {
+		StringBuffer buf = new StringBuffer(b.length * 2);
+		for (int i = 0; i < b.length; i++) {
+			buf.append(Character.forDigit((b[i] >> 4) & 0xf, 16));
+			buf.append(Character.forDigit(b[i] & 0xf, 16));
+		}
+		return buf.toString();
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) throw new IllegalStateException(message);
+	}
+
+	private static File put(FileCache cache, String key, String contents) throws IOException {
+		return cache.put(key, "file.txt", new ByteArrayInputStream(contents.getBytes("UTF-8")));
+	}
+
+	private static void deleteTree(File f) {
+		File[] children = f.listFiles();
+		for (int i = 0; children != null && i < children.length; i++)
+			deleteTree(children[i]);
+		f.delete();
+	}
+
+	private static void testFileCache() throws IOException {
+		File root = File.createTempFile("osipov", ".cache");
+		root.delete();
+		try {
+			//no grace period, only pins protect files
+			FileCache cache = new FileCache(root, 10, 0);
+			File a = put(cache, "a", "012345");
+			check(put(cache, "a2", "012345").equals(a) && cache.size() == 6, "identical contents are stored once");
+			File b = put(cache, "b", "abcdef");
+			check(cache.get("a") == null && cache.get("a2") == null && !a.exists() && b.exists() && cache.size() == 6, "least recently used file is evicted over quota");
+			check(cache.pin(b), "cached file can be pinned");
+			File c = put(cache, "c", "ghijkl");
+			check(b.exists() && cache.size() == 12, "pinned file is not evicted");
+			//unpinning counts as a use, the other file is now the least recently used
+			cache.unpin(b);
+			check(cache.get("c") == null && !c.exists() && b.exists() && cache.size() == 6, "quota is restored once the file is unpinned");
+			cache.remove("b");
+			check(!b.exists() && cache.size() == 0, "removed file is deleted");
+
+			//files returned within the grace period are not evicted
+			cache = new FileCache(root, 10, 60 * 60 * 1000L);
+			File d = put(cache, "d", "mnopqr");
+			File e = put(cache, "e", "stuvwx");
+			check(d.exists() && e.exists() && cache.size() == 12, "recently returned file is not evicted");
+
+			FileCache reloaded = new FileCache(root, 10, 0);
+			check(d.equals(reloaded.get("d")) && e.equals(reloaded.get("e")) && reloaded.size() == 12, "index is persisted");
+		} finally {
+			deleteTree(root);
+		}
+		System.out.println("FileCache tests passed");
+	}
+
+	public static void main(String[] args) throws IOException {
+		//testFileCache();
+	}
+}
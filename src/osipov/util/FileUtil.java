@@ -1,36 +1,80 @@
 package osipov.util;
 
 import static osipov.util.StringUtil.removeNonAlphaNumericCharacters;
-import static osipov.util.ZipUtil.unzip;
+import static osipov.util.ZipUtil.unzipIncremental;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.HttpURLConnection;
 import java.net.JarURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
-import java.util.HashMap;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class FileUtil {
 	
 	/**
 	 * command objects for the following method: @see #resolveUrlAsFile(URL)
+	 * keyed by protocol, each wrapped in a @see HandlerRegistration
 	 */
-	private static Map urlHandlers = new HashMap();
+	private static final ConcurrentHashMap urlHandlers = new ConcurrentHashMap();
+
+	/**
+	 * resolutions in progress, @see #singleFlight(String, Callable)
+	 */
+	private static final ConcurrentHashMap inflight = new ConcurrentHashMap();
+	private static final int MAX_PARALLEL_RESOLUTIONS = 8;
+	private static final Handler genericHandler = new GenericURLHandler();
+	private static ExecutorService timeoutExecutor;
+	/**
+	 * parses URLs with protocols that have a registered handler but no java.net.URLStreamHandler
+	 */
+	private static final URLStreamHandler stubStreamHandler = new URLStreamHandler() {
+		protected URLConnection openConnection(URL u) throws IOException {
+			throw new IOException("no stream handler for " + u.getProtocol() + ", use FileUtil.resolveUrlAsFile");
+		}
+	};
 	static {
-		urlHandlers.put("file", new FileHandler());
-		urlHandlers.put("http", new HttpHandler());
-		urlHandlers.put("jar", new JarFileHandler());
+		registerHandler("file", new FileHandler());
+		registerHandler("http", new HttpHandler());
+		registerHandler("https", new HttpHandler());
+		registerHandler("jar", new JarFileHandler());
 		//for some reason WAS 5.x uses wsjar prefix
-		urlHandlers.put("wsjar", new GenericURLHandler());
-		urlHandlers.put("bundleresource", new GenericURLHandler());
+		registerHandler("wsjar", genericHandler);
+		registerHandler("bundleresource", genericHandler);
+		registerHandler("classpath", new ClasspathHandler());
+		loadHandlers(Thread.currentThread().getContextClassLoader());
 	}
 
-	private interface Handler {
+	/**
+	 * Resolves URLs of one or more protocols to local files, @see #registerHandler(String, Handler)
+	 * Handlers are called concurrently and must be thread safe.
+	 */
+	public interface Handler {
 		/**
 		 * Given a URL the handler will attempt to resolve the URL to a platform specific 
 		 * absolute path pointing to a file on the local file system. In the case when the URL
@@ -47,6 +91,312 @@ public class FileUtil {
 		public String resolveUrlAsFile(URL url);
 	}
 
+	/**
+	 * Service provider interface for handlers that are registered automatically: implementations
+	 * listed in META-INF/services/osipov.util.FileUtil$HandlerProvider are loaded with
+	 * java.util.ServiceLoader when FileUtil is initialized and by @see #loadHandlers(ClassLoader).
+	 * Handlers of providers replace the built-in handlers of the same protocols and are registered
+	 * without a concurrency limit or a timeout, call @see #registerHandler(String, Handler, int, long)
+	 * to set them.
+	 */
+	public interface HandlerProvider {
+		/**
+		 * @return the URL protocols (schemes) handled by the provider
+		 */
+		public String[] getProtocols();
+
+		/**
+		 * @param protocol one of the protocols returned by @see #getProtocols()
+		 * @return handler for the protocol
+		 */
+		public Handler getHandler(String protocol);
+	}
+
+	/**
+	 * A handler registered for a protocol along with its limits and metrics. The number
+	 * of concurrent calls to the handler is bounded by a semaphore, a call that can not get
+	 * a permit within the timeout is rejected. With a timeout, the handler runs on a separate
+	 * thread and a call that does not finish within the timeout is abandoned, the handler thread
+	 * is interrupted and holds its permit until it returns, a call abandoned before the handler
+	 * started gives its permit back right away. Rejected and abandoned calls resolve to null.
+	 */
+	public static class HandlerRegistration {
+		private final String protocol;
+		private final Handler handler;
+		private final int maxConcurrent;
+		private final long timeout;
+		private final Semaphore permits;
+		private final AtomicLong calls = new AtomicLong();
+		private final AtomicLong failures = new AtomicLong();
+		private final AtomicLong rejected = new AtomicLong();
+		private final AtomicLong timeouts = new AtomicLong();
+		private final AtomicLong nanos = new AtomicLong();
+
+		HandlerRegistration(String protocol, Handler handler, int maxConcurrent, long timeout) {
+			this.protocol = protocol;
+			this.handler = handler;
+			this.maxConcurrent = maxConcurrent;
+			this.timeout = timeout;
+			this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+		}
+
+		public String getProtocol() {
+			return protocol;
+		}
+
+		public Handler getHandler() {
+			return handler;
+		}
+
+		/**
+		 * @return largest number of concurrent calls to the handler, 0 if unlimited
+		 */
+		public int getMaxConcurrent() {
+			return maxConcurrent;
+		}
+
+		/**
+		 * @return timeout of a call in milliseconds, 0 if calls never time out
+		 */
+		public long getTimeout() {
+			return timeout;
+		}
+
+		/**
+		 * @return number of calls, including the failed, rejected and timed out ones
+		 */
+		public long getCalls() {
+			return calls.get();
+		}
+
+		/**
+		 * @return number of calls to the handler that resolved to null or threw an exception
+		 */
+		public long getFailures() {
+			return failures.get();
+		}
+
+		/**
+		 * @return number of calls that did not get a permit within the timeout
+		 */
+		public long getRejected() {
+			return rejected.get();
+		}
+
+		/**
+		 * @return number of calls that did not finish within the timeout
+		 */
+		public long getTimeouts() {
+			return timeouts.get();
+		}
+
+		/**
+		 * @return total time spent in calls in nanoseconds, including the time waiting for a permit
+		 */
+		public long getTotalNanos() {
+			return nanos.get();
+		}
+
+		public String toString() {
+			return protocol + ": calls=" + getCalls() + " failures=" + getFailures() + " rejected=" + getRejected()
+				+ " timeouts=" + getTimeouts() + " time=" + getTotalNanos() / 1000000 + "ms";
+		}
+
+		String resolve(final URL url) {
+			calls.incrementAndGet();
+			long start = System.nanoTime();
+			try {
+				if (!acquire()) {
+					rejected.incrementAndGet();
+					return null;
+				}
+				if (timeout > 0)
+					return resolve(url, timeout - (System.nanoTime() - start) / 1000000);
+				try {
+					return invoke(url);
+				} finally {
+					if (permits != null) permits.release();
+				}
+			} finally {
+				nanos.addAndGet(System.nanoTime() - start);
+			}
+		}
+
+		private String invoke(URL url) {
+			try {
+				String result = handler.resolveUrlAsFile(url);
+				if (result == null) failures.incrementAndGet();
+				return result;
+			} catch (RuntimeException e) {
+				failures.incrementAndGet();
+				throw e;
+			}
+		}
+
+		/**
+		 * Runs the handler on the timeout executor. The permit is released by the handler thread once
+		 * the handler started, or by the calling thread if the call is abandoned before that.
+		 */
+		private String resolve(final URL url, long remaining) {
+			if (remaining <= 0) {
+				if (permits != null) permits.release();
+				timeouts.incrementAndGet();
+				return null;
+			}
+			//claimed by the handler thread when it starts or by the calling thread when it gives up first
+			final AtomicBoolean claimed = new AtomicBoolean();
+			FutureTask task = new FutureTask(new Callable() {
+				public Object call() {
+					if (!claimed.compareAndSet(false, true)) return null;
+					try {
+						return invoke(url);
+					} finally {
+						if (permits != null) permits.release();
+					}
+				}
+			});
+			try {
+				timeoutExecutor().execute(task);
+			} catch (RuntimeException e) {
+				if (permits != null) permits.release();
+				throw e;
+			}
+			try {
+				return (String)task.get(remaining, TimeUnit.MILLISECONDS);
+			} catch (TimeoutException e) {
+				abandon(task, claimed);
+				timeouts.incrementAndGet();
+				return null;
+			} catch (InterruptedException e) {
+				abandon(task, claimed);
+				Thread.currentThread().interrupt();
+				return null;
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+				return null;
+			}
+		}
+
+		/**
+		 * Cancels the call, giving back its permit if the handler never started
+		 */
+		private void abandon(FutureTask task, AtomicBoolean claimed) {
+			if (claimed.compareAndSet(false, true) && permits != null) permits.release();
+			task.cancel(true);
+		}
+
+		private boolean acquire() {
+			if (permits == null) return true;
+			try {
+				if (timeout <= 0) {
+					permits.acquire();
+					return true;
+				}
+				return permits.tryAcquire(timeout, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Registers the handler for the protocol without a concurrency limit or a timeout,
+	 * replacing the handler previously registered for the protocol
+	 * @param protocol URL protocol (scheme), such as classpath
+	 * @param handler thread safe handler
+	 * @return the registration, which also holds the metrics of the handler
+	 */
+	public static HandlerRegistration registerHandler(String protocol, Handler handler) {
+		return registerHandler(protocol, handler, 0, 0);
+	}
+
+	/**
+	 * Registers the handler for the protocol, replacing the handler previously registered for the protocol
+	 * @param protocol URL protocol (scheme), such as classpath
+	 * @param handler thread safe handler
+	 * @param maxConcurrent largest number of concurrent calls to the handler, 0 if unlimited
+	 * @param timeout timeout of a call in milliseconds, 0 if calls never time out
+	 * @return the registration, which also holds the metrics of the handler
+	 */
+	public static HandlerRegistration registerHandler(String protocol, Handler handler, int maxConcurrent, long timeout) {
+		if (protocol == null || handler == null || maxConcurrent < 0 || timeout < 0) throw new IllegalArgumentException();
+		HandlerRegistration r = new HandlerRegistration(protocol.toLowerCase(), handler, maxConcurrent, timeout);
+		urlHandlers.put(r.getProtocol(), r);
+		return r;
+	}
+
+	/**
+	 * @param protocol URL protocol (scheme)
+	 * @return the removed registration or null if no handler was registered for the protocol
+	 */
+	public static HandlerRegistration unregisterHandler(String protocol) {
+		return (HandlerRegistration)urlHandlers.remove(protocol.toLowerCase());
+	}
+
+	/**
+	 * @param protocol URL protocol (scheme)
+	 * @return the registration of the handler for the protocol or null if no handler is registered
+	 */
+	public static HandlerRegistration getHandlerRegistration(String protocol) {
+		return (HandlerRegistration)urlHandlers.get(protocol.toLowerCase());
+	}
+
+	/**
+	 * @return the registrations of all of the handlers
+	 */
+	public static Collection getHandlerRegistrations() {
+		return Collections.unmodifiableCollection(new ArrayList(urlHandlers.values()));
+	}
+
+	/**
+	 * Registers the handlers of the @see HandlerProvider implementations visible to the class loader.
+	 * Providers that fail to load are skipped.
+	 * @param loader class loader to look up META-INF/services/osipov.util.FileUtil$HandlerProvider with
+	 */
+	public static void loadHandlers(ClassLoader loader) {
+		try {
+			for (Iterator i = ServiceLoader.load(HandlerProvider.class, loader).iterator(); i.hasNext(); ) {
+				try {
+					HandlerProvider provider = (HandlerProvider)i.next();
+					String[] protocols = provider.getProtocols();
+					for (int j = 0; protocols != null && j < protocols.length; j++)
+						registerHandler(protocols[j], provider.getHandler(protocols[j]));
+				} catch (ServiceConfigurationError e) {
+					//a broken provider does not prevent the others from loading
+				}
+			}
+		} catch (ServiceConfigurationError e) {
+			//unreadable provider configuration, the built-in handlers remain
+		}
+	}
+
+	/**
+	 * @return shared executor with daemon threads for the calls to handlers with a timeout
+	 */
+	private static synchronized ExecutorService timeoutExecutor() {
+		if (timeoutExecutor == null)
+			timeoutExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "osipov.util.FileUtil.resolveUrlAsFile");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return timeoutExecutor;
+	}
+
+	/**
+	 * @param uri URI or file path
+	 * @return true if the URI has a protocol, either followed by :// or registered with a handler
+	 * (such as classpath:conf/log4j.xml), a drive letter of a file path is not a protocol
+	 */
+	static boolean isUrl(String uri) {
+		if (uri.indexOf("://") >= 0) return true;
+		int i = uri.indexOf(':');
+		return i > 1 && urlHandlers.containsKey(uri.substring(0, i).toLowerCase());
+	}
+
 	private static class FileHandler implements Handler {
 		public String resolveUrlAsFile(URL url) {
 			String file = null;
@@ -62,46 +412,17 @@ public class FileUtil {
 		/**
 		 * Implements the protocol specified by
 		 * @see Util.Handler#resolveUrlAsFile(java.net.URL)
-		 * This implementation will construct a unique
-		 * directory for the file referenced by the URL
-		 * as follows:
-		 * ${java.io.tmpdir}
-		 * /${path to jar file containing minus any non-alphanumeric characters}
-		 * /${directory path into the file}
-		 * /${HTTP last modified stamp}
-		 * /${filename}
+		 * This implementation downloads the file referenced by the URL into
+		 * the @see FileCache with the @see HttpDownloader, a cached copy is
+		 * revalidated with a conditional request and an interrupted download
+		 * is resumed.
 		 */
 		public String resolveUrlAsFile(URL url) {
-			HttpURLConnection conn = null;
 			try {
-				conn = (HttpURLConnection)url.openConnection();
-				if (conn.getResponseCode() == HttpURLConnection.HTTP_OK) {
-					
-					File tmpFileDir = new File(System.getProperty("java.io.tmpdir") +File.separator + "osipov" + File.separator
-										+ StringUtil.removeNonAlphaNumericCharacters(url.getProtocol() + url.getHost() + url.getPort())
-										+ File.separator 
-										+ url.getPath()
-										+ File.separator
-										+ Long.toString(conn.getLastModified()));
-					
-					if (!tmpFileDir.exists() && !tmpFileDir.mkdirs()) return null;
-					 					
-					final File tmpFile = new File(tmpFileDir + File.separator + StringUtil.getRightOf(url.getFile(), "/"));
-					if (!tmpFile.exists()) {
-						IOUtil.write(conn.getInputStream(), new FileOutputStream(tmpFile));
-
-						//commented out the next line because it doesn't work
-						//the file never gets released by the jvm
-						//tmpFile.deleteOnExit();
-					}
-					return tmpFile.getCanonicalPath();
-				} 
-			}catch(IOException e) {
+				return HttpDownloader.getDefault().download(url).getAbsolutePath();
+			} catch(IOException e) {
 				return null;
-			} finally {
-				if (conn != null) conn.disconnect();
 			}
-			return null;
 		}
 	}
 	
@@ -111,77 +432,61 @@ public class FileUtil {
 		 * @see Util.Handler#resolveUrlAsFile(java.net.URL)
 		 * for the URLs pointing to a JAR file that have 
 		 * a format similar to the following: jar:file:/D:/workspace/shared/library.jar!/plugin/jniac.dll
-		 * This implementation will construct a unique
-		 * directory for the file referenced by the URL
-		 * as follows:
-		 * ${java.io.tmpdir}
-		 * /${path to jar file containing minus any non-alphanumeric characters}
-		 * /${directory path into the file}
-		 * /${CRC32 checksum of the file}
-		 * /${filename}
+		 * This implementation stores the archived file in the @see FileCache
+		 * under a key made of the URL and the CRC32 checksum of the archived file.
 		 */
 		public String resolveUrlAsFile(URL url) {
 			try {
 				String jarFile = url.getFile();
-				String archivedFilePath = jarFile.substring(jarFile.indexOf("!") + 1, jarFile.lastIndexOf("/"));		
 				JarURLConnection c = (JarURLConnection)url.openConnection();
-				File tmpFileDir = new File(System.getProperty("java.io.tmpdir") +File.separator + "osipov" + File.separator
-									+ StringUtil.removeNonAlphaNumericCharacters(jarFile.substring(0, jarFile.indexOf("!")))
-									+ File.separator
-									+ archivedFilePath
-									+ File.separator
-									+ Long.toString(c.getJarEntry().getCrc()));
-									
-				if (!tmpFileDir.exists() && !tmpFileDir.mkdirs()) return null;
-				
-				File tmpFile = new File(tmpFileDir + File.separator + jarFile.substring(jarFile.lastIndexOf("/") + 1));
-				if (!tmpFile.exists()) {
-					IOUtil.write(c.getInputStream(), new FileOutputStream(tmpFile));
-					
-					//commented out the next line because it doesn't work
-					//the file never gets released by the jvm
-//					tmpFile.deleteOnExit();
-				}
-				return tmpFile.getCanonicalPath();					
+				String key = url.toExternalForm() + "|" + c.getJarEntry().getCrc();
+				File tmpFile = FileCache.getDefault().get(key);
+				if (tmpFile == null)
+					tmpFile = FileCache.getDefault().put(key, jarFile.substring(jarFile.lastIndexOf("/") + 1), c.getInputStream());
+				return tmpFile.getAbsolutePath();
 			} catch (IOException e) {
 				return null;
 			} 
 		}
 	}
 
+	private static class ClasspathHandler implements Handler {
+		/**
+		 * Implements the protocol specified by
+		 * @see Util.Handler#resolveUrlAsFile(java.net.URL)
+		 * for classpath:path/to/resource URLs. The resource is looked up with the
+		 * context class loader (or the class loader of FileUtil) and the resulting
+		 * file or jar URL is resolved in turn.
+		 */
+		public String resolveUrlAsFile(URL url) {
+			String path = url.getPath();
+			while (path.startsWith("/"))
+				path = path.substring(1);
+			ClassLoader loader = Thread.currentThread().getContextClassLoader();
+			URL resource = loader != null ? loader.getResource(path) : null;
+			if (resource == null)
+				resource = FileUtil.class.getClassLoader() != null ? FileUtil.class.getClassLoader().getResource(path) : ClassLoader.getSystemResource(path);
+			return resource != null && !"classpath".equals(resource.getProtocol()) ? FileUtil.resolveUrlAsFile(resource) : null;
+		}
+	}
+
 	private static class GenericURLHandler implements Handler {
 		/**
 		 * Implements the protocol specified by
 		 * @see Util.Handler#resolveUrlAsFile(java.net.URL)
-		 * for arbitrary URLs. This implementation will construct a unique
-		 * directory for the URL reference as follows:
-		 * ${java.io.tmpdir}
-		 * /${hashcode of the path to file minus any non-alphanumeric characters}
-		 * /${lastmodified}
-		 * /${filename starting from the last / character}
+		 * for arbitrary URLs. This implementation stores the file referenced
+		 * by the URL in the @see FileCache under a key made of the URL and
+		 * the last modified stamp of the URL connection.
 		 */
 		public String resolveUrlAsFile(URL url) {
 			try {
 				String file = url.getFile();
-				
 				URLConnection c = url.openConnection();
-				File tmpFileDir = new File(System.getProperty("java.io.tmpdir") + File.separator + "nlu" 
-									+ File.separator	
-									+ new String(StringUtil.removeNonAlphaNumericCharacters(file)).hashCode()
-									+ File.separator
-									+ Long.toString(c.getLastModified()));
-				if (!tmpFileDir.exists() && !tmpFileDir.mkdirs()) return null;
-				
-				String filename = file.substring(file.lastIndexOf("/") + 1);
-				File tmpFile = new File(tmpFileDir + File.separator + filename);
-				if (!tmpFile.exists()) {
-					IOUtil.write(c.getInputStream(), new FileOutputStream(tmpFile));
-					
-					//commented out the next line because it doesn't work
-					//the file never gets released by the jvm
-//					tmpFile.deleteOnExit();
-				}
-				return tmpFile.getCanonicalPath();					
+				String key = url.toExternalForm() + "|" + c.getLastModified();
+				File tmpFile = FileCache.getDefault().get(key);
+				if (tmpFile == null)
+					tmpFile = FileCache.getDefault().put(key, file.substring(file.lastIndexOf("/") + 1), c.getInputStream());
+				return tmpFile.getAbsolutePath();
 			} catch (IOException e) {
 				return null;
 			} 
@@ -190,6 +495,8 @@ public class FileUtil {
 	
 	/**
 	 * @see #resolveUrlAsFile(URL)
+	 * URLs with a protocol that has a registered handler but no java.net.URLStreamHandler,
+	 * such as classpath:conf/log4j.xml, are accepted as well.
 	 * @param urlString
 	 * @return null if the input is null, zero length, or is a malformed URL address
 	 */
@@ -202,7 +509,13 @@ public class FileUtil {
 		try {
 			url = new URL(urlString);
 		} catch (MalformedURLException e) {
-			return null;
+			try {
+				int i = urlString.indexOf(':');
+				if (i < 1 || !urlHandlers.containsKey(urlString.substring(0, i).toLowerCase())) return null;
+				url = new URL(null, urlString, stubStreamHandler);
+			} catch (MalformedURLException ex) {
+				return null;
+			}
 		}
 		return resolveUrlAsFile(url);
 	}
@@ -210,15 +523,102 @@ public class FileUtil {
 	/**
 	 * Determines the appropriate handler for the provided URL and 
 	 * invokes a corresponding handler. For details @see Handler#resolveUrlAsFile(URL)
+	 * Concurrent calls for the same URL share a single resolution, only one
+	 * of the threads downloads or extracts the file while the others wait for the result.
 	 * @param url
 	 * @return null if the input is null
 	 */
-	public static String resolveUrlAsFile(URL url) {
+	public static String resolveUrlAsFile(final URL url) {
 		if (url == null) return null;
-		Handler h = (Handler)urlHandlers.get(url.getProtocol());
-		if(h == null)
-			h = new GenericURLHandler();
-		return h.resolveUrlAsFile(url);
+		final HandlerRegistration r = (HandlerRegistration)urlHandlers.get(url.getProtocol().toLowerCase());
+		if (r != null && (r.getHandler() instanceof FileHandler || r.getHandler() instanceof ClasspathHandler))
+			return r.resolve(url);
+		return (String)singleFlight(url.toExternalForm(), new Callable() {
+			public Object call() {
+				return r != null ? r.resolve(url) : genericHandler.resolveUrlAsFile(url);
+			}
+		});
+	}
+
+	/**
+	 * Resolves the URLs in parallel, @see #resolveUrlAsFile(URL)
+	 * Each distinct URL is resolved once by a pool of up to 8 threads.
+	 * @param urls collection of URLs
+	 * @return map from each of the URLs to the platform specific absolute path of the
+	 * file or null if the URL could not be resolved, in the iteration order of the collection
+	 */
+	public static Map resolveAll(Collection urls) {
+		Set distinct = new LinkedHashSet(urls);
+		distinct.remove(null);
+		if (distinct.isEmpty()) return new LinkedHashMap();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(distinct.size(), MAX_PARALLEL_RESOLUTIONS));
+		try {
+			return resolveAll(distinct, executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Resolves the URLs in parallel using the executor, @see #resolveUrlAsFile(URL)
+	 * @param urls collection of URLs
+	 * @param executor runs the resolutions
+	 * @return map from each of the URLs to the platform specific absolute path of the
+	 * file or null if the URL could not be resolved, in the iteration order of the collection
+	 */
+	public static Map resolveAll(Collection urls, ExecutorService executor) {
+		Map futures = new LinkedHashMap();
+		for (Iterator i = urls.iterator(); i.hasNext(); ) {
+			final URL url = (URL)i.next();
+			if (url == null || futures.containsKey(url)) continue;
+			futures.put(url, executor.submit(new Callable() {
+				public Object call() {
+					return resolveUrlAsFile(url);
+				}
+			}));
+		}
+		Map result = new LinkedHashMap();
+		for (Iterator i = futures.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry e = (Map.Entry)i.next();
+			try {
+				result.put(e.getKey(), ((Future)e.getValue()).get());
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+				result.put(e.getKey(), null);
+			} catch (ExecutionException ex) {
+				result.put(e.getKey(), null);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Runs the task unless a task with the same key is already running, 
+	 * in which case waits for and returns the result of the running task
+	 * @param key identifies the work done by the task
+	 * @param task the work
+	 * @return result of the task or null if the task failed or the thread was interrupted
+	 */
+	private static Object singleFlight(String key, Callable task) {
+		FutureTask future = new FutureTask(task);
+		FutureTask running = (FutureTask)inflight.putIfAbsent(key, future);
+		if (running == null) {
+			try {
+				future.run();
+			} finally {
+				inflight.remove(key, future);
+			}
+			running = future;
+		}
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException)e.getCause();
+			return null;
+		}
 	}
 
 	
@@ -237,6 +637,7 @@ public class FileUtil {
      * @return A reference to a File object containing the downloaded 
      * file in the local filesystem, or a file object pointing to an
      * unpacked directory.
+     * @see PathResolver for repeated lookups against the same paths
      */
     public static File resolveAsFile(String[] paths, String URI, boolean unpack) {
         try {
@@ -245,50 +646,57 @@ public class FileUtil {
 
             // Find the file
             // If the URI has no protocol
-            if (URI.indexOf("://") < 0) {
+            if (!isUrl(URI)) {
                 boolean isAbsolute = (URI.charAt(0) == '/' || URI.indexOf(":/") >= 0);
                 URI = isAbsolute ? URI : "/" + URI;
 
                 localFile = new File(isAbsolute ? URI : (new File(".").getAbsolutePath() + URI)).getCanonicalFile();
                 // If the file was not found, start searching the paths
                 for (int i = 0; !localFile.exists() && paths != null && i < paths.length; i++) {
-                    paths[i] = paths[i].replace('\\', '/');
+                    String path = paths[i].replace('\\', '/');
 
                     // If the path has no protocol
-                    if (paths[i].indexOf("://") < 0)
-                        localFile = new File(new File(paths[i]).getAbsolutePath() + URI).getCanonicalFile();
+                    if (!isUrl(path))
+                        localFile = new File(new File(path).getAbsolutePath() + URI).getCanonicalFile();
                     else
-                        localFile = new File(resolveUrlAsFile(paths[i] + URI));
+                        localFile = new File(resolveUrlAsFile(path + URI));
                 }
             } else {
                 localFile = new File(resolveUrlAsFile(URI));
             }
 
-            String filePath = localFile.getAbsolutePath();
-
-            // If the path is a ZIP file, unpack the zip file and return
-            // the path less the .zip extension
-            if (unpack && localFile.getName().indexOf(".zip") >= 0 && localFile.isFile()) {
-
-                File tmpdir = getTmpDir(localFile);
-                filePath = tmpdir.getAbsolutePath();
-                filePath = filePath.substring(0, filePath.length() - 4);
-                tmpdir = new File(filePath);
-                if (!tmpdir.exists()) {
-                    tmpdir.mkdirs();
-                    unzip(localFile.getAbsolutePath(), filePath);
-                }
-                localFile = tmpdir;
-            }
-
-            return (new File(filePath));
+            return unpack ? unpack(localFile) : new File(localFile.getAbsolutePath());
 
         } catch (Exception e) {
             throw new RuntimeException(e.getClass().getName()+":"+URI.toString());
         }
     }
+
+    /**
+     * If the file is a ZIP file, unpacks the zip file and returns
+     * the path less the .zip extension. Only the entries that changed
+     * since the last time the file was unpacked are extracted
+     * @param localFile resolved file
+     * @return the unpacked directory or the file itself if it is not a ZIP file
+     */
+    static File unpack(File localFile) {
+        String filePath = localFile.getAbsolutePath();
+        if (localFile.getName().indexOf(".zip") >= 0 && localFile.isFile()) {
+            filePath = getTmpDir(localFile).getAbsolutePath();
+            filePath = filePath.substring(0, filePath.length() - 4);
+            final String zipPath = localFile.getAbsolutePath(), unzipPath = filePath;
+            singleFlight("unzip:" + filePath, new Callable() {
+                public Object call() {
+                    return unzipIncremental(zipPath, unzipPath);
+                }
+            });
+        }
+        return new File(filePath);
+    }
         
-        /** Returns the name of a directory that this file can be unzipped to
+        /** Returns the name of a directory that this file can be unzipped to.
+         * The directory is the same for every version of the file so that
+         * a changed file can be unzipped incrementally over the previous version
          * 
          * @param file The file to unzip
          * @return The temp directory
@@ -299,9 +707,52 @@ public class FileUtil {
             return(new File(System.getProperty("java.io.tmpdir") + File.separator + "osipov" 
     			+ File.separator	
     			+ removeNonAlphaNumericCharacters(file.getAbsolutePath())
-    			+ File.separator
-    			+ Long.toString(file.lastModified())
             	+ File.separator
             	+ file.getName()));
         }
+
+	/**
+	 * Calls a handler that takes longer than its timeout from several threads at once, then checks that
+	 * the abandoned calls gave back their permits so that a fast call still gets through
+	 */
+	private static void testHandlerTimeouts() throws InterruptedException {
+		final AtomicLong sleep = new AtomicLong(200);
+		HandlerRegistration r = registerHandler("osipovslow", new Handler() {
+			public String resolveUrlAsFile(URL url) {
+				try {
+					Thread.sleep(sleep.get());
+				} catch (InterruptedException e) {
+					return null;
+				}
+				return url.getPath();
+			}
+		}, 1, 50);
+		try {
+			Thread[] threads = new Thread[8];
+			for (int i = 0; i < threads.length; i++) {
+				final int id = i;
+				threads[i] = new Thread() {
+					public void run() {
+						for (int j = 0; j < 10; j++)
+							resolveUrlAsFile("osipovslow:/" + id + "/" + j);
+					}
+				};
+				threads[i].start();
+			}
+			for (int i = 0; i < threads.length; i++)
+				threads[i].join();
+			sleep.set(0);
+			//abandoned handler threads are interrupted and return their permits
+			Thread.sleep(500);
+			for (int i = 0; i < 10; i++)
+				if (!("/fast/" + i).equals(resolveUrlAsFile("osipovslow:/fast/" + i))) throw new IllegalStateException("permit lost: " + r);
+		} finally {
+			unregisterHandler("osipovslow");
+		}
+		System.out.println(r);
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		//testHandlerTimeouts();
+	}
 }
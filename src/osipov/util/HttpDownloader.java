@@ -0,0 +1,593 @@
+package osipov.util;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Downloads files over HTTP into a @see FileCache.
+ * - a cached copy is revalidated with a conditional GET (If-None-Match with the entity tag
+ *   or If-Modified-Since with the last modified date of the cached copy), an unchanged file
+ *   costs one request and no transfer
+ * - large files served with Accept-Ranges: bytes are split into segments that are downloaded
+ *   in parallel with Range requests, each segment is written at its position in the file
+ *   through a shared FileChannel
+ * - an interrupted download is kept as a partial file along with the progress of each segment,
+ *   the next attempt resumes the missing ranges with If-Range so a file that changed in the
+ *   meantime is downloaded again from the start
+ *
+ * Bodies are streamed to disk through a pooled direct buffer, a file is never held in memory.
+ * Instances are thread safe, concurrent downloads of the same URL should be avoided
+ * (@see FileUtil#resolveUrlAsFile(URL) takes care of that).
+ *
+ * @author @osipov
+ */
+public class HttpDownloader {
+	public static final int DEFAULT_SEGMENTS = 4;
+	public static final long DEFAULT_SEGMENT_SIZE = 4L * 1024 * 1024;
+	private static final long SAVE_INTERVAL = 4L * 1024 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private static HttpDownloader defaultDownloader;
+
+	/**
+	 * @return downloader storing files in @see FileCache#getDefault() with daemon threads for the segments
+	 */
+	public static synchronized HttpDownloader getDefault() {
+		if (defaultDownloader == null)
+			defaultDownloader = new HttpDownloader(FileCache.getDefault(), Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "osipov.util.HttpDownloader");
+					t.setDaemon(true);
+					return t;
+				}
+			}), DEFAULT_SEGMENTS, DEFAULT_SEGMENT_SIZE);
+		return defaultDownloader;
+	}
+
+	/**
+	 * Signals that the resource no longer matches the partial file
+	 */
+	private static class ChangedException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		ChangedException(String message) {
+			super(message);
+		}
+	}
+
+	private final FileCache cache;
+	private final ExecutorService executor;
+	private final int segments;
+	private final long segmentSize;
+
+	/**
+	 * @param cache stores the downloaded files and their validators
+	 * @param executor runs the downloads of all but the first segment of a file
+	 * @param segments largest number of parallel connections per file
+	 * @param segmentSize smallest number of bytes per segment, files smaller than two segments
+	 * are downloaded with a single connection
+	 */
+	public HttpDownloader(FileCache cache, ExecutorService executor, int segments, long segmentSize) {
+		if (cache == null || executor == null || segments < 1 || segmentSize < 1) throw new IllegalArgumentException();
+		this.cache = cache;
+		this.executor = executor;
+		this.segments = segments;
+		this.segmentSize = segmentSize;
+	}
+
+	/**
+	 * Returns the cached copy of the file referenced by the URL, downloading or resuming
+	 * the download of the file unless the cached copy is still current
+	 * @param url http or https URL
+	 * @return the cached file
+	 * @throws IOException if the server does not respond with the file or the transfer fails,
+	 * what was downloaded is kept for the next attempt
+	 */
+	public File download(URL url) throws IOException {
+		try {
+			return download(url, true);
+		} catch (ChangedException e) {
+			return download(url, false);
+		}
+	}
+
+	private File download(URL url, boolean resume) throws IOException {
+		String key = url.toExternalForm();
+		File cached = cache.get(key);
+		String validator = cached != null ? cache.getValidator(key) : null;
+		File part = cache.getPartialFile(key);
+		State state = resume ? State.load(part) : null;
+		if (state == null) State.discard(part);
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		try {
+			int first = -1;
+			if (state != null) {
+				first = state.next(-1);
+				conn.setRequestProperty("Range", state.range(first));
+				conn.setRequestProperty("If-Range", state.validator);
+			} else if (validator != null)
+				conn.setRequestProperty(isEntityTag(validator) ? "If-None-Match" : "If-Modified-Since", validator);
+			int code = conn.getResponseCode();
+			if (code == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null && state == null)
+				return cached;
+			if (code == HttpURLConnection.HTTP_PARTIAL && state != null) {
+				state.checkRange(conn, first);
+			} else if (code == HttpURLConnection.HTTP_OK) {
+				if (state != null) State.discard(part);
+				state = newState(conn, part);
+				first = 0;
+			} else
+				throw new IOException(code + " " + conn.getResponseMessage() + " " + url);
+			transfer(url, conn, state, first);
+		} finally {
+			conn.disconnect();
+		}
+		return cache.put(key, StringUtil.getRightOf(url.getFile(), "/"), part, state.validator);
+	}
+
+	/**
+	 * Lays out the segments of a download that starts with the full response on the connection
+	 */
+	private State newState(HttpURLConnection conn, File part) {
+		long length = -1;
+		try {
+			String l = conn.getHeaderField("Content-Length");
+			if (l != null) length = Long.parseLong(l.trim());
+		} catch (NumberFormatException e) {
+			length = -1;
+		}
+		String validator = conn.getHeaderField("ETag");
+		if (validator == null || !validator.startsWith("\"")) validator = conn.getHeaderField("Last-Modified");
+		boolean ranges = validator != null && length > 0 && "bytes".equalsIgnoreCase(conn.getHeaderField("Accept-Ranges"));
+		int n = ranges ? (int)Math.max(1, Math.min(segments, length / segmentSize)) : 1;
+		return new State(part, validator, length, n, ranges);
+	}
+
+	/**
+	 * Reads the segment of the response on the connection on the calling thread while the
+	 * remaining incomplete segments are requested on the executor
+	 */
+	private void transfer(final URL url, HttpURLConnection conn, final State state, int first) throws IOException {
+		state.part.getParentFile().mkdirs();
+		RandomAccessFile raf = new RandomAccessFile(state.part, "rw");
+		try {
+			state.save();
+			if (state.length > 0 && raf.length() != state.length) raf.setLength(state.length);
+			final FileChannel channel = raf.getChannel();
+			List futures = new ArrayList();
+			for (int i = state.next(first); i != -1; i = state.next(i)) {
+				final int segment = i;
+				futures.add(executor.submit(new Callable() {
+					public Object call() throws IOException {
+						try {
+							transferSegment(url, state, segment, channel);
+						} catch (IOException e) {
+							state.failed = true;
+							throw e;
+						}
+						return null;
+					}
+				}));
+			}
+			IOException failure = null;
+			try {
+				state.transfer(conn.getInputStream(), channel, first);
+			} catch (IOException e) {
+				failure = e;
+				state.failed = true;
+			}
+			for (int i = 0; i < futures.size(); i++) {
+				try {
+					((Future)futures.get(i)).get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					state.failed = true;
+					if (failure == null) failure = new InterruptedIOException();
+				} catch (ExecutionException e) {
+					state.failed = true;
+					//the segment that failed first is more telling than the segments it stopped
+					if (failure == null || failure instanceof InterruptedIOException || e.getCause() instanceof ChangedException)
+						failure = e.getCause() instanceof IOException ? (IOException)e.getCause() : new IOException(String.valueOf(e.getCause()));
+				}
+			}
+			if (failure != null) throw failure;
+			if (state.length < 0) state.length = channel.size();
+		} finally {
+			raf.close();
+			if (state.failed) state.save();
+			if (state.failed && !state.resumable) State.discard(state.part);
+		}
+		state.deleteMeta();
+	}
+
+	/**
+	 * Requests the remaining bytes of a segment with a Range request
+	 */
+	private void transferSegment(URL url, State state, int segment, FileChannel channel) throws IOException {
+		HttpURLConnection conn = (HttpURLConnection)url.openConnection();
+		try {
+			conn.setRequestProperty("Range", state.range(segment));
+			conn.setRequestProperty("If-Range", state.validator);
+			if (conn.getResponseCode() != HttpURLConnection.HTTP_PARTIAL)
+				throw new ChangedException(url + " responded with " + conn.getResponseCode() + " to a range request");
+			state.checkRange(conn, segment);
+			state.transfer(conn.getInputStream(), channel, segment);
+		} finally {
+			conn.disconnect();
+		}
+	}
+
+	private static boolean isEntityTag(String validator) {
+		return validator.startsWith("\"") || validator.startsWith("W/");
+	}
+
+	/**
+	 * Progress of a download, persisted next to the partial file as
+	 * validator
+	 * length
+	 * position\tend (for each segment)
+	 */
+	private static class State {
+		final File part, meta;
+		final String validator;
+		final boolean resumable;
+		final long[] positions, ends;
+		long length;
+		volatile boolean failed = false;
+		private long saved = 0;
+
+		State(File part, String validator, long length, int n, boolean resumable) {
+			this.part = part;
+			this.meta = meta(part);
+			this.validator = validator;
+			this.length = length;
+			this.resumable = resumable;
+			this.positions = new long[n];
+			this.ends = new long[n];
+			for (int i = 0; i < n; i++) {
+				positions[i] = length < 0 ? 0 : length / n * i;
+				ends[i] = length < 0 ? -1 : (i == n - 1 ? length : length / n * (i + 1));
+			}
+		}
+
+		/**
+		 * @return the persisted progress or null if there is nothing to resume
+		 */
+		static State load(File part) {
+			File meta = meta(part);
+			if (!part.isFile() || !meta.isFile()) return null;
+			BufferedReader reader = null;
+			try {
+				reader = new BufferedReader(new InputStreamReader(new FileInputStream(meta), "UTF-8"));
+				String validator = reader.readLine();
+				long length = Long.parseLong(reader.readLine());
+				List lines = new ArrayList();
+				for (String line; (line = reader.readLine()) != null; )
+					if (line.length() > 0) lines.add(line);
+				if (validator == null || lines.isEmpty() || part.length() != length) return null;
+				State state = new State(part, validator, length, lines.size(), true);
+				for (int i = 0; i < lines.size(); i++) {
+					String line = (String)lines.get(i);
+					state.positions[i] = Long.parseLong(StringUtil.getLeftOf(line, "\t"));
+					state.ends[i] = Long.parseLong(StringUtil.getRightOf(line, "\t"));
+				}
+				return state.next(-1) == -1 ? null : state;
+			} catch (IOException e) {
+				return null;
+			} catch (RuntimeException e) {
+				//damaged progress, the download starts over
+				return null;
+			} finally {
+				if (reader != null) try {reader.close();} catch (IOException e) {}
+			}
+		}
+
+		static void discard(File part) {
+			part.delete();
+			meta(part).delete();
+		}
+
+		/**
+		 * @return the file the progress of the partial file is persisted in
+		 */
+		static File meta(File part) {
+			return new File(part.getPath() + ".meta");
+		}
+
+		/**
+		 * Deletes the persisted progress once the download is complete, the partial file is kept
+		 */
+		void deleteMeta() {
+			meta.delete();
+		}
+
+		/**
+		 * @return index of the first incomplete segment after the specified one or -1
+		 */
+		synchronized int next(int segment) {
+			for (int i = segment + 1; i < positions.length; i++)
+				if (ends[i] < 0 || positions[i] < ends[i]) return i;
+			return -1;
+		}
+
+		synchronized String range(int segment) {
+			return "bytes=" + positions[segment] + "-" + (ends[segment] < 0 ? "" : Long.toString(ends[segment] - 1));
+		}
+
+		/**
+		 * Verifies that the partial response starts where the segment left off
+		 */
+		void checkRange(HttpURLConnection conn, int segment) throws IOException {
+			String range = conn.getHeaderField("Content-Range");
+			long position;
+			synchronized (this) {
+				position = positions[segment];
+			}
+			if (range == null || !range.trim().startsWith("bytes " + position + "-"))
+				throw new ChangedException("unexpected Content-Range " + range + " for " + range(segment));
+		}
+
+		/**
+		 * Writes the stream at the positions of the segment until the end of the segment
+		 * or the end of the stream when the length is unknown
+		 */
+		void transfer(InputStream in, FileChannel channel, int segment) throws IOException {
+			ReadableByteChannel source = Channels.newChannel(in);
+			ByteBuffer buf = BufferPool.getDefault().getByteBuffer(BUFFER_SIZE, true);
+			try {
+				long position, end;
+				synchronized (this) {
+					position = positions[segment];
+					end = ends[segment];
+				}
+				while (end < 0 || position < end) {
+					if (failed) throw new InterruptedIOException("download of " + part + " failed");
+					buf.clear();
+					if (end >= 0 && end - position < buf.capacity()) buf.limit((int)(end - position));
+					if (source.read(buf) < 0) break;
+					buf.flip();
+					while (buf.hasRemaining())
+						position += channel.write(buf, position);
+					progress(segment, position);
+				}
+				if (end >= 0 && position < end) throw new EOFException("response ended at " + position + " before " + end);
+			} finally {
+				BufferPool.getDefault().release(buf);
+				source.close();
+			}
+		}
+
+		private synchronized void progress(int segment, long position) {
+			long delta = position - positions[segment];
+			positions[segment] = position;
+			if (resumable && (saved += delta) >= SAVE_INTERVAL) save();
+		}
+
+		/**
+		 * Writes the progress to a temporary file and renames it, so a crash leaves
+		 * either the previous or the current progress
+		 */
+		synchronized void save() {
+			saved = 0;
+			if (!resumable) return;
+			File t = new File(meta.getPath() + ".tmp");
+			try {
+				Writer writer = new OutputStreamWriter(new FileOutputStream(t), "UTF-8");
+				try {
+					writer.write(validator + "\n" + length + "\n");
+					for (int i = 0; i < positions.length; i++)
+						writer.write(positions[i] + "\t" + ends[i] + "\n");
+				} finally {
+					writer.close();
+				}
+				meta.delete();
+				t.renameTo(meta);
+			} catch (IOException e) {
+				t.delete();
+			}
+		}
+	}
+
+	private static byte[] read(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			byte[] b = new byte[(int)raf.length()];
+			raf.readFully(b);
+			return b;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void deleteTree(File f) {
+		File[] children = f.listFiles();
+		for (int i = 0; children != null && i < children.length; i++)
+			deleteTree(children[i]);
+		f.delete();
+	}
+
+	//the test server is reached through reflection so that the class does not depend on com.sun.net.httpserver
+	private static final String SERVER = "com.sun.net.httpserver.HttpServer";
+	private static final String EXCHANGE = "com.sun.net.httpserver.HttpExchange";
+	private static final String HEADERS = "com.sun.net.httpserver.Headers";
+
+	/**
+	 * Invokes a method of a public class of com.sun.net.httpserver
+	 */
+	private static Object call(String type, Object target, String name, Class[] types, Object[] args) throws Exception {
+		try {
+			return Class.forName(type).getMethod(name, types).invoke(target, args);
+		} catch (InvocationTargetException e) {
+			throw e.getCause() instanceof Exception ? (Exception)e.getCause() : e;
+		}
+	}
+
+	/**
+	 * Starts an in-process server that serves the content at any path, honors Range, If-Range and
+	 * If-None-Match and records the Range, If-Range and If-None-Match headers of each request
+	 * @return the com.sun.net.httpserver.HttpServer
+	 */
+	private static Object startServer(final byte[] content, final String[] etag, final List requests, Executor executor) throws Exception {
+		Class handlerType = Class.forName("com.sun.net.httpserver.HttpHandler");
+		Object server = call(SERVER, null, "create", new Class[] {InetSocketAddress.class, int.class},
+				new Object[] {new InetSocketAddress("127.0.0.1", 0), new Integer(0)});
+		call(SERVER, server, "setExecutor", new Class[] {Executor.class}, new Object[] {executor});
+		Object handler = Proxy.newProxyInstance(handlerType.getClassLoader(), new Class[] {handlerType}, new InvocationHandler() {
+			public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+				if (method.getDeclaringClass() == Object.class) return method.invoke(this, args);
+				serve(args[0], content, etag[0], requests);
+				return null;
+			}
+		});
+		call(SERVER, server, "createContext", new Class[] {String.class, handlerType}, new Object[] {"/", handler});
+		call(SERVER, server, "start", new Class[0], new Object[0]);
+		return server;
+	}
+
+	private static void serve(Object x, byte[] content, String etag, List requests) throws Exception {
+		Object in = call(EXCHANGE, x, "getRequestHeaders", new Class[0], new Object[0]);
+		Object out = call(EXCHANGE, x, "getResponseHeaders", new Class[0], new Object[0]);
+		Class[] get = new Class[] {String.class}, set = new Class[] {String.class, String.class}, send = new Class[] {int.class, long.class};
+		String range = (String)call(HEADERS, in, "getFirst", get, new Object[] {"Range"});
+		String ifRange = (String)call(HEADERS, in, "getFirst", get, new Object[] {"If-Range"});
+		String ifNoneMatch = (String)call(HEADERS, in, "getFirst", get, new Object[] {"If-None-Match"});
+		requests.add(range + " " + ifRange + " " + ifNoneMatch);
+		call(HEADERS, out, "set", set, new Object[] {"ETag", etag});
+		call(HEADERS, out, "set", set, new Object[] {"Accept-Ranges", "bytes"});
+		try {
+			if (etag.equals(ifNoneMatch)) {
+				call(EXCHANGE, x, "sendResponseHeaders", send, new Object[] {new Integer(HttpURLConnection.HTTP_NOT_MODIFIED), new Long(-1)});
+				return;
+			}
+			int from = 0, to = content.length;
+			if (range != null && (ifRange == null || etag.equals(ifRange))) {
+				String r = StringUtil.getRightOf(range, "=");
+				from = Integer.parseInt(StringUtil.getLeftOf(r, "-"));
+				if (!r.endsWith("-")) to = Integer.parseInt(StringUtil.getRightOf(r, "-")) + 1;
+				call(HEADERS, out, "set", set, new Object[] {"Content-Range", "bytes " + from + "-" + (to - 1) + "/" + content.length});
+				call(EXCHANGE, x, "sendResponseHeaders", send, new Object[] {new Integer(HttpURLConnection.HTTP_PARTIAL), new Long(to - from)});
+			} else
+				call(EXCHANGE, x, "sendResponseHeaders", send, new Object[] {new Integer(HttpURLConnection.HTTP_OK), new Long(content.length)});
+			OutputStream body = (OutputStream)call(EXCHANGE, x, "getResponseBody", new Class[0], new Object[0]);
+			try {
+				body.write(content, from, to - from);
+			} catch (IOException e) {
+				//the downloader stops reading a full response at the end of its first segment
+			}
+		} finally {
+			call(EXCHANGE, x, "close", new Class[0], new Object[0]);
+		}
+	}
+
+	/**
+	 * Downloads from an in-process server, @see #startServer(byte[], String[], List, Executor)
+	 */
+	private static void testHttpDownloader() throws Exception {
+		final byte[] content = new byte[100 * 1024];
+		new Random(1).nextBytes(content);
+		final String[] etag = {"\"v1\""};
+		final List requests = Collections.synchronizedList(new ArrayList());
+		ExecutorService serverExecutor = Executors.newCachedThreadPool();
+		Object server = startServer(content, etag, requests, serverExecutor);
+		File root = File.createTempFile("osipov", ".cache");
+		root.delete();
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try {
+			FileCache cache = new FileCache(root, 1024 * 1024);
+			HttpDownloader downloader = new HttpDownloader(cache, executor, 4, 16 * 1024);
+			InetSocketAddress address = (InetSocketAddress)call(SERVER, server, "getAddress", new Class[0], new Object[0]);
+			String base = "http://127.0.0.1:" + address.getPort() + "/file.bin";
+
+			//the first segment is read from the full response, the other three with Range requests
+			File file = downloader.download(new URL(base));
+			if (!Arrays.equals(read(file), content)) throw new IllegalStateException("segmented download differs");
+			if (requests.size() != 4 || !requests.contains("bytes=25600-51199 \"v1\" null") || !requests.contains("bytes=76800-102399 \"v1\" null"))
+				throw new IllegalStateException("unexpected segment requests " + requests);
+
+			//an unchanged file is revalidated without a transfer
+			requests.clear();
+			if (!downloader.download(new URL(base)).equals(file) || !requests.equals(Arrays.asList(new String[] {"null null \"v1\""})))
+				throw new IllegalStateException("unexpected revalidation " + requests);
+
+			//a partial file with the first segment complete and half of the second resumes the missing ranges
+			URL url = new URL(base + "?resume");
+			File part = cache.getPartialFile(url.toExternalForm());
+			part.getParentFile().mkdirs();
+			RandomAccessFile raf = new RandomAccessFile(part, "rw");
+			try {
+				raf.setLength(content.length);
+				raf.write(content, 0, 75 * 1024);
+			} finally {
+				raf.close();
+			}
+			State state = new State(part, etag[0], content.length, 2, true);
+			state.positions[0] = state.ends[0];
+			state.positions[1] = 75 * 1024;
+			state.save();
+			requests.clear();
+			if (!Arrays.equals(read(downloader.download(url)), content)) throw new IllegalStateException("resumed download differs");
+			if (!requests.equals(Arrays.asList(new String[] {"bytes=76800-102399 \"v1\" null"})) || State.meta(part).exists())
+				throw new IllegalStateException("unexpected resume " + requests);
+
+			//a file that changed since the partial download is downloaded again from the start
+			url = new URL(base + "?changed");
+			part = cache.getPartialFile(url.toExternalForm());
+			raf = new RandomAccessFile(part, "rw");
+			try {
+				raf.setLength(content.length);
+			} finally {
+				raf.close();
+			}
+			state = new State(part, "\"v0\"", content.length, 1, true);
+			state.positions[0] = 1024;
+			state.save();
+			requests.clear();
+			if (!Arrays.equals(read(downloader.download(url)), content)) throw new IllegalStateException("changed download differs");
+			if (!requests.get(0).equals("bytes=1024-102399 \"v0\" null")) throw new IllegalStateException("unexpected If-Range " + requests);
+		} finally {
+			call(SERVER, server, "stop", new Class[] {int.class}, new Object[] {new Integer(0)});
+			serverExecutor.shutdown();
+			executor.shutdown();
+			deleteTree(root);
+		}
+		System.out.println("HttpDownloader tests passed");
+	}
+
+	public static void main(String[] args) throws Exception {
+		//testHttpDownloader();
+	}
+}
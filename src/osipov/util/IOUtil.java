@@ -2,6 +2,7 @@ package osipov.util;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -10,21 +11,49 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
 import java.io.UnsupportedEncodingException;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class IOUtil {
 	public static final int CACHE_SIZE = 8192;
 	
+	/**
+	 * Maximum number of bytes handed to a single FileChannel.transferTo/transferFrom call.
+	 * Some platforms refuse or silently truncate transfers larger than 2GB.
+	 */
+	private static final long TRANSFER_CHUNK = 64L * 1024 * 1024;
+	
 	public static boolean write(Reader reader, Writer writer) {
-		return write(reader, writer, new char[CACHE_SIZE], true);
+		return write(reader, writer, true);
 	}
 
 	public static boolean write(Reader reader, Writer writer, boolean close) {
-		return write(reader, writer, new char[CACHE_SIZE], close);
+		char[] buf = BufferPool.getDefault().getChars(CACHE_SIZE);
+		try {
+			return write(reader, writer, buf, close);
+		} finally {
+			BufferPool.getDefault().release(buf);
+		}
 	}
 	
 	public static boolean write(Reader reader, Writer writer, char[] buf, boolean close) {
@@ -45,29 +74,135 @@ public class IOUtil {
 	}
 
 	public static boolean write(InputStream in, OutputStream out) {
-		return write(in, out, new byte[CACHE_SIZE], true);
+		return write(in, out, true);
 	}
 	
 	public static boolean write(InputStream in, OutputStream out, boolean close) {
-		return write(in, out, new byte[CACHE_SIZE], close);
+		if (in == null || out == null) return false;
+		return transfer(in, out, close) > -1;
 	}
 
 	public static boolean write(InputStream in, OutputStream out, byte[] buf, boolean close) {
 		if (in == null || out == null || buf == null || buf.length == 0) return false;
+		return transfer(in, out, buf, close) > -1;
+	}
+
+	public static long transfer(InputStream in, OutputStream out, boolean close) {
+		byte[] buf = BufferPool.getDefault().getBytes(CACHE_SIZE);
+		try {
+			return transfer(in, out, buf, close);
+		} finally {
+			BufferPool.getDefault().release(buf);
+		}
+	}
+	
+	/**
+	 * Moves all of the bytes from the input stream to the output stream. If either 
+	 * stream is backed by a file (FileInputStream or FileOutputStream) the data is moved
+	 * using FileChannel.transferTo/transferFrom so that the operating system can copy
+	 * it without a round trip through the java heap (e.g. sendfile or copy_file_range on Linux).
+	 * Otherwise the data is copied through the provided buffer. If out is null, 
+	 * the input is just consumed, like /dev/null.
+	 * @param in input stream
+	 * @param out output stream, may be null
+	 * @param buf buffer to use when neither stream is backed by a channel
+	 * @param close controls whether both streams are closed when done
+	 * @return number of bytes moved or -1 if a problem occured with reading or writing the streams
+	 */
+	public static long transfer(InputStream in, OutputStream out, byte[] buf, boolean close) {
+		if (in == null || buf == null || buf.length == 0) return -1;
 		try {
+			ReadableByteChannel src = channel(in);
+			WritableByteChannel dst = channel(out);
+			if (out != null && (src != null || dst != null))
+				return transfer(src != null ? src : Channels.newChannel(in), 
+								dst != null ? dst : Channels.newChannel(out), buf);
+			long count = 0;
 			int len = -1;
-			while ((len = in.read(buf)) > -1) 
-			   out.write(buf, 0, len);
-			return true;
+			while ((len = in.read(buf)) > -1) {
+				if (out != null)
+					out.write(buf, 0, len);
+				count += len;
+			}
+			return count;
 		} catch (IOException e) {
-			return false;
+			return -1;
 		} finally {
 			if (close) {
 				try {in.close();} catch (IOException ex) {}
-				try {out.close();} catch (IOException ex) {}
+				try {if (out != null) out.close();} catch (IOException ex) {}
+			}
+		}
+	}
+
+	public static long transfer(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+		byte[] buf = BufferPool.getDefault().getBytes(CACHE_SIZE);
+		try {
+			return transfer(in, out, buf);
+		} finally {
+			BufferPool.getDefault().release(buf);
+		}
+	}
+	
+	/**
+	 * Moves all of the bytes from the input channel to the output channel. When the input
+	 * is a FileChannel the data is moved with FileChannel.transferTo, when the output is
+	 * a FileChannel the data is moved with FileChannel.transferFrom. The file positions 
+	 * of the channels are advanced by the number of bytes moved. Only when neither of the
+	 * channels is a FileChannel is the data copied through the provided buffer.
+	 * The channels are not closed. 
+	 * @param in source channel
+	 * @param out destination channel
+	 * @param buf buffer to use when neither channel is a FileChannel
+	 * @return number of bytes moved
+	 * @throws IOException
+	 */
+	public static long transfer(ReadableByteChannel in, WritableByteChannel out, byte[] buf) throws IOException {
+		long count = 0;
+		if (in instanceof FileChannel) {
+			FileChannel fc = (FileChannel)in;
+			long pos = fc.position(), n = 0;
+			while (pos < fc.size() && (n = fc.transferTo(pos, Math.min(TRANSFER_CHUNK, fc.size() - pos), out)) > 0) {
+				pos += n; count += n;
 			}
+			fc.position(pos);
+			//the target may refuse further bytes (e.g. a non-blocking socket), finish by copying
+			if (pos >= fc.size()) return count;
+		} else
+		if (out instanceof FileChannel) {
+			FileChannel fc = (FileChannel)out;
+			long pos = fc.position(), n = 0;
+			while ((n = fc.transferFrom(in, pos, TRANSFER_CHUNK)) > 0) {
+				pos += n; count += n;
+			}
+			fc.position(pos);
+			return count;
+		}
+		
+		ByteBuffer bb = ByteBuffer.wrap(buf);
+		while (in.read(bb) > -1) {
+			bb.flip();
+			count += bb.remaining();
+			while (bb.hasRemaining())
+				out.write(bb);
+			bb.clear();
 		}
+		return count;
+	}
+	
+	/**
+	 * Returns the channel backing the stream if the stream is a file stream 
+	 * @param in input stream
+	 * @return FileChannel of the stream or null if the stream is not backed by a file
+	 */
+	private static ReadableByteChannel channel(InputStream in) {
+		return (in instanceof FileInputStream) ? ((FileInputStream)in).getChannel() : null;
 	}
+
+	private static WritableByteChannel channel(OutputStream out) {
+		return (out instanceof FileOutputStream) ? ((FileOutputStream)out).getChannel() : null;
+	}
+	
     /** 
      * Copy character data from one stream to another.  If out is null, just
      * consume the input, like /dev/null.
@@ -80,14 +215,15 @@ public class IOUtil {
     // Copies data from reader in to writer out.  Closes both streams when done.
     public static boolean copy(Reader in, Writer out)
     {
+        char buf[] = BufferPool.getDefault().getChars(CACHE_SIZE);
         try {
-    	char buf[] = new char[CACHE_SIZE];
 	int size;
 	while ((size = in.read(buf)) != -1)
 	    if (out != null)
 	        out.write(buf, 0, size);
         }
         catch (IOException e) { return false; }
+        finally { BufferPool.getDefault().release(buf); }
 	try {
 	    in.close();
             if (out != null)
@@ -107,14 +243,8 @@ public class IOUtil {
      */
     public static boolean copy(InputStream in, OutputStream out)
     {
-        try {
-            byte buf[] = new byte[CACHE_SIZE];
-            int size;
-            while ((size = in.read(buf)) != -1)
-                if (out != null)
-                    out.write(buf, 0, size);
-        }
-        catch (IOException e) { return false; }
+        if (transfer(in, out, false) < 0)
+            return false;
         try {
             in.close();
             if (out != null)
@@ -124,6 +254,176 @@ public class IOUtil {
         return true;
     }
 
+	/**
+	 * Receives the running count of bytes written by @see IOUtil#copyAsync
+	 */
+	public interface Progress {
+		public void progress(long count);
+	}
+	
+	private static Executor copyExecutor;
+	
+	/**
+	 * @return shared executor with daemon threads for the asynchronous copy stages
+	 */
+	private static synchronized Executor copyExecutor() {
+		if (copyExecutor == null)
+			copyExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "osipov.util.IOUtil.copyAsync");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		return copyExecutor;
+	}
+	
+	public static Future copyAsync(InputStream in, OutputStream out) {
+		return copyAsync(in, out, copyExecutor(), 4, 8 * CACHE_SIZE, null);
+	}
+
+	public static Future copyAsync(InputStream in, OutputStream out, Progress progress) {
+		return copyAsync(in, out, copyExecutor(), 4, 8 * CACHE_SIZE, progress);
+	}
+	
+	/**
+	 * Asynchronously copies binary data from one stream to another. The copy is split into
+	 * a reader stage and a writer stage that run concurrently and exchange data through a 
+	 * bounded ring of buffers, so a slow input does not stall the output and vice versa.
+	 * Both streams are closed when the copy completes, fails or is cancelled. Cancelling
+	 * the returned future stops both stages.
+	 * 
+	 * @param in input stream
+	 * @param out output stream
+	 * @param executor runs the two stages and so must be able to run two tasks at the same
+	 * time, for example a cached thread pool or a virtual thread per task executor
+	 * @param buffers number of buffers in the ring between the stages
+	 * @param bufferSize size of each buffer
+	 * @param progress receives the number of bytes written after each write, may be null
+	 * @return future holding the number of bytes copied as a Long. The future fails with 
+	 * an ExecutionException caused by the IOException if either of the streams fails.
+	 */
+	public static Future copyAsync(InputStream in, OutputStream out, Executor executor, int buffers, int bufferSize, Progress progress) {
+		if (in == null || out == null || executor == null || buffers < 1 || bufferSize < 1) throw new IllegalArgumentException();
+		final Pipeline pipeline = new Pipeline(in, out, buffers, bufferSize, progress);
+		FutureTask task = new FutureTask(pipeline) {
+			protected void done() {
+				if (isCancelled()) pipeline.abandon();
+			}
+		};
+		pipeline.task = task;
+		executor.execute(pipeline.reader());
+		executor.execute(task);
+		return task;
+	}
+	
+	/**
+	 * Reader and writer stages of @see IOUtil#copyAsync. The reader fills free buffers
+	 * and queues them to the writer, the writer drains them and hands them back.
+	 */
+	private static class Pipeline implements Callable {
+		private static final int POLL_MILLIS = 100;
+		
+		private final InputStream in;
+		private final OutputStream out;
+		private final Progress progress;
+		private final Chunk[] chunks;
+		private final BlockingQueue free, filled;
+		private final AtomicInteger stages = new AtomicInteger(2);
+		//claimed by the writer when it starts or by a cancellation that came first
+		private final AtomicBoolean writer = new AtomicBoolean();
+		private volatile boolean done = false;
+		private volatile IOException failure = null;
+		private volatile FutureTask task;
+		
+		private static class Chunk {
+			final byte[] buf;
+			int len;
+			Chunk(byte[] buf) { this.buf = buf; }
+		}
+		
+		private static final Chunk EOF = new Chunk(new byte[0]);
+		
+		Pipeline(InputStream in, OutputStream out, int buffers, int bufferSize, Progress progress) {
+			this.in = in;
+			this.out = out;
+			this.progress = progress;
+			this.chunks = new Chunk[buffers];
+			this.free = new ArrayBlockingQueue(buffers);
+			this.filled = new ArrayBlockingQueue(buffers + 1);
+			for (int i = 0; i < buffers; i++)
+				free.add(chunks[i] = new Chunk(BufferPool.getDefault().getBytes(bufferSize)));
+		}
+		
+		Runnable reader() {
+			return new Runnable() {
+				public void run() {
+					try {
+						while (!done && !task.isCancelled()) {
+							Chunk c = (Chunk)free.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+							if (c == null) continue;
+							c.len = in.read(c.buf);
+							if (c.len < 0) {
+								free.add(c);
+								break;
+							}
+							filled.add(c);
+						}
+					} catch (IOException e) {
+						failure = e;
+					} catch (InterruptedException e) {
+						failure = new InterruptedIOException();
+					} finally {
+						filled.add(EOF);
+						if (task.isCancelled()) {
+							//the writer might never run, so it can not be relied on to close the streams
+							try {in.close();} catch (IOException ex) {}
+							try {out.close();} catch (IOException ex) {}
+						}
+						finish();
+					}
+				}
+			};
+		}
+		
+		public Object call() throws Exception {
+			if (!writer.compareAndSet(false, true)) return null;
+			long count = 0;
+			try {
+				for (Chunk c; (c = (Chunk)filled.take()) != EOF; ) {
+					out.write(c.buf, 0, c.len);
+					count += c.len;
+					free.add(c);
+					if (progress != null) progress.progress(count);
+				}
+				if (failure != null) throw failure;
+				out.flush();
+				return new Long(count);
+			} finally {
+				done = true;
+				try {in.close();} catch (IOException ex) {}
+				try {out.close();} catch (IOException ex) {}
+				finish();
+			}
+		}
+		
+		/**
+		 * Finishes the writer stage on its behalf if the copy was cancelled before the writer started
+		 */
+		void abandon() {
+			if (writer.compareAndSet(false, true)) finish();
+		}
+
+		/**
+		 * Returns the buffers to the pool once neither of the stages can touch them
+		 */
+		private void finish() {
+			if (stages.decrementAndGet() == 0)
+				for (int i = 0; i < chunks.length; i++)
+					BufferPool.getDefault().release(chunks[i].buf);
+		}
+	}
+	
     
     // Create a buffered file writer
     // TODO: align this class with lio.IO
@@ -149,4 +449,16 @@ public class IOUtil {
     {
         return new BufferedReader(new InputStreamReader(new FileInputStream(filename), charset));
     }
+
+    // Memory map a UTF-8 text file, @see MappedFile
+    public static MappedFile map(final String filename) throws IOException
+    {
+        return new MappedFile(filename);
+    }
+
+    // Memory map a text file in a particular character set, @see MappedFile
+    public static MappedFile map(final String filename, final String charset) throws IOException
+    {
+        return new MappedFile(new File(filename), charset, MappedFile.DEFAULT_WINDOW);
+    }
 }
@@ -0,0 +1,449 @@
+package osipov.util;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Dense matrix of int values stored in a single int[] rather than a int[][]. Element (row, column) is
+ * at data[offset + row * rowStride + column * columnStride], so that:
+ * - a matrix created with @see #IntMatrix(int, int) or copied is row major and contiguous, copies are made
+ *   with System.arraycopy, a whole row at a time or in one call when the matrix is contiguous
+ * - views of a block of the matrix (@see #view(int, int, int, int)) and of its transpose (@see #transpose())
+ *   share the array with the matrix, nothing is copied
+ * - @see #transposeCopy() and @see #multiply(IntMatrix) go through the matrix in square blocks that stay in
+ *   the cache, @see #multiply(IntMatrix, ExecutorService, int) and @see #forEachRow(RowOperation, ExecutorService, int)
+ *   divide the rows among tasks on an executor
+ *
+ * Usage:
+ * IntMatrix m = IntMatrix.valueOf(array);
+ * IntMatrix square = m.multiply(m.transpose(), executor, 4);
+ * square.writeTo(writer);
+ *
+ * Not thread safe, except that distinct rows may be modified by distinct threads.
+ *
+ * @author @osipov
+ */
+public class IntMatrix {
+	//side of the square blocks transposeCopy and multiply work through
+	private static final int BLOCK = 64;
+
+	/**
+	 * Operation on the elements of a row, element c of row r is data[offset + c * stride] for c < length
+	 */
+	public interface RowOperation {
+		void apply(int row, int[] data, int offset, int stride, int length);
+	}
+
+	private final int[] data;
+	private final int offset;
+	private final int rows;
+	private final int columns;
+	private final int rowStride;
+	private final int columnStride;
+
+	/**
+	 * Creates a contiguous row major matrix of zeros
+	 */
+	public IntMatrix(int rows, int columns) {
+		this(new int[checkedSize(rows, columns)], 0, rows, columns, columns, 1);
+	}
+
+	/**
+	 * Creates a matrix over an existing array, which is not copied
+	 * @param data the elements
+	 * @param offset index of element (0, 0)
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @param rowStride distance between the elements of consecutive rows in the array
+	 * @param columnStride distance between the elements of consecutive columns in the array
+	 */
+	public IntMatrix(int[] data, int offset, int rows, int columns, int rowStride, int columnStride) {
+		if (rows < 0 || columns < 0 || offset < 0) throw new IllegalArgumentException();
+		if (rows > 0 && columns > 0) {
+			long last = offset + (long)(rows - 1) * rowStride + (long)(columns - 1) * columnStride;
+			long first = offset + Math.min(0L, (long)(rows - 1) * rowStride) + Math.min(0L, (long)(columns - 1) * columnStride);
+			if (first < 0 || last >= data.length) throw new IndexOutOfBoundsException();
+		}
+		this.data = data;
+		this.offset = offset;
+		this.rows = rows;
+		this.columns = columns;
+		this.rowStride = rowStride;
+		this.columnStride = columnStride;
+	}
+
+	/**
+	 * Copies a int[][] into a new contiguous matrix
+	 * @param a array of rows of equal length
+	 * @return the matrix
+	 */
+	public static IntMatrix valueOf(int[][] a) {
+		int columns = a.length == 0 ? 0 : a[0].length;
+		IntMatrix m = new IntMatrix(a.length, columns);
+		for (int i = 0; i < a.length; i++) {
+			if (a[i].length != columns) throw new IllegalArgumentException("row " + i + " has " + a[i].length + " columns instead of " + columns);
+			System.arraycopy(a[i], 0, m.data, i * columns, columns);
+		}
+		return m;
+	}
+
+	/**
+	 * @return the matrix as a new int[][]
+	 */
+	public int[][] toArray() {
+		int[][] a = new int[rows][columns];
+		for (int i = 0; i < rows; i++)
+			copyRow(i, a[i], 0);
+		return a;
+	}
+
+	public int rows() {
+		return rows;
+	}
+
+	public int columns() {
+		return columns;
+	}
+
+	public int get(int row, int column) {
+		return data[index(row, column)];
+	}
+
+	public void set(int row, int column, int value) {
+		data[index(row, column)] = value;
+	}
+
+	/**
+	 * Copies a row into the array
+	 * @return the array
+	 */
+	public int[] copyRow(int row, int[] to, int toOffset) {
+		int from = rowStart(row);
+		if (columnStride == 1) {
+			System.arraycopy(data, from, to, toOffset, columns);
+		} else {
+			for (int j = 0; j < columns; j++, from += columnStride)
+				to[toOffset + j] = data[from];
+		}
+		return to;
+	}
+
+	/**
+	 * @return a matrix over a block of this one, sharing its elements
+	 */
+	public IntMatrix view(int row, int column, int rows, int columns) {
+		if (row < 0 || column < 0 || rows < 0 || columns < 0 || row + rows > this.rows || column + columns > this.columns)
+			throw new IndexOutOfBoundsException();
+		int start = rows == 0 || columns == 0 ? offset : offset + row * rowStride + column * columnStride;
+		return new IntMatrix(data, start, rows, columns, rowStride, columnStride);
+	}
+
+	/**
+	 * @return a view of the rows of this matrix, sharing its elements
+	 */
+	public IntMatrix rows(int row, int rows) {
+		return view(row, 0, rows, columns);
+	}
+
+	/**
+	 * @return the transpose of this matrix as a view sharing its elements
+	 */
+	public IntMatrix transpose() {
+		return new IntMatrix(data, offset, columns, rows, columnStride, rowStride);
+	}
+
+	/**
+	 * @return the transpose of this matrix as a new contiguous matrix, copied block by block
+	 */
+	public IntMatrix transposeCopy() {
+		IntMatrix t = new IntMatrix(columns, rows);
+		final int[] to = t.data;
+		for (int ii = 0; ii < rows; ii += BLOCK) {
+			for (int jj = 0; jj < columns; jj += BLOCK) {
+				int iMax = Math.min(ii + BLOCK, rows), jMax = Math.min(jj + BLOCK, columns);
+				for (int i = ii; i < iMax; i++)
+					for (int j = jj, from = index(i, jj); j < jMax; j++, from += columnStride)
+						to[j * rows + i] = data[from];
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * @return a contiguous row major copy of this matrix
+	 */
+	public IntMatrix copy() {
+		IntMatrix m = new IntMatrix(rows, columns);
+		copyTo(m);
+		return m;
+	}
+
+	/**
+	 * Copies the elements of this matrix into another one of the same dimensions
+	 */
+	public void copyTo(IntMatrix m) {
+		if (m.rows != rows || m.columns != columns) throw new IllegalArgumentException(dimensions(m));
+		if (isContiguous() && m.isContiguous()) {
+			System.arraycopy(data, offset, m.data, m.offset, rows * columns);
+		} else if (m.columnStride == 1) {
+			for (int i = 0; i < rows; i++)
+				copyRow(i, m.data, m.rowStart(i));
+		} else {
+			for (int i = 0; i < rows; i++)
+				for (int j = 0; j < columns; j++)
+					m.data[m.index(i, j)] = data[index(i, j)];
+		}
+	}
+
+	/**
+	 * Sets all elements to the value
+	 */
+	public void fill(int value) {
+		for (int i = 0; i < rows; i++)
+			for (int j = 0, k = rowStart(i); j < columns; j++, k += columnStride)
+				data[k] = value;
+	}
+
+	/**
+	 * Applies the operation to each row on the calling thread
+	 */
+	public void forEachRow(RowOperation op) {
+		forEachRow(op, null, 1);
+	}
+
+	/**
+	 * Applies the operation to each row, contiguous ranges of rows are handed to parallelism tasks on the executor
+	 * @param op the operation
+	 * @param executor executor for the tasks, null to apply the operation on the calling thread
+	 * @param parallelism number of tasks
+	 */
+	public void forEachRow(final RowOperation op, ExecutorService executor, int parallelism) {
+		MathUtil.parallel(rows, executor, parallelism, new MathUtil.Range() {
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++)
+					op.apply(i, data, rowStart(i), columnStride, columns);
+			}
+		});
+	}
+
+	/**
+	 * @return the product of this matrix and the specified one, computed on the calling thread
+	 */
+	public IntMatrix multiply(IntMatrix b) {
+		return multiply(b, null, 1);
+	}
+
+	/**
+	 * Multiplies the matrices block by block, so that the blocks of the right matrix being added up
+	 * are reused from the cache by the rows of a block of the left matrix. Products and sums wrap around on overflow like int arithmetic.
+	 * @param b the right matrix
+	 * @param executor executor for the tasks, null to multiply on the calling thread
+	 * @param parallelism number of tasks the rows of the product are divided among
+	 * @return the product of this matrix and the specified one as a new matrix
+	 */
+	public IntMatrix multiply(IntMatrix b, ExecutorService executor, int parallelism) {
+		if (columns != b.rows) throw new IllegalArgumentException(dimensions(b));
+		final IntMatrix left = isContiguous() ? this : copy(), right = b.isContiguous() ? b : b.copy();
+		final IntMatrix product = new IntMatrix(rows, b.columns);
+		final int n = columns, m = b.columns;
+		final int[] l = left.data, r = right.data, p = product.data;
+		final int lo = left.offset, ro = right.offset;
+		MathUtil.parallel((rows + BLOCK - 1) / BLOCK, executor, parallelism, new MathUtil.Range() {
+			public void run(int from, int to) {
+				for (int ii = from * BLOCK, iEnd = Math.min(to * BLOCK, rows); ii < iEnd; ii += BLOCK) {
+					int iMax = Math.min(ii + BLOCK, iEnd);
+					for (int kk = 0; kk < n; kk += BLOCK) {
+						int kMax = Math.min(kk + BLOCK, n);
+						for (int jj = 0; jj < m; jj += BLOCK) {
+							int jMax = Math.min(jj + BLOCK, m);
+							for (int i = ii; i < iMax; i++) {
+								for (int k = kk; k < kMax; k++) {
+									int a = l[lo + i * n + k];
+									for (int j = jj, x = i * m + jj, y = ro + k * m + jj; j < jMax; j++, x++, y++)
+										p[x] += a * r[y];
+								}
+							}
+						}
+					}
+				}
+			}
+		});
+		return product;
+	}
+
+	/**
+	 * Writes the matrix with its elements separated by spaces and its rows by line feeds,
+	 * the format of @see MathUtil#toString(int[][])
+	 * @return the appendable
+	 * @throws IOException
+	 */
+	public Appendable writeTo(Appendable out) throws IOException {
+		StringBuilder buf = out instanceof StringBuilder ? (StringBuilder)out : null;
+		for (int i = 0; i < rows; i++) {
+			if (i > 0) out.append('\n');
+			for (int j = 0, k = rowStart(i); j < columns; j++, k += columnStride) {
+				if (j > 0) out.append(' ');
+				if (buf != null) buf.append(data[k]);
+				else out.append(Integer.toString(data[k]));
+			}
+		}
+		return out;
+	}
+
+	public String toString() {
+		StringBuilder buf = new StringBuilder(rows * columns * 4);
+		try {
+			writeTo(buf);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+		return buf.toString();
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof IntMatrix)) return false;
+		IntMatrix m = (IntMatrix)o;
+		if (m.rows != rows || m.columns != columns) return false;
+		for (int i = 0; i < rows; i++)
+			for (int j = 0; j < columns; j++)
+				if (data[index(i, j)] != m.data[m.index(i, j)]) return false;
+		return true;
+	}
+
+	public int hashCode() {
+		int h = rows * 31 + columns;
+		for (int i = 0; i < rows; i++)
+			for (int j = 0, k = rowStart(i); j < columns; j++, k += columnStride)
+				h = h * 31 + data[k];
+		return h;
+	}
+
+	private int index(int row, int column) {
+		if (row < 0 || row >= rows || column < 0 || column >= columns) throw new IndexOutOfBoundsException(row + ", " + column);
+		return offset + row * rowStride + column * columnStride;
+	}
+
+	/**
+	 * @return index of the first element of the row, also for a matrix without columns
+	 */
+	private int rowStart(int row) {
+		if (row < 0 || row >= rows) throw new IndexOutOfBoundsException(Integer.toString(row));
+		return offset + row * rowStride;
+	}
+
+	private boolean isContiguous() {
+		return columnStride == 1 && (rowStride == columns || rows < 2);
+	}
+
+	private String dimensions(IntMatrix m) {
+		return rows + "x" + columns + " and " + m.rows + "x" + m.columns;
+	}
+
+	private static int checkedSize(int rows, int columns) {
+		if (rows < 0 || columns < 0 || (long)rows * columns > Integer.MAX_VALUE) throw new IllegalArgumentException(rows + "x" + columns);
+		return rows * columns;
+	}
+
+	private static int[][] multiply(int[][] a, int[][] b) {
+		int[][] c = new int[a.length][b[0].length];
+		for (int i = 0; i < a.length; i++)
+			for (int j = 0; j < b[0].length; j++)
+				for (int k = 0; k < b.length; k++)
+					c[i][j] += a[i][k] * b[k][j];
+		return c;
+	}
+
+	private static int[][] random(Random random, int rows, int columns) {
+		int[][] a = new int[rows][columns];
+		for (int i = 0; i < rows; i++)
+			for (int j = 0; j < columns; j++)
+				a[i][j] = random.nextInt(21) - 10;
+		return a;
+	}
+
+	private static void testIntMatrix() {
+		Random random = new Random(1);
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			for (int t = 0; t < 20; t++) {
+				int n = 1 + random.nextInt(150), k = 1 + random.nextInt(150), m = 1 + random.nextInt(150);
+				int[][] a = random(random, n, k), b = random(random, k, m);
+				IntMatrix ma = valueOf(a), mb = valueOf(b);
+				IntMatrix expected = valueOf(multiply(a, b));
+				if (!ma.multiply(mb).equals(expected) || !ma.multiply(mb, executor, 3).equals(expected)
+						|| !mb.transpose().multiply(ma.transpose()).equals(expected.transpose()))
+					throw new IllegalStateException("multiply failed for " + n + "x" + k + " and " + k + "x" + m);
+				if (!ma.transposeCopy().equals(ma.transpose()) || !valueOf(ma.transpose().toArray()).equals(ma.transposeCopy()))
+					throw new IllegalStateException("transpose failed for " + n + "x" + k);
+				if (!MathUtil.toString(a).equals(ma.toString()) || !java.util.Arrays.deepEquals(a, ma.copy().toArray()))
+					throw new IllegalStateException("conversion failed for " + n + "x" + k);
+				int r = random.nextInt(n), c = random.nextInt(k);
+				IntMatrix view = ma.view(r, c, n - r, k - c);
+				view.set(0, 0, 42);
+				if (a[r][c] == 42 || ma.get(r, c) != 42 || !view.transpose().view(0, 0, 1, 1).toString().equals("42"))
+					throw new IllegalStateException("view failed for " + n + "x" + k);
+				ma.forEachRow(new RowOperation() {
+					public void apply(int row, int[] data, int offset, int stride, int length) {
+						for (int j = 0; j < length; j++)
+							data[offset + j * stride] = row;
+					}
+				}, executor, 3);
+				if (ma.get(n - 1, k - 1) != n - 1 || ma.get(0, 0) != 0)
+					throw new IllegalStateException("forEachRow failed for " + n + "x" + k);
+			}
+		} finally {
+			executor.shutdown();
+		}
+		//a matrix without columns converts like MathUtil.clone(int[][])
+		IntMatrix empty = valueOf(new int[2][0]);
+		if (!java.util.Arrays.deepEquals(empty.toArray(), MathUtil.clone(new int[2][0])) || !empty.toString().equals("\n")
+				|| empty.hashCode() != empty.copy().hashCode() || !empty.transposeCopy().equals(empty.transpose()) || empty.transpose().rows() != 0)
+			throw new IllegalStateException("conversion failed for 2x0");
+		empty.fill(1);
+		empty.forEachRow(new RowOperation() {
+			public void apply(int row, int[] data, int offset, int stride, int length) {
+				if (length != 0) throw new IllegalStateException("forEachRow failed for 2x0");
+			}
+		});
+		if (!valueOf(new int[][] {{1, 2, 3}, {4, 5, 6}}).transpose().toString().equals("1 4\n2 5\n3 6"))
+			throw new IllegalStateException("toString failed");
+		System.out.println("IntMatrix tests passed");
+	}
+
+	/**
+	 * Compares multiplying int[][] with the textbook triple loop to the blocked multiplication,
+	 * on the calling thread and divided among the available processors
+	 */
+	private static void benchmarkMultiply(int n) {
+		Random random = new Random(1);
+		int[][] a = random(random, n, n), b = random(random, n, n);
+		IntMatrix ma = valueOf(a), mb = valueOf(b);
+		int parallelism = Runtime.getRuntime().availableProcessors();
+		ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+		try {
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				int[][] c = multiply(a, b);
+				long arrays = System.nanoTime() - start;
+				start = System.nanoTime();
+				IntMatrix blocked = ma.multiply(mb);
+				long sequential = System.nanoTime() - start;
+				start = System.nanoTime();
+				IntMatrix parallel = ma.multiply(mb, executor, parallelism);
+				long elapsed = System.nanoTime() - start;
+				System.out.println(n + "x" + n + " int[][]: " + arrays / 1000000 + "ms, IntMatrix: " + sequential / 1000000
+						+ "ms, IntMatrix on " + parallelism + " threads: " + elapsed / 1000000 + "ms, "
+						+ (blocked.equals(valueOf(c)) && parallel.equals(blocked)));
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	public static void main(String[] args) {
+		//testIntMatrix();
+		//benchmarkMultiply(512);
+	}
+}
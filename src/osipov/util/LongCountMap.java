@@ -0,0 +1,157 @@
+package osipov.util;
+
+import java.util.Arrays;
+
+/**
+ * Counts occurrences of long keys, such as the ngram hashes of @see NGrams, without boxing.
+ * Keys and counts are kept in two parallel arrays with open addressing and linear probing,
+ * the arrays double in size once they are two thirds full.
+ *
+ * Entries are enumerated with a slot cursor:
+ * for (int slot = map.first(); slot >= 0; slot = map.next(slot))
+ *     System.out.println(map.keyAt(slot) + " " + map.countAt(slot));
+ *
+ * Not thread safe, counts gathered by several threads are merged with @see #addAll(LongCountMap).
+ *
+ * @author @osipov
+ */
+public final class LongCountMap implements NGrams.LongSink {
+	private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] keys;
+	//0 marks a free slot, every stored key has a count of at least 1
+	private long[] counts;
+	private int shift;
+	private int size = 0;
+	//the key 0 cannot be told apart from a free slot and is kept on the side
+	private long zeroCount = 0;
+
+	public LongCountMap() {
+		this(MIN_CAPACITY);
+	}
+
+	/**
+	 * @param expected number of distinct keys the map should hold without growing
+	 */
+	public LongCountMap(int expected) {
+		int capacity = MIN_CAPACITY;
+		while (capacity * 2 / 3 < expected) capacity <<= 1;
+		allocate(capacity);
+	}
+
+	/**
+	 * Increments the count of the key by one
+	 */
+	public void add(long key) {
+		add(key, 1);
+	}
+
+	/**
+	 * Adds to the count of the key
+	 * @param count positive amount to add
+	 */
+	public void add(long key, long count) {
+		if (key == 0) {
+			if (zeroCount == 0) size++;
+			zeroCount += count;
+			return;
+		}
+		final int mask = keys.length - 1;
+		int i = slot(key);
+		for (; counts[i] != 0; i = (i + 1) & mask)
+			if (keys[i] == key) {
+				counts[i] += count;
+				return;
+			}
+		keys[i] = key;
+		counts[i] = count;
+		if (++size > keys.length * 2 / 3) grow();
+	}
+
+	/**
+	 * @return the count of the key, 0 if it was never added
+	 */
+	public long get(long key) {
+		if (key == 0) return zeroCount;
+		final int mask = keys.length - 1;
+		for (int i = slot(key); counts[i] != 0; i = (i + 1) & mask)
+			if (keys[i] == key) return counts[i];
+		return 0;
+	}
+
+	/**
+	 * Adds all counts of the other map to this one
+	 */
+	public void addAll(LongCountMap other) {
+		//inserting in the slot order of a larger map into a smaller one piles the keys up in long runs
+		while (keys.length * 2 / 3 < size + other.size)
+			grow();
+		for (int slot = other.first(); slot >= 0; slot = other.next(slot))
+			add(other.keyAt(slot), other.countAt(slot));
+	}
+
+	/**
+	 * @return number of distinct keys
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all keys, the arrays are kept for reuse
+	 */
+	public void clear() {
+		if (size == 0) return;
+		Arrays.fill(counts, 0);
+		zeroCount = 0;
+		size = 0;
+	}
+
+	/**
+	 * @return the first occupied slot or -1 if the map is empty
+	 */
+	public int first() {
+		return next(-1);
+	}
+
+	/**
+	 * @return the occupied slot after the specified one or -1 if there are no more
+	 */
+	public int next(int slot) {
+		for (int i = slot + 1; i < counts.length; i++)
+			if (counts[i] != 0) return i;
+		return slot < counts.length && zeroCount != 0 ? counts.length : -1;
+	}
+
+	public long keyAt(int slot) {
+		return slot == counts.length ? 0 : keys[slot];
+	}
+
+	public long countAt(int slot) {
+		return slot == counts.length ? zeroCount : counts[slot];
+	}
+
+	private int slot(long key) {
+		return (int)((key * GOLDEN) >>> shift);
+	}
+
+	private void allocate(int capacity) {
+		keys = new long[capacity];
+		counts = new long[capacity];
+		shift = 64 - Integer.numberOfTrailingZeros(capacity);
+	}
+
+	private void grow() {
+		long[] k = keys, c = counts;
+		allocate(keys.length << 1);
+		final int mask = keys.length - 1;
+		for (int j = 0; j < k.length; j++) {
+			if (c[j] == 0) continue;
+			int i = slot(k[j]);
+			while (counts[i] != 0) i = (i + 1) & mask;
+			keys[i] = k[j];
+			counts[i] = c[j];
+		}
+	}
+}
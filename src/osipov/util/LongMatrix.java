@@ -0,0 +1,346 @@
+package osipov.util;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Dense matrix of long values stored in a single long[] rather than a long[][]. Element (row, column) is
+ * at data[offset + row * rowStride + column * columnStride], so that:
+ * - a matrix created with @see #LongMatrix(int, int) or copied is row major and contiguous, copies are made
+ *   with System.arraycopy, a whole row at a time or in one call when the matrix is contiguous
+ * - views of a block of the matrix (@see #view(int, int, int, int)) and of its transpose (@see #transpose())
+ *   share the array with the matrix, nothing is copied
+ * - @see #transposeCopy() and @see #multiply(LongMatrix) go through the matrix in square blocks that stay in
+ *   the cache, @see #multiply(LongMatrix, ExecutorService, int) and @see #forEachRow(RowOperation, ExecutorService, int)
+ *   divide the rows among tasks on an executor
+ *
+ * Usage:
+ * LongMatrix m = LongMatrix.valueOf(array);
+ * LongMatrix square = m.multiply(m.transpose(), executor, 4);
+ * square.writeTo(writer);
+ *
+ * Not thread safe, except that distinct rows may be modified by distinct threads.
+ *
+ * @author @osipov
+ */
+public class LongMatrix {
+	//side of the square blocks transposeCopy and multiply work through
+	private static final int BLOCK = 64;
+
+	/**
+	 * Operation on the elements of a row, element c of row r is data[offset + c * stride] for c < length
+	 */
+	public interface RowOperation {
+		void apply(int row, long[] data, int offset, int stride, int length);
+	}
+
+	private final long[] data;
+	private final int offset;
+	private final int rows;
+	private final int columns;
+	private final int rowStride;
+	private final int columnStride;
+
+	/**
+	 * Creates a contiguous row major matrix of zeros
+	 */
+	public LongMatrix(int rows, int columns) {
+		this(new long[checkedSize(rows, columns)], 0, rows, columns, columns, 1);
+	}
+
+	/**
+	 * Creates a matrix over an existing array, which is not copied
+	 * @param data the elements
+	 * @param offset index of element (0, 0)
+	 * @param rows number of rows
+	 * @param columns number of columns
+	 * @param rowStride distance between the elements of consecutive rows in the array
+	 * @param columnStride distance between the elements of consecutive columns in the array
+	 */
+	public LongMatrix(long[] data, int offset, int rows, int columns, int rowStride, int columnStride) {
+		if (rows < 0 || columns < 0 || offset < 0) throw new IllegalArgumentException();
+		if (rows > 0 && columns > 0) {
+			long last = offset + (long)(rows - 1) * rowStride + (long)(columns - 1) * columnStride;
+			long first = offset + Math.min(0L, (long)(rows - 1) * rowStride) + Math.min(0L, (long)(columns - 1) * columnStride);
+			if (first < 0 || last >= data.length) throw new IndexOutOfBoundsException();
+		}
+		this.data = data;
+		this.offset = offset;
+		this.rows = rows;
+		this.columns = columns;
+		this.rowStride = rowStride;
+		this.columnStride = columnStride;
+	}
+
+	/**
+	 * Copies a long[][] into a new contiguous matrix
+	 * @param a array of rows of equal length
+	 * @return the matrix
+	 */
+	public static LongMatrix valueOf(long[][] a) {
+		int columns = a.length == 0 ? 0 : a[0].length;
+		LongMatrix m = new LongMatrix(a.length, columns);
+		for (int i = 0; i < a.length; i++) {
+			if (a[i].length != columns) throw new IllegalArgumentException("row " + i + " has " + a[i].length + " columns instead of " + columns);
+			System.arraycopy(a[i], 0, m.data, i * columns, columns);
+		}
+		return m;
+	}
+
+	/**
+	 * @return the matrix as a new long[][]
+	 */
+	public long[][] toArray() {
+		long[][] a = new long[rows][columns];
+		for (int i = 0; i < rows; i++)
+			copyRow(i, a[i], 0);
+		return a;
+	}
+
+	public int rows() {
+		return rows;
+	}
+
+	public int columns() {
+		return columns;
+	}
+
+	public long get(int row, int column) {
+		return data[index(row, column)];
+	}
+
+	public void set(int row, int column, long value) {
+		data[index(row, column)] = value;
+	}
+
+	/**
+	 * Copies a row into the array
+	 * @return the array
+	 */
+	public long[] copyRow(int row, long[] to, int toOffset) {
+		int from = rowStart(row);
+		if (columnStride == 1) {
+			System.arraycopy(data, from, to, toOffset, columns);
+		} else {
+			for (int j = 0; j < columns; j++, from += columnStride)
+				to[toOffset + j] = data[from];
+		}
+		return to;
+	}
+
+	/**
+	 * @return a matrix over a block of this one, sharing its elements
+	 */
+	public LongMatrix view(int row, int column, int rows, int columns) {
+		if (row < 0 || column < 0 || rows < 0 || columns < 0 || row + rows > this.rows || column + columns > this.columns)
+			throw new IndexOutOfBoundsException();
+		int start = rows == 0 || columns == 0 ? offset : offset + row * rowStride + column * columnStride;
+		return new LongMatrix(data, start, rows, columns, rowStride, columnStride);
+	}
+
+	/**
+	 * @return a view of the rows of this matrix, sharing its elements
+	 */
+	public LongMatrix rows(int row, int rows) {
+		return view(row, 0, rows, columns);
+	}
+
+	/**
+	 * @return the transpose of this matrix as a view sharing its elements
+	 */
+	public LongMatrix transpose() {
+		return new LongMatrix(data, offset, columns, rows, columnStride, rowStride);
+	}
+
+	/**
+	 * @return the transpose of this matrix as a new contiguous matrix, copied block by block
+	 */
+	public LongMatrix transposeCopy() {
+		LongMatrix t = new LongMatrix(columns, rows);
+		final long[] to = t.data;
+		for (int ii = 0; ii < rows; ii += BLOCK) {
+			for (int jj = 0; jj < columns; jj += BLOCK) {
+				int iMax = Math.min(ii + BLOCK, rows), jMax = Math.min(jj + BLOCK, columns);
+				for (int i = ii; i < iMax; i++)
+					for (int j = jj, from = index(i, jj); j < jMax; j++, from += columnStride)
+						to[j * rows + i] = data[from];
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * @return a contiguous row major copy of this matrix
+	 */
+	public LongMatrix copy() {
+		LongMatrix m = new LongMatrix(rows, columns);
+		copyTo(m);
+		return m;
+	}
+
+	/**
+	 * Copies the elements of this matrix into another one of the same dimensions
+	 */
+	public void copyTo(LongMatrix m) {
+		if (m.rows != rows || m.columns != columns) throw new IllegalArgumentException(dimensions(m));
+		if (isContiguous() && m.isContiguous()) {
+			System.arraycopy(data, offset, m.data, m.offset, rows * columns);
+		} else if (m.columnStride == 1) {
+			for (int i = 0; i < rows; i++)
+				copyRow(i, m.data, m.rowStart(i));
+		} else {
+			for (int i = 0; i < rows; i++)
+				for (int j = 0; j < columns; j++)
+					m.data[m.index(i, j)] = data[index(i, j)];
+		}
+	}
+
+	/**
+	 * Sets all elements to the value
+	 */
+	public void fill(long value) {
+		for (int i = 0; i < rows; i++)
+			for (int j = 0, k = rowStart(i); j < columns; j++, k += columnStride)
+				data[k] = value;
+	}
+
+	/**
+	 * Applies the operation to each row on the calling thread
+	 */
+	public void forEachRow(RowOperation op) {
+		forEachRow(op, null, 1);
+	}
+
+	/**
+	 * Applies the operation to each row, contiguous ranges of rows are handed to parallelism tasks on the executor
+	 * @param op the operation
+	 * @param executor executor for the tasks, null to apply the operation on the calling thread
+	 * @param parallelism number of tasks
+	 */
+	public void forEachRow(final RowOperation op, ExecutorService executor, int parallelism) {
+		MathUtil.parallel(rows, executor, parallelism, new MathUtil.Range() {
+			public void run(int from, int to) {
+				for (int i = from; i < to; i++)
+					op.apply(i, data, rowStart(i), columnStride, columns);
+			}
+		});
+	}
+
+	/**
+	 * @return the product of this matrix and the specified one, computed on the calling thread
+	 */
+	public LongMatrix multiply(LongMatrix b) {
+		return multiply(b, null, 1);
+	}
+
+	/**
+	 * Multiplies the matrices block by block, so that the blocks of the right matrix being added up
+	 * are reused from the cache by the rows of a block of the left matrix. Products and sums wrap around on overflow like long arithmetic.
+	 * @param b the right matrix
+	 * @param executor executor for the tasks, null to multiply on the calling thread
+	 * @param parallelism number of tasks the rows of the product are divided among
+	 * @return the product of this matrix and the specified one as a new matrix
+	 */
+	public LongMatrix multiply(LongMatrix b, ExecutorService executor, int parallelism) {
+		if (columns != b.rows) throw new IllegalArgumentException(dimensions(b));
+		final LongMatrix left = isContiguous() ? this : copy(), right = b.isContiguous() ? b : b.copy();
+		final LongMatrix product = new LongMatrix(rows, b.columns);
+		final int n = columns, m = b.columns;
+		final long[] l = left.data, r = right.data, p = product.data;
+		final int lo = left.offset, ro = right.offset;
+		MathUtil.parallel((rows + BLOCK - 1) / BLOCK, executor, parallelism, new MathUtil.Range() {
+			public void run(int from, int to) {
+				for (int ii = from * BLOCK, iEnd = Math.min(to * BLOCK, rows); ii < iEnd; ii += BLOCK) {
+					int iMax = Math.min(ii + BLOCK, iEnd);
+					for (int kk = 0; kk < n; kk += BLOCK) {
+						int kMax = Math.min(kk + BLOCK, n);
+						for (int jj = 0; jj < m; jj += BLOCK) {
+							int jMax = Math.min(jj + BLOCK, m);
+							for (int i = ii; i < iMax; i++) {
+								for (int k = kk; k < kMax; k++) {
+									long a = l[lo + i * n + k];
+									for (int j = jj, x = i * m + jj, y = ro + k * m + jj; j < jMax; j++, x++, y++)
+										p[x] += a * r[y];
+								}
+							}
+						}
+					}
+				}
+			}
+		});
+		return product;
+	}
+
+	/**
+	 * Writes the matrix with its elements separated by spaces and its rows by line feeds,
+	 * the format of @see MathUtil#toString(int[][])
+	 * @return the appendable
+	 * @throws IOException
+	 */
+	public Appendable writeTo(Appendable out) throws IOException {
+		StringBuilder buf = out instanceof StringBuilder ? (StringBuilder)out : null;
+		for (int i = 0; i < rows; i++) {
+			if (i > 0) out.append('\n');
+			for (int j = 0, k = rowStart(i); j < columns; j++, k += columnStride) {
+				if (j > 0) out.append(' ');
+				if (buf != null) buf.append(data[k]);
+				else out.append(Long.toString(data[k]));
+			}
+		}
+		return out;
+	}
+
+	public String toString() {
+		StringBuilder buf = new StringBuilder(rows * columns * 4);
+		try {
+			writeTo(buf);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+		return buf.toString();
+	}
+
+	public boolean equals(Object o) {
+		if (!(o instanceof LongMatrix)) return false;
+		LongMatrix m = (LongMatrix)o;
+		if (m.rows != rows || m.columns != columns) return false;
+		for (int i = 0; i < rows; i++)
+			for (int j = 0; j < columns; j++)
+				if (data[index(i, j)] != m.data[m.index(i, j)]) return false;
+		return true;
+	}
+
+	public int hashCode() {
+		int h = rows * 31 + columns;
+		for (int i = 0; i < rows; i++)
+			for (int j = 0, k = rowStart(i); j < columns; j++, k += columnStride)
+				h = h * 31 + (int)(data[k] ^ (data[k] >>> 32));
+		return h;
+	}
+
+	private int index(int row, int column) {
+		if (row < 0 || row >= rows || column < 0 || column >= columns) throw new IndexOutOfBoundsException(row + ", " + column);
+		return offset + row * rowStride + column * columnStride;
+	}
+
+	/**
+	 * @return index of the first element of the row, also for a matrix without columns
+	 */
+	private int rowStart(int row) {
+		if (row < 0 || row >= rows) throw new IndexOutOfBoundsException(Integer.toString(row));
+		return offset + row * rowStride;
+	}
+
+	private boolean isContiguous() {
+		return columnStride == 1 && (rowStride == columns || rows < 2);
+	}
+
+	private String dimensions(LongMatrix m) {
+		return rows + "x" + columns + " and " + m.rows + "x" + m.columns;
+	}
+
+	private static int checkedSize(int rows, int columns) {
+		if (rows < 0 || columns < 0 || (long)rows * columns > Integer.MAX_VALUE) throw new IllegalArgumentException(rows + "x" + columns);
+		return rows * columns;
+	}
+}
@@ -0,0 +1,245 @@
+package osipov.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Read only, memory mapped view of a text file. The file is mapped in windows of
+ * up to maxWindow bytes (at most 2GB each), so files larger than 2GB can be read.
+ * Lines are returned as CharSequence views directly over the mapped bytes, for ASCII
+ * and ISO-8859-1 content no String or char[] is created per line. For UTF-8 content
+ * a line is only decoded if it contains non-ASCII bytes and a character of the line
+ * is requested.
+ *
+ * Usage:
+ * MappedFile f = IOUtil.map("corpus.txt");
+ * MappedFile.Lines lines = f.lines();
+ * for (CharSequence line; (line = lines.readLine()) != null; )
+ *     WordUtil.ngrams(c, line, WordUtil.SPACE, 3);
+ * f.close();
+ *
+ * For parallel processing, @see #split(int) divides the file into line aligned
+ * chunks that can be read independently with @see #lines(long, long).
+ *
+ * @author @osipov
+ */
+public class MappedFile {
+	public static final int DEFAULT_WINDOW = 1 << 30;
+	public static final String UTF8 = "UTF-8";
+	public static final String ISO_8859_1 = "ISO-8859-1";
+
+	private final RandomAccessFile raf;
+	private final FileChannel channel;
+	private final long length;
+	private final int maxWindow;
+	private final boolean latin1;
+
+	public MappedFile(String filename) throws IOException {
+		this(new File(filename), UTF8, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param file the file to map
+	 * @param charset UTF-8, US-ASCII or ISO-8859-1
+	 * @param maxWindow largest number of bytes mapped at once, also the upper bound on the length of a line
+	 * @throws IOException
+	 */
+	public MappedFile(File file, String charset, int maxWindow) throws IOException {
+		if (!UTF8.equalsIgnoreCase(charset) && !ISO_8859_1.equalsIgnoreCase(charset) && !"US-ASCII".equalsIgnoreCase(charset))
+			throw new IllegalArgumentException(charset);
+		if (maxWindow < 1) throw new IllegalArgumentException();
+		this.raf = new RandomAccessFile(file, "r");
+		this.channel = raf.getChannel();
+		this.length = channel.size();
+		this.maxWindow = maxWindow;
+		this.latin1 = ISO_8859_1.equalsIgnoreCase(charset);
+	}
+
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Divides the file into at most n chunks of roughly equal size where each chunk
+	 * starts at the beginning of a line.
+	 * @param n number of chunks
+	 * @return ascending chunk boundaries, chunk i spans the bytes [offsets[i], offsets[i + 1])
+	 * and the last element is the length of the file
+	 * @throws IOException
+	 */
+	public long[] split(int n) throws IOException {
+		if (n < 1) throw new IllegalArgumentException();
+		long[] offsets = new long[n + 1];
+		int k = 1;
+		ByteBuffer buf = ByteBuffer.allocate(IOUtil.CACHE_SIZE);
+		for (int i = 1; i < n; i++) {
+			long pos = Math.max(offsets[k - 1], length / n * i);
+			if (pos > 0) pos = nextLine(pos - 1, buf);
+			if (pos > offsets[k - 1] && pos < length)
+				offsets[k++] = pos;
+		}
+		offsets[k++] = length;
+		if (k == offsets.length) return offsets;
+		long[] result = new long[k];
+		System.arraycopy(offsets, 0, result, 0, k);
+		return result;
+	}
+
+	/**
+	 * @return position right after the first line feed at or after the specified position
+	 */
+	private long nextLine(long pos, ByteBuffer buf) throws IOException {
+		while (pos < length) {
+			buf.clear();
+			int n = channel.read(buf, pos);
+			if (n < 1) break;
+			for (int i = 0; i < n; i++)
+				if (buf.get(i) == '\n') return pos + i + 1;
+			pos += n;
+		}
+		return length;
+	}
+
+	/**
+	 * @return iterator over all of the lines in the file
+	 */
+	public Lines lines() {
+		return new Lines(0, length);
+	}
+
+	/**
+	 * @param start position of the first byte of the first line
+	 * @param end position right after the last byte to read
+	 * @return iterator over the lines in the range of bytes, typically one of
+	 * the chunks returned by @see #split(int)
+	 */
+	public Lines lines(long start, long end) {
+		if (start < 0 || end > length || start > end) throw new IndexOutOfBoundsException();
+		return new Lines(start, end);
+	}
+
+	/**
+	 * Unmapping is left to the garbage collector, mapped windows remain valid after
+	 * the file is closed
+	 */
+	public void close() throws IOException {
+		raf.close();
+	}
+
+	/**
+	 * Line iterator over a range of the mapped file. Not thread safe, each thread
+	 * should use its own instance.
+	 */
+	public class Lines {
+		private final long end;
+		private final Line line = new Line();
+		private MappedByteBuffer window;
+		private long windowStart;
+		private int pos;
+
+		private Lines(long start, long end) {
+			this.windowStart = start;
+			this.end = end;
+		}
+
+		/**
+		 * Returns the next line without the line terminator (\n or \r\n). The returned
+		 * object is reused, it is only valid until the next call to readLine,
+		 * call toString() on the result to keep the line.
+		 * @return next line or null at the end of the range
+		 * @throws IOException if the file can not be mapped or a line is longer than the window
+		 */
+		public CharSequence readLine() throws IOException {
+			if (window == null || pos >= window.limit()) {
+				if (window != null) { windowStart += window.limit(); pos = 0; }
+				if (windowStart >= end) return null;
+				window = map(windowStart);
+			}
+			int i = pos, ascii = 0;
+			while (i < window.limit()) {
+				byte b = window.get(i);
+				if (b == '\n') break;
+				ascii |= b; i++;
+			}
+			if (i == window.limit() && windowStart + i < end) {
+				//the line continues past the window, remap the window starting at the line
+				if (pos == 0) throw new IOException("line longer than " + maxWindow + " bytes at " + windowStart);
+				windowStart += pos; pos = 0;
+				window = map(windowStart);
+				return readLine();
+			}
+			int to = i > pos && window.get(i - 1) == '\r' ? i - 1 : i;
+			line.set(window, pos, to - pos, latin1 || ascii >= 0);
+			pos = i + 1;
+			return line;
+		}
+
+		/**
+		 * @return file position of the next line
+		 */
+		public long position() {
+			return window == null ? windowStart : Math.min(end, windowStart + pos);
+		}
+
+		private MappedByteBuffer map(long start) throws IOException {
+			return channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(maxWindow, end - start));
+		}
+	}
+
+	/**
+	 * CharSequence over a range of bytes in a mapped window. Bytes are used as chars
+	 * directly if the range is single byte (ASCII or ISO-8859-1) content, otherwise
+	 * the range is decoded as UTF-8 on first access.
+	 */
+	private static class Line implements CharSequence {
+		private ByteBuffer buf;
+		private int offset, length;
+		private boolean singleByte;
+		private String decoded;
+
+		void set(ByteBuffer buf, int offset, int length, boolean singleByte) {
+			this.buf = buf; this.offset = offset; this.length = length;
+			this.singleByte = singleByte; this.decoded = null;
+		}
+
+		private String decoded() {
+			if (decoded == null) {
+				byte[] b = new byte[length];
+				for (int i = 0; i < length; i++)
+					b[i] = buf.get(offset + i);
+				try {
+					decoded = new String(b, singleByte ? ISO_8859_1 : UTF8);
+				} catch (java.io.UnsupportedEncodingException e) {
+					throw new IllegalStateException(e.getMessage());
+				}
+			}
+			return decoded;
+		}
+
+		public int length() {
+			return singleByte ? length : decoded().length();
+		}
+
+		public char charAt(int index) {
+			if (!singleByte) return decoded().charAt(index);
+			if (index < 0 || index >= length) throw new IndexOutOfBoundsException(Integer.toString(index));
+			return (char)(buf.get(offset + index) & 0xff);
+		}
+
+		public CharSequence subSequence(int start, int end) {
+			if (!singleByte) return decoded().substring(start, end);
+			if (start < 0 || end > length || start > end) throw new IndexOutOfBoundsException();
+			Line l = new Line();
+			l.set(buf, offset + start, end - start, true);
+			return l;
+		}
+
+		public String toString() {
+			return decoded();
+		}
+	}
+}
@@ -0,0 +1,468 @@
+package osipov.util;
+
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Read only zip file reader over a memory mapped archive. Unlike java.util.zip.ZipFile,
+ * opening the archive does not parse the central directory into objects. The central
+ * directory is scanned once on the first lookup into a compact index of primitive arrays
+ * (an open addressing table from the hash of the entry name to the offset of the entry
+ * in the central directory). The entry names are compared directly against the mapped
+ * bytes. STORED entries are returned as read only slices of the mapped archive,
+ * DEFLATED entries are inflated with Inflaters borrowed from a shared pool.
+ *
+ * The index can optionally be persisted next to the archive (file + ".idx") so that
+ * reopening an unchanged archive does not scan the central directory at all.
+ *
+ * Archives larger than 2GB are not supported, zip64 archives are supported as 
+ * long as the sizes and offsets of the individual entries fit into 32 bits.
+ * Instances are thread safe.
+ *
+ * @author @osipov
+ */
+public class MappedZipFile {
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int CEN_SIGNATURE = 0x02014b50;
+	private static final int LOC_SIGNATURE = 0x04034b50;
+	private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int EOCD_SIZE = 22;
+	private static final int ZIP64_LOCATOR_SIZE = 20;
+	private static final int CEN_SIZE = 46;
+	private static final int LOC_SIZE = 30;
+	private static final long INDEX_MAGIC = 0x6f7a697049445831L;
+	public static final String INDEX_SUFFIX = ".idx";
+
+	private static final int MAX_POOLED_INFLATERS = 4 * Runtime.getRuntime().availableProcessors();
+	private static final ConcurrentLinkedQueue inflaters = new ConcurrentLinkedQueue();
+	private static final AtomicInteger pooledInflaters = new AtomicInteger();
+
+	private final File file;
+	private final MappedByteBuffer buf;
+	private final int count;
+	private final int cdOffset;
+	private final boolean persistIndex;
+
+	//lazily built index: hash of each entry name, central directory offset of each entry
+	//and an open addressing table of entry numbers + 1 indexed by hash
+	private volatile int[] offsets;
+	private int[] hashes;
+	private int[] table;
+
+	public MappedZipFile(String file) throws IOException {
+		this(new File(file), false);
+	}
+
+	/**
+	 * @param file zip file to open
+	 * @param persistIndex if true, the index of the central directory is loaded from
+	 * and saved to a file next to the archive
+	 * @throws IOException if the file is not a zip file or is larger than 2GB
+	 */
+	public MappedZipFile(File file, boolean persistIndex) throws IOException {
+		this.file = file;
+		this.persistIndex = persistIndex;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			long length = raf.length();
+			if (length > Integer.MAX_VALUE) throw new ZipException("zip files larger than 2GB are not supported: " + file);
+			buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+			buf.order(ByteOrder.LITTLE_ENDIAN);
+		} finally {
+			raf.close();
+		}
+		int eocd = -1;
+		for (int i = buf.limit() - EOCD_SIZE; i >= 0 && i >= buf.limit() - EOCD_SIZE - 0xffff; i--)
+			if (buf.getInt(i) == EOCD_SIGNATURE) {
+				eocd = i;
+				break;
+			}
+		if (eocd < 0) throw new ZipException("not a zip file: " + file);
+		long entries = buf.getShort(eocd + 10) & 0xffff;
+		long offset = buf.getInt(eocd + 16) & 0xffffffffL;
+		if (eocd >= ZIP64_LOCATOR_SIZE && buf.getInt(eocd - ZIP64_LOCATOR_SIZE) == ZIP64_LOCATOR_SIGNATURE) {
+			//archives with more than 65535 entries keep the counts in the zip64 end of central directory record
+			long zip64 = buf.getLong(eocd - ZIP64_LOCATOR_SIZE + 8);
+			if (zip64 < 0 || zip64 > eocd || buf.getInt((int)zip64) != ZIP64_EOCD_SIGNATURE) throw new ZipException("invalid zip64 end of central directory: " + file);
+			entries = buf.getLong((int)zip64 + 32);
+			offset = buf.getLong((int)zip64 + 48);
+		}
+		if (entries > Integer.MAX_VALUE || offset > eocd) throw new ZipException("invalid central directory: " + file);
+		count = (int)entries;
+		cdOffset = (int)offset;
+	}
+
+	/**
+	 * @return number of entries in the archive
+	 */
+	public int size() {
+		return count;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * @param i entry number in the range [0, size())
+	 * @return name of the entry
+	 */
+	public String getName(int i) {
+		int cen = offsets()[i];
+		return string(cen + CEN_SIZE, buf.getShort(cen + 28) & 0xffff);
+	}
+
+	/**
+	 * @param name entry name
+	 * @return entry number or -1 if there is no entry with the name
+	 */
+	public int indexOf(String name) {
+		byte[] b = bytes(name);
+		int[] offsets = offsets();
+		int h = hash(b, 0, b.length);
+		for (int slot = h & (table.length - 1), i; (i = table[slot]) != 0; slot = (slot + 1) & (table.length - 1)) {
+			if (hashes[i - 1] != h) continue;
+			int cen = offsets[i - 1];
+			if ((buf.getShort(cen + 28) & 0xffff) == b.length && equals(cen + CEN_SIZE, b))
+				return i - 1;
+		}
+		return -1;
+	}
+
+	public boolean contains(String name) {
+		return indexOf(name) > -1;
+	}
+
+	/**
+	 * @return uncompressed size of the entry
+	 */
+	public long getSize(int i) {
+		return buf.getInt(offsets()[i] + 24) & 0xffffffffL;
+	}
+
+	public long getCrc(int i) {
+		return buf.getInt(offsets()[i] + 16) & 0xffffffffL;
+	}
+
+	/**
+	 * @return the contents of the entry or null if there is no entry with the name, @see #getBuffer(int)
+	 */
+	public ByteBuffer getBuffer(String name) throws IOException {
+		int i = indexOf(name);
+		return i < 0 ? null : getBuffer(i);
+	}
+
+	/**
+	 * Returns the uncompressed contents of the entry. For STORED entries
+	 * the result is a read only slice of the mapped archive, no bytes are copied.
+	 * DEFLATED entries are inflated into a new heap buffer.
+	 * @param i entry number
+	 * @return buffer positioned at the first byte of the entry with the limit at the end of the entry
+	 * @throws IOException
+	 */
+	public ByteBuffer getBuffer(int i) throws IOException {
+		int cen = offsets()[i];
+		ByteBuffer data = data(cen);
+		int method = buf.getShort(cen + 10) & 0xffff;
+		if (method == 0) return data;
+		long size = getSize(i);
+		if (size > Integer.MAX_VALUE) throw new ZipException("entry too large " + getName(i));
+		byte[] result = new byte[(int)size];
+		InputStream in = getInputStream(i);
+		try {
+			int off = 0;
+			for (int n; off < result.length && (n = in.read(result, off, result.length - off)) > 0; )
+				off += n;
+			if (off < result.length) throw new ZipException("truncated entry " + getName(i));
+		} finally {
+			in.close();
+		}
+		return ByteBuffer.wrap(result);
+	}
+
+	/**
+	 * @return stream over the contents of the entry or null if there is no entry with the name
+	 */
+	public InputStream getInputStream(String name) throws IOException {
+		int i = indexOf(name);
+		return i < 0 ? null : getInputStream(i);
+	}
+
+	/**
+	 * @return stream over the uncompressed contents of the entry
+	 */
+	public InputStream getInputStream(int i) throws IOException {
+		int cen = offsets()[i];
+		ByteBuffer data = data(cen);
+		int method = buf.getShort(cen + 10) & 0xffff;
+		if (method == 0) return new BufferInputStream(data);
+		if (method == 8) return new EntryInflaterStream(data);
+		throw new ZipException("unsupported compression method " + method + " " + getName(i));
+	}
+
+	/**
+	 * @return read only slice of the archive holding the (possibly compressed) data of the entry
+	 */
+	private ByteBuffer data(int cen) throws ZipException {
+		int loc = buf.getInt(cen + 42);
+		if (loc < 0 || buf.getInt(cen + 20) == -1) throw new ZipException("zip64 entries are not supported");
+		if (buf.getInt(loc) != LOC_SIGNATURE) throw new ZipException("invalid local header at " + loc);
+		int start = loc + LOC_SIZE + (buf.getShort(loc + 26) & 0xffff) + (buf.getShort(loc + 28) & 0xffff);
+		ByteBuffer data = buf.duplicate();
+		data.position(start);
+		data.limit(start + buf.getInt(cen + 20));
+		return data.slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return offsets of the central directory headers of the entries, building the index if needed
+	 */
+	private int[] offsets() {
+		int[] o = offsets;
+		if (o == null) synchronized (this) {
+			if (offsets == null) {
+				if (!persistIndex || !loadIndex()) {
+					buildIndex();
+					if (persistIndex) saveIndex();
+				}
+			}
+			o = offsets;
+		}
+		return o;
+	}
+
+	private void buildIndex() {
+		int[] o = new int[count], h = new int[count];
+		int[] t = new int[Integer.highestOneBit(Math.max(2, count) * 2 - 1) << 1];
+		for (int i = 0, cen = cdOffset; i < count; i++) {
+			if (buf.getInt(cen) != CEN_SIGNATURE) throw new IllegalStateException("invalid central directory header at " + cen);
+			int n = buf.getShort(cen + 28) & 0xffff;
+			o[i] = cen;
+			h[i] = hash(cen + CEN_SIZE, n);
+			int slot = h[i] & (t.length - 1);
+			while (t[slot] != 0) slot = (slot + 1) & (t.length - 1);
+			t[slot] = i + 1;
+			cen += CEN_SIZE + n + (buf.getShort(cen + 30) & 0xffff) + (buf.getShort(cen + 32) & 0xffff);
+		}
+		hashes = h; table = t;
+		offsets = o;
+	}
+
+	/**
+	 * Loads the persisted index if it was written for the current version of the archive
+	 */
+	private boolean loadIndex() {
+		File idx = new File(file.getPath() + INDEX_SUFFIX);
+		if (!idx.isFile()) return false;
+		try {
+			RandomAccessFile raf = new RandomAccessFile(idx, "r");
+			try {
+				ByteBuffer b = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+				LongBuffer header = b.asLongBuffer();
+				if (header.get(0) != INDEX_MAGIC || header.get(1) != file.length() || header.get(2) != file.lastModified()) return false;
+				b.position(24);
+				IntBuffer ints = b.slice().asIntBuffer();
+				if (ints.get(0) != count) return false;
+				int[] o = new int[count], h = new int[count], t = new int[ints.get(1)];
+				ints.position(2);
+				ints.get(o); ints.get(h); ints.get(t);
+				hashes = h; table = t;
+				offsets = o;
+				return true;
+			} finally {
+				raf.close();
+			}
+		} catch (RuntimeException e) {
+			return false;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the index to a temporary file and renames it next to the archive, failures are ignored
+	 */
+	private void saveIndex() {
+		File idx = new File(file.getPath() + INDEX_SUFFIX), tmp = new File(idx.getPath() + ".tmp");
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+			try {
+				out.writeLong(INDEX_MAGIC);
+				out.writeLong(file.length());
+				out.writeLong(file.lastModified());
+				out.writeInt(count);
+				out.writeInt(table.length);
+				for (int i = 0; i < count; i++) out.writeInt(offsets[i]);
+				for (int i = 0; i < count; i++) out.writeInt(hashes[i]);
+				for (int i = 0; i < table.length; i++) out.writeInt(table[i]);
+			} finally {
+				out.close();
+			}
+			idx.delete();
+			if (!tmp.renameTo(idx)) tmp.delete();
+		} catch (IOException e) {
+			tmp.delete();
+		}
+	}
+
+	private int hash(int off, int len) {
+		int h = 0x811c9dc5;
+		for (int i = off; i < off + len; i++)
+			h = (h ^ (buf.get(i) & 0xff)) * 0x01000193;
+		return h;
+	}
+
+	private static int hash(byte[] b, int off, int len) {
+		int h = 0x811c9dc5;
+		for (int i = off; i < off + len; i++)
+			h = (h ^ (b[i] & 0xff)) * 0x01000193;
+		return h;
+	}
+
+	private boolean equals(int off, byte[] b) {
+		for (int i = 0; i < b.length; i++)
+			if (buf.get(off + i) != b[i]) return false;
+		return true;
+	}
+
+	private String string(int off, int len) {
+		byte[] b = new byte[len];
+		for (int i = 0; i < len; i++)
+			b[i] = buf.get(off + i);
+		try {
+			return new String(b, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static byte[] bytes(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	private static Inflater inflater() {
+		Inflater inf = (Inflater)inflaters.poll();
+		if (inf == null) return new Inflater(true);
+		pooledInflaters.decrementAndGet();
+		return inf;
+	}
+
+	private static void release(Inflater inf) {
+		if (pooledInflaters.incrementAndGet() <= MAX_POOLED_INFLATERS) {
+			inf.reset();
+			inflaters.offer(inf);
+		} else {
+			pooledInflaters.decrementAndGet();
+			inf.end();
+		}
+	}
+
+	/**
+	 * Stream over a byte buffer
+	 */
+	private static class BufferInputStream extends InputStream {
+		private final ByteBuffer data;
+
+		BufferInputStream(ByteBuffer data) {
+			this.data = data;
+		}
+
+		public int read() {
+			return data.hasRemaining() ? data.get() & 0xff : -1;
+		}
+
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) return 0;
+			if (!data.hasRemaining()) return -1;
+			len = Math.min(len, data.remaining());
+			data.get(b, off, len);
+			return len;
+		}
+
+		public int available() {
+			return data.remaining();
+		}
+
+		public long skip(long n) {
+			n = Math.max(0, Math.min(n, data.remaining()));
+			data.position(data.position() + (int)n);
+			return n;
+		}
+	}
+
+	/**
+	 * Inflates the compressed bytes of an entry using a pooled Inflater and a
+	 * pooled input buffer, both are returned to their pools when the stream is closed
+	 */
+	private static class EntryInflaterStream extends InputStream {
+		private final ByteBuffer data;
+		private Inflater inf = inflater();
+		private byte[] input = BufferPool.getDefault().getBytes(IOUtil.CACHE_SIZE);
+		private boolean dummy = false;
+
+		EntryInflaterStream(ByteBuffer data) {
+			this.data = data;
+		}
+
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) < 1 ? -1 : b[0] & 0xff;
+		}
+
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (inf == null) throw new IOException("stream closed");
+			if (len == 0) return 0;
+			try {
+				int n;
+				while ((n = inf.inflate(b, off, len)) == 0) {
+					if (inf.finished() || inf.needsDictionary()) return -1;
+					if (inf.needsInput()) {
+						if (data.hasRemaining()) {
+							int k = Math.min(input.length, data.remaining());
+							data.get(input, 0, k);
+							inf.setInput(input, 0, k);
+						} else if (!dummy) {
+							//nowrap inflaters need an extra dummy byte after the compressed data
+							dummy = true;
+							input[0] = 0;
+							inf.setInput(input, 0, 1);
+						} else
+							throw new ZipException("unexpected end of entry");
+					}
+				}
+				return n;
+			} catch (DataFormatException e) {
+				throw new ZipException(e.getMessage());
+			}
+		}
+
+		public void close() {
+			if (inf == null) return;
+			release(inf);
+			BufferPool.getDefault().release(input);
+			inf = null; input = null;
+		}
+	}
+}
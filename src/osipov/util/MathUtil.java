@@ -2,7 +2,13 @@ package osipov.util;
 
 import java.math.BigInteger;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * Math utilities, see function javadocs for details 
@@ -14,25 +20,39 @@ public class MathUtil {
 	public static final BigInteger ZERO = new BigInteger("0", 10);
 	public static final BigInteger ONE = new BigInteger("1", 10);
 	public static final BigInteger TWO = new BigInteger("2", 10);	
-	private static final Random rnd = new Random(System.currentTimeMillis());
 	
+	/**
+	 * Draws a random BigInteger in [0, n) with the generator of the calling thread, @see RandomSource#current()
+	 */
 	public static BigInteger nextBigInteger(BigInteger n) {
-		return randomBigInteger(rnd, n);
+		return nextBigInteger(RandomSource.current(), n);
 	}
 	
 	/**
 	 * Computes a random BigInteger that is less than the upper bound BigInteger provided to the method.
 	 * Since BigInteger doesn't provide a way to generate a random BigInteger in a given range,
-	 * the method tries to generate a random BigInteger with the same number of bits as the BigInteger provided as an argument. 
-	 * The method samples these random BigIntegers continuously until one is found that is less than the upper bound BigInteger.
+	 * the method fills the bits of the upper bound with random longs and 
+	 * samples these random numbers until one is found that is less than the upper bound, 
+	 * which takes less than two tries on average.
 	 * @param rnd Random number generator
-	 * @param n Upper bound BigInteger
+	 * @param n Upper bound BigInteger, positive
 	 * @return BigInteger that is less than the upper bound BigInteger
 	 */
-	private static BigInteger randomBigInteger(Random rnd, BigInteger n) {
+	public static BigInteger nextBigInteger(Random rnd, BigInteger n) {
+		if (n.signum() <= 0) throw new IllegalArgumentException("bound must be positive");
+		int bits = n.bitLength();
+		byte[] magnitude = new byte[(bits + 7) >>> 3];
+		//the top byte keeps as many bits as the bound has beyond the whole bytes below it
+		int top = (1 << (bits - ((magnitude.length - 1) << 3))) - 1;
 		BigInteger i = null;
 		do {
-			i = new BigInteger(n.bitLength(), rnd);
+			for (int j = magnitude.length; j > 0; ) {
+				long r = rnd.nextLong();
+				for (int b = 0; b < 8 && j > 0; b++, r >>>= 8)
+					magnitude[--j] = (byte)r;
+			}
+			magnitude[0] &= top;
+			i = new BigInteger(1, magnitude);
 		} while (i.compareTo(n) != -1);
 		return i;
 	}
@@ -43,49 +63,215 @@ public class MathUtil {
 	private static void testBinomialCoefficient() {
 		if (!binomialCoefficient(new BigInteger("64", 10), new BigInteger("32", 10)).equals(new BigInteger("1832624140942590534", 10)))
 			throw new IllegalStateException();
+		//every path against the recurrence C(n, k) = C(n - 1, k - 1) + C(n - 1, k)
+		BigInteger[] row = new BigInteger[] {ONE};
+		for (int n = 1; n <= 200; n++) {
+			BigInteger[] next = new BigInteger[n + 1];
+			next[0] = next[n] = ONE;
+			for (int k = 1; k < n; k++)
+				next[k] = row[k - 1].add(row[k]);
+			row = next;
+			for (int k = 0; k <= n; k++) {
+				if (!binomialCoefficientAsBigInteger(n, k).equals(row[k])) throw new IllegalStateException(n + " " + k);
+				if (!binomialCoefficient(BigInteger.valueOf(n), BigInteger.valueOf(k)).equals(row[k])) throw new IllegalStateException(n + " " + k);
+				boolean fits = row[k].bitLength() < 64;
+				try {
+					if (binomialCoefficient(n, k) != row[k].longValue() || !fits) throw new IllegalStateException(n + " " + k);
+				} catch (ArithmeticException e) {
+					if (fits) throw new IllegalStateException(n + " " + k);
+				}
+			}
+		}
+		BigInteger big = new BigInteger("100000000000000000000");
+		if (!binomialCoefficient(big, TWO).equals(big.multiply(big.subtract(ONE)).divide(TWO))) throw new IllegalStateException();
 	}
-	
+
+	/**
+	 * Compares the binomial coefficients computed with a loop of BigInteger operations
+	 * with the long and BigInteger fast paths
+	 */
+	private static void benchmarkBinomialCoefficient(int rounds) {
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			BigInteger sum = ZERO;
+			for (int r = 0; r < rounds; r++)
+				for (int k = 0; k <= 60; k += 5)
+					sum = sum.add(binomialCoefficientLoop(BigInteger.valueOf(60), BigInteger.valueOf(k)));
+			long loop = System.nanoTime() - start;
+			start = System.nanoTime();
+			long total = 0;
+			for (int r = 0; r < rounds; r++)
+				for (int k = 0; k <= 60; k += 5)
+					total += binomialCoefficient(60, k);
+			long table = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int r = 0; r < rounds; r++)
+				sum = sum.add(binomialCoefficientAsBigInteger(1000, 500));
+			long tree = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int r = 0; r < rounds; r++)
+				sum = sum.add(binomialCoefficientLoop(BigInteger.valueOf(1000), BigInteger.valueOf(500)));
+			long bigLoop = System.nanoTime() - start;
+			System.out.println("C(60, k) loop: " + loop / rounds / 13 + "ns, long: " + table / rounds / 13
+					+ "ns, C(1000, 500) loop: " + bigLoop / rounds + "ns, product tree: " + tree / rounds + "ns " + (total & 1));
+		}
+	}
+
+	/**
+	 * The binomial coefficient as it used to be computed, for comparison
+	 */
+	private static BigInteger binomialCoefficientLoop(BigInteger n, BigInteger k) {
+		BigInteger result = ONE;
+		if (k.compareTo(n) > 0) return ZERO;
+		for (BigInteger i = ONE; i.compareTo(k) < 1; i = i.add(ONE)) {
+			result = result.multiply(n);
+			n = n.subtract(ONE);
+			result = result.divide(i);
+		}
+		return result;
+	}
+
+	//largest n for which every C(n, k) fits in a long
+	private static final int PASCAL_MAX = 66;
+	//rows of Pascal's triangle computed so far, row n holds C(n, k) for k <= n / 2
+	private static volatile long[][] pascal = new long[][] {{1}};
+	//operands of up to this many bits are multiplied one by one rather than split
+	private static final int PRODUCT_LEAF = 1024;
+
 	/**
 	 * Computes the binomial coefficient (number of unique ways to choose k elements from a set of n elements) over BigIntegers.
+	 * Coefficients that fit in a long are computed in long arithmetic, larger ones as a product of the
+	 * range n - k + 1 .. n divided by k!, each multiplied as a balanced product tree.
 	 * @param n number of elements in the set
 	 * @param k number of elements to choose from the set
 	 * @return number of ways to choose k elements from n elements in the set
 	 */
 	public static BigInteger binomialCoefficient(BigInteger n, BigInteger k) {
-		BigInteger result = ONE;
-	    if (k.compareTo(n) > 0) return ZERO;
-	    for (BigInteger i = ONE; i.compareTo(k) < 1; i = i.add(ONE)) {
-	      result = result.multiply(n); //result *= n--;
-	      n = n.subtract(ONE);
-	      result = result.divide(i); //result /= i;
-	    }
-	    return result;
+		if (k.signum() < 0 || k.compareTo(n) > 0) return ZERO;
+		BigInteger rest = n.subtract(k);
+		if (rest.compareTo(k) < 0) k = rest;
+		if (n.bitLength() < 64) return binomialCoefficientAsBigInteger(n.longValue(), k.longValue());
+		if (k.bitLength() > 31) throw new ArithmeticException("k too large");
+		int m = k.intValue();
+		return product(n.subtract(BigInteger.valueOf(m - 1)), m).divide(product(1, m));
 	}
 
 	/**
 	 * Computes the binomial coefficient (number of unique ways to choose k elements from a set of n elements).
+	 * For n up to 66 the coefficient is looked up in Pascal's triangle, which is computed as far as needed
+	 * on first use and shared by all threads, larger n are computed with k or n - k multiplications, whichever is fewer.
 	 * @param n number of elements in the set
 	 * @param k number of elements to choose from the set
 	 * @return number of ways to choose k elements from n elements in the set
+	 * @throws ArithmeticException if the coefficient does not fit in a long
 	 */
 	public static long binomialCoefficient(long n, long k) {
-	    long result = 1;
-	    if (k > n) return 0;
-	    for (long i = 1; i <= k; i++) {
-	      result *= n--;
-	      result /= i;
-	    }
-	    return result;
+		if (k < 0 || k > n) return 0;
+		if (n - k < k) k = n - k;
+		if (n <= PASCAL_MAX) return pascal((int)n)[(int)k];
+		long result = 1;
+		//C(n - k + i, i) = C(n - k + i - 1, i - 1) * (n - k + i) / i, with the common factor of result and i divided out first
+		for (long i = 1; i <= k; i++) {
+			long g = gcd(result, i);
+			long factor = (n - k + i) / (i / g);
+			result /= g;
+			if (result > Long.MAX_VALUE / factor) throw new ArithmeticException("long overflow");
+			result *= factor;
+		}
+		return result;
 	}
 
 	/**
-	 * Computes the binomial coefficient (number of unique ways to choose k elements from a set of n elements) by converting arguments from type long to type BigInteger. 
+	 * Computes the binomial coefficient (number of unique ways to choose k elements from a set of n elements) as a BigInteger,
+	 * in long arithmetic when the coefficient fits in a long.
 	 * @param n number of elements in the set
 	 * @param k number of elements to choose from the set
 	 * @return number of ways to choose k elements from n elements in the set
 	 */
 	public static BigInteger binomialCoefficientAsBigInteger(long n, long k) {
-		return binomialCoefficient(new BigInteger(Long.toString(n), 10), new BigInteger(Long.toString(k), 10));
+		if (k < 0 || k > n) return ZERO;
+		if (n - k < k) k = n - k;
+		if (n <= PASCAL_MAX) return BigInteger.valueOf(binomialCoefficient(n, k));
+		try {
+			return BigInteger.valueOf(binomialCoefficient(n, k));
+		} catch (ArithmeticException e) {
+			//the loop overflowed, C(n, k) needs more than 63 bits
+		}
+		if (k > Integer.MAX_VALUE) throw new ArithmeticException("k too large");
+		return product(n - k + 1, n).divide(product(1, k));
+	}
+
+	/**
+	 * @return row n of Pascal's triangle, growing the shared triangle if needed
+	 */
+	private static long[] pascal(int n) {
+		long[][] rows = pascal;
+		if (n < rows.length) return rows[n];
+		synchronized (MathUtil.class) {
+			rows = pascal;
+			if (n >= rows.length) {
+				long[][] grown = new long[Math.min(PASCAL_MAX + 1, Math.max(n + 1, rows.length * 2))][];
+				System.arraycopy(rows, 0, grown, 0, rows.length);
+				for (int i = rows.length; i < grown.length; i++) {
+					long[] row = grown[i] = new long[i / 2 + 1];
+					long[] above = grown[i - 1];
+					row[0] = 1;
+					//C(i, j) = C(i - 1, j - 1) + C(i - 1, j) where C(i - 1, j) = C(i - 1, i - 1 - j) beyond the half row above
+					for (int j = 1; j < row.length; j++)
+						row[j] = above[j - 1] + above[Math.min(j, i - 1 - j)];
+				}
+				pascal = rows = grown;
+			}
+			return rows[n];
+		}
+	}
+
+	private static long gcd(long a, long b) {
+		while (b != 0) {
+			long t = a % b;
+			a = b;
+			b = t;
+		}
+		return a;
+	}
+
+	/**
+	 * @return the product of the integers from..to as a balanced product tree, so that the
+	 * operands of each multiplication are of similar size
+	 */
+	private static BigInteger product(long from, long to) {
+		if (from > to) return ONE;
+		if (to - from < 8) {
+			//multiply in long arithmetic as long as the product fits
+			BigInteger result = ONE;
+			long partial = 1;
+			//counted down so that to = Long.MAX_VALUE does not overflow the loop
+			for (long i = to; i >= from; i--) {
+				if (partial > Long.MAX_VALUE / i) {
+					result = result.multiply(BigInteger.valueOf(partial));
+					partial = 1;
+				}
+				partial *= i;
+			}
+			return result.multiply(BigInteger.valueOf(partial));
+		}
+		long mid = from + (to - from) / 2;
+		return product(from, mid).multiply(product(mid + 1, to));
+	}
+
+	/**
+	 * @return the product of count consecutive integers starting at from as a balanced product tree
+	 */
+	private static BigInteger product(BigInteger from, int count) {
+		if (count < 1) return ONE;
+		if (count == 1 || (long)count * from.bitLength() <= PRODUCT_LEAF) {
+			BigInteger result = from;
+			for (int i = 1; i < count; i++)
+				result = result.multiply(from.add(BigInteger.valueOf(i)));
+			return result;
+		}
+		int half = count / 2;
+		return product(from, half).multiply(product(from.add(BigInteger.valueOf(half)), count - half));
 	}
 	
 	
@@ -95,7 +281,7 @@ public class MathUtil {
 	 * @return a String representing the input array as a matrix
 	 */
 	public static String toString(int[][] a) {
-		StringBuffer buf = new StringBuffer();
+		StringBuilder buf = new StringBuilder();
 		for (int i = 0; i < a.length; i++) {
 			for (int j = 0; j < a[i].length; j++) {
 				buf.append(a[i][j]); buf.append(" ");
@@ -111,15 +297,60 @@ public class MathUtil {
 	 * @return
 	 */
 	public static int[][] clone(int[][] s) {
-		int[][] d = new int[s.length][0];
+		int[][] d = new int[s.length][];
 		for (int i = 0; i < s.length; i++) {
 			d[i] = new int[s[i].length];
-			for (int j = 0; j < s[i].length; j++)
-				d[i][j] = s[i][j];
+			System.arraycopy(s[i], 0, d[i], 0, s[i].length);
 		}
 		return d;
 	}
 
+	/**
+	 * Work on a range of indices, @see #parallel(int, ExecutorService, int, Range)
+	 */
+	interface Range {
+		void run(int from, int to);
+	}
+
+	/**
+	 * Divides [0, n) into contiguous ranges of nearly equal size, runs each on the executor and waits for them,
+	 * exceptions thrown by a range are rethrown to the caller
+	 * @param n number of indices
+	 * @param executor executor to run the ranges on, null to run [0, n) on the calling thread
+	 * @param parallelism number of ranges
+	 * @param range the work
+	 */
+	static void parallel(int n, ExecutorService executor, int parallelism, final Range range) {
+		if (executor == null || parallelism < 2 || n < 2) {
+			range.run(0, n);
+			return;
+		}
+		int parts = Math.min(parallelism, n);
+		List futures = new ArrayList(parts);
+		for (int p = 0; p < parts; p++) {
+			final int from = (int)((long)n * p / parts), to = (int)((long)n * (p + 1) / parts);
+			futures.add(executor.submit(new Runnable() {
+				public void run() {
+					range.run(from, to);
+				}
+			}));
+		}
+		try {
+			for (int p = 0; p < parts; p++)
+				((Future)futures.get(p)).get();
+		} catch (InterruptedException e) {
+			for (int p = 0; p < parts; p++)
+				((Future)futures.get(p)).cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			if (cause instanceof Error) throw (Error)cause;
+			throw new IllegalStateException(String.valueOf(cause));
+		}
+	}
+
 	/**
 	 * Randomly chooses from a uniform distribution of integers in the range [i, j)
 	 * @param random random number generator
@@ -133,8 +364,248 @@ public class MathUtil {
 		else
 			return i + random.nextInt(j - i);
 	}
+
+	/**
+	 * Randomly chooses from a uniform distribution of integers in the range [i, j) with the generator
+	 * of the calling thread, @see RandomSource#current()
+	 * @param i beginning of the range (inclusive)
+	 * @param j ending of the range (exclusive)
+	 * @return random integer between i and j
+	 */
+	public static final int sampleUniformDistribution(int i, int j) {
+		return sampleUniformDistribution(RandomSource.current(), i, j);
+	}
+
+	/**
+	 * Fills the array with integers chosen from a uniform distribution in the range [i, j)
+	 * @param random random number generator
+	 * @param i beginning of the range (inclusive)
+	 * @param j ending of the range (exclusive)
+	 * @param a the array to fill
+	 * @return the array
+	 */
+	public static final int[] sampleUniformDistribution(Random random, int i, int j, int[] a) {
+		if (i >= j) throw new IllegalArgumentException();
+		if (random instanceof RandomSource) {
+			((RandomSource)random).nextInts(a, 0, a.length, i, j);
+		} else {
+			for (int k = 0; k < a.length; k++)
+				a[k] = i + random.nextInt(j - i);
+		}
+		return a;
+	}
+
+	/**
+	 * Fills the array with integers chosen from a uniform distribution in the range [i, j) with the
+	 * generator of the calling thread, @see RandomSource#current()
+	 */
+	public static final int[] sampleUniformDistribution(int i, int j, int[] a) {
+		return sampleUniformDistribution(RandomSource.current(), i, j, a);
+	}
 	
 	
+	/**
+	 * Draws a bit string of n bits with k 1 bits uniformly at random, with the generator of the calling thread
+	 * @see #sampleBits(Random, int, int, long[])
+	 */
+	public static long[] sampleBits(int n, int k, long[] words) {
+		return sampleBits(RandomSource.current(), n, k, words);
+	}
+
+	/**
+	 * Draws a bit string of n bits with k 1 bits uniformly at random, the same distribution as
+	 * unranking a uniformly random index in [0, C(n, k)) @see #unrank(int, int, BigInteger, long[]) without
+	 * any BigInteger arithmetic. Uses Robert Floyd's algorithm with the bit string itself as the set of
+	 * chosen bits, which takes k random numbers, and chooses the n - k 0 bits instead when k > n / 2.
+	 * @param random random number generator, it is not shared with other threads by this method
+	 * @param n number of bits
+	 * @param k number of 1 bits
+	 * @param words array to store the bits in, bit i in bit i % 64 of words[i / 64], a new one
+	 * is allocated if it is null or too short
+	 * @return the array holding the bits
+	 */
+	public static long[] sampleBits(Random random, int n, int k, long[] words) {
+		if (k < 0 || k > n) throw new IllegalArgumentException();
+		words = words(words, n);
+		sampleBits(random, n, k, words, 0);
+		return words;
+	}
+
+	/**
+	 * Draws count bit strings of n bits with k 1 bits into consecutive ranges of the array,
+	 * bit string i takes the (n + 63) / 64 words from i * ((n + 63) / 64) on
+	 * @see #sampleBits(Random, int, int, long[])
+	 * @throws IllegalArgumentException if the count * ((n + 63) / 64) words exceed the maximum array length
+	 * @return the array holding the bit strings
+	 */
+	public static long[] sampleBits(Random random, int n, int k, int count, long[] words) {
+		if (k < 0 || k > n || count < 0) throw new IllegalArgumentException();
+		int stride = (n + 63) >>> 6;
+		if ((long)stride * count > Integer.MAX_VALUE) throw new IllegalArgumentException(count + " bit strings of " + n + " bits do not fit an array");
+		if (words == null || words.length < stride * count) words = new long[stride * count];
+		else Arrays.fill(words, 0, stride * count, 0);
+		for (int i = 0; i < count; i++)
+			sampleBits(random, n, k, words, i * stride);
+		return words;
+	}
+
+	/**
+	 * Sets k of the n cleared bits from the offset on
+	 */
+	private static void sampleBits(Random random, int n, int k, long[] words, int offset) {
+		boolean complement = k > n / 2;
+		if (complement) k = n - k;
+		//Floyd: for each of the last k positions j pick t in [0, j], take j if t was already taken
+		for (int j = n - k; j < n; j++) {
+			int t = random.nextInt(j + 1);
+			int w = offset + (t >>> 6);
+			if ((words[w] & 1L << t) == 0) words[w] |= 1L << t;
+			else words[offset + (j >>> 6)] |= 1L << j;
+		}
+		if (complement) {
+			int stride = (n + 63) >>> 6;
+			for (int i = 0; i < stride; i++)
+				words[offset + i] = ~words[offset + i];
+			if ((n & 63) != 0) words[offset + stride - 1] &= (1L << n) - 1;
+		}
+	}
+
+	/**
+	 * Chooses k elements uniformly at random from a stream of unknown length, each element is offered in turn
+	 * and either kept, in one of k slots, or skipped (reservoir sampling). Once the stream ends, the positions
+	 * of the kept elements are a uniformly random k element subset of the positions of the stream.
+	 *
+	 * Usage:
+	 * MathUtil.Reservoir reservoir = new MathUtil.Reservoir(10, random);
+	 * for (String line; (line = in.readLine()) != null; ) {
+	 *     int slot = reservoir.offer();
+	 *     if (slot >= 0) sample[slot] = line;
+	 * }
+	 *
+	 * Not thread safe.
+	 */
+	public static class Reservoir {
+		private final Random random;
+		private final long[] positions;
+		private long count = 0;
+
+		/**
+		 * Uses the generator of the calling thread
+		 * @param k number of elements to keep
+		 */
+		public Reservoir(int k) {
+			this(k, RandomSource.current());
+		}
+
+		/**
+		 * @param k number of elements to keep
+		 * @param random random number generator
+		 */
+		public Reservoir(int k, Random random) {
+			if (k < 0) throw new IllegalArgumentException();
+			this.positions = new long[k];
+			this.random = random;
+		}
+
+		/**
+		 * Offers the next element of the stream
+		 * @return the slot the element should be kept in, replacing the element kept there, or -1 to skip it
+		 */
+		public int offer() {
+			long i = count++;
+			if (i < positions.length) {
+				positions[(int)i] = i;
+				return (int)i;
+			}
+			//keep the element with probability k / (i + 1) in a uniformly chosen slot
+			long j = i < Integer.MAX_VALUE ? random.nextInt((int)i + 1) : nextLong(random, i + 1);
+			if (j >= positions.length) return -1;
+			positions[(int)j] = i;
+			return (int)j;
+		}
+
+		/**
+		 * @return number of elements offered so far
+		 */
+		public long getCount() {
+			return count;
+		}
+
+		/**
+		 * @return the position in the stream of the element kept in a slot
+		 */
+		public long getPosition(int slot) {
+			return positions[slot];
+		}
+
+		/**
+		 * @return the positions of the kept elements as a bit string of as many bits as elements offered so far,
+		 * @see #sampleBits(Random, int, int, long[])
+		 */
+		public long[] toBits(long[] words) {
+			if (count > Integer.MAX_VALUE) throw new IllegalStateException("too many elements");
+			words = words(words, (int)count);
+			for (int i = 0; i < positions.length && i < count; i++)
+				words[(int)(positions[i] >>> 6)] |= 1L << positions[i];
+			return words;
+		}
+	}
+
+	/**
+	 * @return a uniformly distributed long in [0, bound)
+	 */
+	private static long nextLong(Random random, long bound) {
+		//reject the values of the last incomplete multiple of the bound
+		long limit = Long.MAX_VALUE - Long.MAX_VALUE % bound;
+		long r;
+		do {
+			r = random.nextLong() >>> 1;
+		} while (r >= limit);
+		return r % bound;
+	}
+
+	/**
+	 * Pearson's chi-squared test of the bit strings drawn by each sampler against the uniform distribution
+	 * over all C(n, k) bit strings, with C(n, k) - 1 degrees of freedom
+	 */
+	private static void testSampleBits() {
+		Random random = new Random(1);
+		int[][] cases = new int[][] {{6, 2}, {6, 5}, {7, 3}, {10, 0}, {70, 69}};
+		for (int c = 0; c < cases.length; c++) {
+			int n = cases[c][0], k = cases[c][1];
+			int combinations = (int)binomialCoefficient(n, k), samples = combinations * 1000;
+			for (int sampler = 0; sampler < 3; sampler++) {
+				long[] observed = new long[combinations];
+				long[] words = sampler == 1 ? sampleBits(random, n, k, samples, null) : null;
+				int stride = (n + 63) >>> 6;
+				for (int i = 0; i < samples; i++) {
+					if (sampler == 0) {
+						words = sampleBits(random, n, k, words);
+					} else if (sampler == 2) {
+						Reservoir reservoir = new Reservoir(k, random);
+						for (int j = 0; j < n; j++)
+							reservoir.offer();
+						words = reservoir.toBits(words);
+					}
+					long[] bits = words;
+					if (sampler == 1) {
+						bits = new long[stride];
+						System.arraycopy(words, i * stride, bits, 0, stride);
+					}
+					observed[rank(bits, n).intValue()]++;
+				}
+				double expected = (double)samples / combinations, chi2 = 0;
+				for (int i = 0; i < combinations; i++)
+					chi2 += (observed[i] - expected) * (observed[i] - expected) / expected;
+				//for large degrees of freedom chi2 is about normal with mean df and variance 2 df
+				int df = Math.max(1, combinations - 1);
+				boolean uniform = chi2 < df + 4 * Math.sqrt(2.0 * df) + 10;
+				System.out.println("C(" + n + ", " + k + ") sampler " + sampler + ": chi2 = " + chi2 + ", df = " + df + (uniform ? "" : " NOT UNIFORM"));
+				if (!uniform) throw new IllegalStateException();
+			}
+		}
+	}
+
 	private static void testGetNthBitstring() {
 		byte[] ba = null;
 		ba = getBitSetByIndex(1, 1, 0);
@@ -154,6 +625,28 @@ public class MathUtil {
 		System.out.println("(4,2,5)=" + Arrays.toString(ba));	
 	}
 	
+	/**
+	 * Checks that unranking, ranking and enumerating the bit strings agree with the recursive definition
+	 */
+	private static void testUnrank() {
+		for (int length = 1; length <= 70; length += 23) {
+			for (int ones = 0; ones <= Math.min(length, 3); ones++) {
+				BigInteger index = ZERO;
+				BitSet bits = new BitSet();
+				for (Combinations c = new Combinations(length, ones); c.next(); index = index.add(ONE)) {
+					byte[] expected = getNthBitstring(new byte[length], length, ones, index.add(ONE));
+					unrank(length, ones, index, bits);
+					for (int i = 0; i < length; i++)
+						if (bits.get(i) != (expected[i] == 1)) throw new IllegalStateException(length + " " + ones + " " + index);
+					if (!c.bitSet().equals(bits) || !rank(bits, length).equals(index)) throw new IllegalStateException(length + " " + ones + " " + index);
+				}
+				if (!index.equals(binomialCoefficientAsBigInteger(length, ones))) throw new IllegalStateException();
+			}
+		}
+		BigInteger index = binomialCoefficientAsBigInteger(10000, 5000).shiftRight(1);
+		if (!rank(unrank(10000, 5000, index, (long[])null), 10000).equals(index)) throw new IllegalStateException();
+	}
+
 	/**
 	 * Consider all bit strings of specified length that have a specified number of 1 bits. 
 	 * The exact number of such bit strings can be found using the binomial coefficient. 
@@ -214,10 +707,271 @@ public class MathUtil {
 	 */
 	public static byte[] getBitSetByIndex(int length, int numOnes, BigInteger n, boolean zeroIndexed) {
 		byte[] ba = new byte[length];
-		return getNthBitstring(ba, length, numOnes, zeroIndexed ? n.add(ONE) : n);
+		long[] words = unrank(length, numOnes, zeroIndexed ? n : n.subtract(ONE), (long[])null);
+		for (int i = 0; i < length; i++)
+			ba[i] = (byte)(words[i >>> 6] >>> i & 1);
+		return ba;
+	}
+
+	/**
+	 * Returns the bit string of @see #getBitSetByIndex(int, int, BigInteger, boolean) packed into longs,
+	 * bit i of the string is bit i % 64 of words[i / 64]. The bit string is computed from its highest bit
+	 * down in a single pass, updating the binomial coefficient it is compared with at each bit rather than
+	 * computing it anew, in long arithmetic once the coefficient fits in a long.
+	 * @param length number of bits in the bit string
+	 * @param numOnes number of 1 bits in the bit string
+	 * @param index zero indexed position of the bit string in the range [0, C(length, numOnes))
+	 * @param words array to store the bits in, a new one is allocated if it is null or too short
+	 * @return the array holding the bits
+	 */
+	public static long[] unrank(int length, int numOnes, long index, long[] words) {
+		return unrank(length, numOnes, index, null, words(words, length), null);
+	}
+
+	/**
+	 * @see #unrank(int, int, long, long[])
+	 */
+	public static long[] unrank(int length, int numOnes, BigInteger index, long[] words) {
+		return unrank(length, numOnes, 0, index, words(words, length), null);
+	}
+
+	/**
+	 * Same as @see #unrank(int, int, long, long[]) with the bits stored in a BitSet
+	 * @param bits the BitSet to store the bits in, it is cleared first
+	 * @return the BitSet
+	 */
+	public static BitSet unrank(int length, int numOnes, BigInteger index, BitSet bits) {
+		bits.clear();
+		unrank(length, numOnes, 0, index, null, bits);
+		return bits;
+	}
+
+	/**
+	 * The inverse of @see #unrank(int, int, BigInteger, BitSet)
+	 * @param bits bit string
+	 * @param length number of bits in the bit string, bits at or above it are ignored
+	 * @return zero indexed position of the bit string among the bit strings of its length with as many 1 bits
+	 */
+	public static BigInteger rank(BitSet bits, int length) {
+		return rank(bits, null, length);
+	}
+
+	/**
+	 * The inverse of @see #unrank(int, int, BigInteger, long[])
+	 */
+	public static BigInteger rank(long[] words, int length) {
+		return rank(null, words, length);
+	}
+
+	private static long[] words(long[] words, int length) {
+		int n = (length + 63) >>> 6;
+		if (words == null || words.length < n) return new long[n];
+		Arrays.fill(words, 0, n, 0);
+		return words;
+	}
+
+	/**
+	 * Walks the bits from i = length - 1 down keeping c = C(i + 1, j) for the j ones left to place, the bit
+	 * is set if the index is below C(i, j - 1) = c * j / (i + 1), otherwise the index is reduced by it,
+	 * which is how @see #getNthBitstring(byte[], int, int, BigInteger) orders the bit strings
+	 */
+	private static long[] unrank(int length, int numOnes, long index, BigInteger bigIndex, long[] words, BitSet bits) {
+		if (numOnes < 0 || numOnes > length) throw new ArrayIndexOutOfBoundsException();
+		int i = length, j = numOnes;
+		long c = -1;
+		if (length <= PASCAL_MAX || bigIndex == null) {
+			try {
+				c = binomialCoefficient(length, numOnes);
+			} catch (ArithmeticException e) {
+				//the index is a long, only the first few coefficients need BigInteger arithmetic
+			}
+		}
+		if (c < 0 || (bigIndex != null && bigIndex.bitLength() > 63)) {
+			BigInteger big = binomialCoefficientAsBigInteger(length, numOnes);
+			BigInteger r = bigIndex != null ? bigIndex : BigInteger.valueOf(index);
+			if (r.signum() < 0 || r.compareTo(big) >= 0) throw new ArrayIndexOutOfBoundsException();
+			for (; j > 0 && j < i && big.bitLength() > 62; i--) {
+				BigInteger d = big.multiply(BigInteger.valueOf(j)).divide(BigInteger.valueOf(i));
+				if (r.compareTo(d) < 0) {
+					set(words, bits, i - 1);
+					big = d;
+					j--;
+				} else {
+					r = r.subtract(d);
+					big = big.subtract(d);
+				}
+			}
+			c = big.longValue();
+			index = r.longValue();
+		} else {
+			if (bigIndex != null) index = bigIndex.longValue();
+			if (index < 0 || index >= c) throw new ArrayIndexOutOfBoundsException();
+		}
+		for (; j > 0 && j < i; i--) {
+			long d = next(c, i, j);
+			if (index < d) {
+				set(words, bits, i - 1);
+				c = d;
+				j--;
+			} else {
+				index -= d;
+				c -= d;
+			}
+		}
+		//the remaining j bits are all ones
+		for (int k = 0; k < j; k++)
+			set(words, bits, k);
+		return words;
+	}
+
+	/**
+	 * @return C(i - 1, j - 1) given c = C(i, j), from Pascal's triangle or as c * j / i without overflow,
+	 * i / g divides j since c / g and i / g have no common factor
+	 */
+	private static long next(long c, int i, int j) {
+		if (i <= PASCAL_MAX + 1) return pascal(i - 1)[Math.min(j - 1, i - j)];
+		long g = gcd(c, i);
+		return c / g * (j / (i / g));
+	}
+
+	private static void set(long[] words, BitSet bits, int i) {
+		if (words != null) words[i >>> 6] |= 1L << i;
+		else bits.set(i);
+	}
+
+	private static BigInteger rank(BitSet bits, long[] words, int length) {
+		int ones = 0;
+		for (int i = 0; i < length; i++)
+			if (get(words, bits, i)) ones++;
+		BigInteger big = binomialCoefficientAsBigInteger(length, ones), r = ZERO;
+		int i = length, j = ones;
+		for (; j > 0 && big.bitLength() > 62; i--) {
+			BigInteger d = big.multiply(BigInteger.valueOf(j)).divide(BigInteger.valueOf(i));
+			if (get(words, bits, i - 1)) {
+				big = d;
+				j--;
+			} else {
+				r = r.add(d);
+				big = big.subtract(d);
+			}
+		}
+		long c = big.longValue(), index = 0;
+		for (; j > 0; i--) {
+			long d = next(c, i, j);
+			if (get(words, bits, i - 1)) {
+				c = d;
+				j--;
+			} else {
+				index += d;
+				c -= d;
+			}
+		}
+		return r.signum() == 0 ? BigInteger.valueOf(index) : r.add(BigInteger.valueOf(index));
+	}
+
+	private static boolean get(long[] words, BitSet bits, int i) {
+		return words != null ? (words[i >>> 6] >>> i & 1) != 0 : bits.get(i);
+	}
+
+	/**
+	 * Enumerates all bit strings of a length with a number of 1 bits in the order of
+	 * @see #unrank(int, int, BigInteger, BitSet), stepping from each bit string to the next rather than
+	 * unranking each one. The complement of the bit strings runs through its combinations in increasing
+	 * order as integers, for up to 64 bits the next one is computed in a few long operations
+	 * (Gosper's hack), longer ones are kept in a BitSet and stepped in time proportional to the bits that change.
+	 *
+	 * Usage:
+	 * for (MathUtil.Combinations c = new MathUtil.Combinations(20, 3); c.next(); )
+	 *     use(c.bits());
+	 *
+	 * Not thread safe.
+	 */
+	public static class Combinations {
+		private final int length;
+		private final int numOnes;
+		private final long mask;
+		//complement of the current bit string for up to 64 bits and the complement of the last one
+		private long complement, last;
+		//the current bit string for more than 64 bits, or a copy of it
+		private final BitSet bits = new BitSet();
+		private boolean started = false, done = false, copied = false;
+
+		/**
+		 * @param length number of bits in each bit string
+		 * @param numOnes number of 1 bits in each bit string
+		 */
+		public Combinations(int length, int numOnes) {
+			if (numOnes < 0 || numOnes > length) throw new IllegalArgumentException();
+			this.length = length;
+			this.numOnes = numOnes;
+			this.mask = length >= 64 ? -1L : (1L << length) - 1;
+			//the complement starts with its ones at the bottom and ends with them at the top
+			int zeros = length - numOnes;
+			this.last = zeros >= 64 ? -1L : mask ^ (mask >>> zeros);
+		}
+
+		/**
+		 * Moves to the next bit string, the first call moves to the bit string at index 0
+		 * @return false if there are no more bit strings
+		 */
+		public boolean next() {
+			if (done) return false;
+			copied = false;
+			if (!started) {
+				started = true;
+				if (length <= 64) complement = length - numOnes >= 64 ? -1L : (1L << (length - numOnes)) - 1;
+				else bits.set(length - numOnes, length);
+				return true;
+			}
+			if (length <= 64) {
+				if (complement == last) {
+					done = true;
+					return false;
+				}
+				//next larger integer with as many 1 bits
+				long lowest = complement & -complement;
+				long ripple = complement + lowest;
+				complement = (((ripple ^ complement) >>> 2) / lowest) | ripple;
+				return true;
+			}
+			//in the complement, move the top bit of the lowest run of ones up by one and the rest of the run to the bottom
+			int p = bits.nextClearBit(0);
+			int q = bits.nextSetBit(p);
+			if (p >= length || q < 0 || q >= length) {
+				done = true;
+				return false;
+			}
+			bits.clear(q);
+			bits.set(q - p - 1, q);
+			bits.clear(0, q - p - 1);
+			return true;
+		}
+
+		/**
+		 * @return the current bit string, for a length of up to 64 bits
+		 */
+		public long bits() {
+			if (length > 64) throw new IllegalStateException("more than 64 bits");
+			return ~complement & mask;
+		}
+
+		/**
+		 * @return the current bit string, the BitSet is reused and must not be modified
+		 */
+		public BitSet bitSet() {
+			if (length <= 64 && !copied) {
+				bits.clear();
+				for (long b = bits(); b != 0; b &= b - 1)
+					bits.set(Long.numberOfTrailingZeros(b));
+				copied = true;
+			}
+			return bits;
+		}
 	}
 	
 	/**
+	 * Reference definition of the ordering of the bit strings, @see #unrank(int, int, BigInteger, long[])
+	 * computes the same bit strings iteratively.
 	 * Recursively constructs a bit string with a pre-specified number of 1 bits
 	 * based on a unique and consistent ordering of the space of such possible strings.
 	 * @param ba storage space for the bit string
@@ -254,6 +1008,9 @@ public class MathUtil {
 	
 	public static void main(String[] args) {
 		//testBinomialCoefficient();
+		//benchmarkBinomialCoefficient(10000);
 		//testGetNthBitstring();
+		//testUnrank();
+		//testSampleBits();
 	}
 }
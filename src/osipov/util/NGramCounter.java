@@ -0,0 +1,709 @@
+package osipov.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Counts the 1..n-grams of a corpus, with the words and ngrams of
+ * @see WordUtil#ngrams(java.util.Collection, CharSequence, String, int), in parallel:
+ * - a memory mapped file is split into line aligned chunks, @see MappedFile#split(int), a reader
+ *   or an iterator over lines is read by the calling thread and handed out in batches of lines
+ * - each task counts into a table of its own, ngrams are hashed by @see NGrams and counted in
+ *   open addressing arrays along with the text of each distinct ngram, no String is created per ngram
+ * - a table that grows over its share of the memory budget is written to a temporary file as a run
+ *   sorted by hash and emptied, the tables are merged when the results are requested, in memory
+ *   or, once anything was spilled, by merging the sorted runs
+ *
+ * Ngrams whose hashes collide are counted together under the text of the first one seen.
+ *
+ * Usage:
+ * NGramCounter counter = new NGramCounter(WordUtil.SPACE, 3, executor, 4);
+ * counter.count(IOUtil.map("corpus.txt"));
+ * List top = counter.top(100);
+ * counter.clear();
+ *
+ * The count methods can be called several times and from several threads, counts accumulate until
+ * @see #clear(). The results must not be requested while counting is in progress.
+ *
+ * @author @osipov
+ */
+public class NGramCounter {
+	public static final long DEFAULT_BUDGET = 256L << 20;
+	//lines per task when reading from a reader or an iterator
+	private static final int BATCH = 1024;
+	//most runs merged at once
+	private static final int FAN_IN = 64;
+
+	/**
+	 * An ngram and the number of times it occurred
+	 */
+	public static class Entry {
+		private final String ngram;
+		private final long hash;
+		private final long count;
+
+		Entry(String ngram, long hash, long count) {
+			this.ngram = ngram;
+			this.hash = hash;
+			this.count = count;
+		}
+
+		public String getNGram() {
+			return ngram;
+		}
+
+		/**
+		 * @see NGrams#hash(String[])
+		 */
+		public long getHash() {
+			return hash;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public String toString() {
+			return ngram + "\t" + count;
+		}
+	}
+
+	/**
+	 * Orders entries by descending count and ngrams with the same count alphabetically
+	 */
+	private static final Comparator RANK = new Comparator() {
+		public int compare(Object o1, Object o2) {
+			Entry a = (Entry)o1, b = (Entry)o2;
+			if (a.count != b.count) return a.count > b.count ? -1 : 1;
+			return a.ngram.compareTo(b.ngram);
+		}
+	};
+
+	private final String delim;
+	private final int n;
+	private final ExecutorService executor;
+	private final int parallelism;
+	private final long budget;
+	private final File dir;
+	//tables not in use by a task, and all tables
+	private final ConcurrentLinkedQueue idle = new ConcurrentLinkedQueue();
+	private final List workers = Collections.synchronizedList(new ArrayList());
+	//bytes each table may take, the budget divided among the tables created so far
+	private volatile long share;
+	//sorted runs spilled to disk
+	private final List runs = new ArrayList();
+	private Table result = null;
+
+	/**
+	 * @param delim word delimiter @see WordUtil#ngrams(java.util.Collection, CharSequence, String, int)
+	 * @param n the length of the longest ngram
+	 * @param executor executes the counting tasks
+	 * @param parallelism number of tasks to keep the executor busy with
+	 */
+	public NGramCounter(String delim, int n, ExecutorService executor, int parallelism) {
+		this(delim, n, executor, parallelism, DEFAULT_BUDGET, null);
+	}
+
+	/**
+	 * @param delim word delimiter @see WordUtil#ngrams(java.util.Collection, CharSequence, String, int)
+	 * @param n the length of the longest ngram
+	 * @param executor executes the counting tasks
+	 * @param parallelism number of tasks to keep the executor busy with
+	 * @param budget approximate number of bytes all tables may take before they are spilled to disk
+	 * @param dir directory for the spilled runs, null for the default temporary directory
+	 */
+	public NGramCounter(String delim, int n, ExecutorService executor, int parallelism, long budget, File dir) {
+		if (n < 1 || parallelism < 1 || budget < 1) throw new IllegalArgumentException();
+		this.delim = delim;
+		this.n = n;
+		this.executor = executor;
+		this.parallelism = parallelism;
+		this.budget = budget;
+		this.share = budget;
+		this.dir = dir;
+	}
+
+	/**
+	 * Counts the ngrams of the lines of a memory mapped file, the chunks of the file are counted in parallel
+	 * @return this counter
+	 * @throws IOException
+	 */
+	public NGramCounter count(MappedFile file) throws IOException {
+		long[] chunks = file.split(parallelism * 4);
+		Tasks tasks = new Tasks();
+		for (int i = 0; i < chunks.length - 1; i++)
+			tasks.submit(file.lines(chunks[i], chunks[i + 1]));
+		tasks.await();
+		return this;
+	}
+
+	/**
+	 * Counts the ngrams of the lines read from the reader, batches of lines are counted in parallel
+	 * @return this counter
+	 * @throws IOException
+	 */
+	public NGramCounter count(Reader reader) throws IOException {
+		BufferedReader in = reader instanceof BufferedReader ? (BufferedReader)reader : new BufferedReader(reader, IOUtil.CACHE_SIZE);
+		Tasks tasks = new Tasks();
+		for (String line; (line = in.readLine()) != null; )
+			tasks.add(line);
+		tasks.await();
+		return this;
+	}
+
+	/**
+	 * Counts the ngrams of the lines, batches of lines are counted in parallel
+	 * @param lines iterator over CharSequence lines, a line is kept past the call to next()
+	 * (as a string) so the iterator must not reuse them
+	 * @return this counter
+	 * @throws IOException
+	 */
+	public NGramCounter count(Iterator lines) throws IOException {
+		Tasks tasks = new Tasks();
+		while (lines.hasNext())
+			tasks.add(lines.next().toString());
+		tasks.await();
+		return this;
+	}
+
+	/**
+	 * @param k number of ngrams to return
+	 * @return list of @see Entry of the k most frequent ngrams by descending count
+	 * @throws IOException
+	 */
+	public synchronized List top(int k) throws IOException {
+		if (k < 1) return new ArrayList();
+		//the worst of the best k so far is at the head
+		PriorityQueue best = new PriorityQueue(k + 1, Collections.reverseOrder(RANK));
+		if (merge()) {
+			Run run = new Run((File)runs.get(0));
+			try {
+				while (run.next())
+					if (best.size() < k || run.count >= ((Entry)best.peek()).count)
+						offer(best, new Entry(run.text.toString(), run.key, run.count), k);
+			} finally {
+				run.close();
+			}
+		} else {
+			for (int slot = result.next(-1); slot >= 0; slot = result.next(slot))
+				if (best.size() < k || result.counts[slot] >= ((Entry)best.peek()).count)
+					offer(best, new Entry(result.text(slot), result.keys[slot], result.counts[slot]), k);
+		}
+		List top = new ArrayList(best);
+		Collections.sort(top, RANK);
+		return top;
+	}
+
+	/**
+	 * Writes the full frequency table as lines of an ngram, a tab and its count, in no particular order
+	 * @param out the table is written to
+	 * @return number of distinct ngrams
+	 * @throws IOException
+	 */
+	public synchronized long writeTo(Appendable out) throws IOException {
+		long size = 0;
+		if (merge()) {
+			Run run = new Run((File)runs.get(0));
+			try {
+				for (; run.next(); size++)
+					out.append(run.text).append('\t').append(Long.toString(run.count)).append('\n');
+			} finally {
+				run.close();
+			}
+		} else {
+			for (int slot = result.next(-1); slot >= 0; slot = result.next(slot), size++) {
+				int offset = (int)(result.refs[slot] >>> 32);
+				out.append(result.text, offset, offset + (int)result.refs[slot]);
+				out.append('\t').append(Long.toString(result.counts[slot])).append('\n');
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Forgets all counts and deletes the spilled runs
+	 */
+	public synchronized void clear() {
+		synchronized (workers) {
+			for (Iterator i = workers.iterator(); i.hasNext(); )
+				((Worker)i.next()).table.clear();
+		}
+		synchronized (runs) {
+			for (Iterator i = runs.iterator(); i.hasNext(); )
+				((File)i.next()).delete();
+			runs.clear();
+		}
+		result = null;
+	}
+
+	private static void offer(PriorityQueue best, Entry e, int k) {
+		if (best.size() < k) {
+			best.add(e);
+		} else if (RANK.compare(e, best.peek()) < 0) {
+			best.poll();
+			best.add(e);
+		}
+	}
+
+	/**
+	 * Merges the tables of the tasks into the result table or, if a table was spilled, merges
+	 * all tables and runs into a single run
+	 * @return true if the result is the single run, false if it is the result table
+	 */
+	private boolean merge() throws IOException {
+		if (result == null) result = new Table();
+		boolean spilled;
+		synchronized (runs) {
+			spilled = !runs.isEmpty();
+		}
+		Object[] tables = workers.toArray();
+		for (int i = 0; i < tables.length; i++) {
+			Table table = ((Worker)tables[i]).table;
+			if (spilled) {
+				spill(table);
+			} else {
+				result.addAll(table);
+				table.clear();
+				if (result.bytes() > budget) {
+					spill(result);
+					spilled = true;
+				}
+			}
+		}
+		if (!spilled) return false;
+		spill(result);
+		synchronized (runs) {
+			while (runs.size() > 1) {
+				List group = new ArrayList(runs.subList(0, Math.min(FAN_IN, runs.size())));
+				runs.subList(0, group.size()).clear();
+				runs.add(merge(group));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Merges sorted runs into a new one, adding up the counts of each hash, and deletes them
+	 */
+	private File merge(List files) throws IOException {
+		PriorityQueue queue = new PriorityQueue(files.size(), new Comparator() {
+			public int compare(Object o1, Object o2) {
+				long a = ((Run)o1).key, b = ((Run)o2).key;
+				return a < b ? -1 : a > b ? 1 : 0;
+			}
+		});
+		File merged = File.createTempFile("ngrams", ".run", dir);
+		merged.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), IOUtil.CACHE_SIZE));
+		StringBuilder text = new StringBuilder();
+		try {
+			for (int i = 0; i < files.size(); i++) {
+				Run run = new Run((File)files.get(i));
+				if (run.next()) queue.add(run);
+				else run.close();
+			}
+			while (!queue.isEmpty()) {
+				Run run = (Run)queue.poll();
+				long key = run.key, count = run.count;
+				text.setLength(0);
+				text.append(run.text);
+				if (run.next()) queue.add(run);
+				else run.close();
+				while (!queue.isEmpty() && ((Run)queue.peek()).key == key) {
+					run = (Run)queue.poll();
+					count += run.count;
+					if (run.next()) queue.add(run);
+					else run.close();
+				}
+				write(out, key, count, text, 0, text.length());
+			}
+		} finally {
+			while (!queue.isEmpty())
+				((Run)queue.poll()).close();
+			out.close();
+		}
+		for (int i = 0; i < files.size(); i++)
+			((File)files.get(i)).delete();
+		return merged;
+	}
+
+	/**
+	 * Writes the table to a new run sorted by hash and empties it
+	 */
+	private void spill(Table table) throws IOException {
+		if (table.size == 0) return;
+		File file = File.createTempFile("ngrams", ".run", dir);
+		file.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IOUtil.CACHE_SIZE));
+		try {
+			long[] sorted = new long[table.size];
+			int j = 0;
+			for (int slot = table.next(-1); slot >= 0; slot = table.next(slot))
+				sorted[j++] = table.keys[slot];
+			Arrays.sort(sorted);
+			for (int i = 0; i < sorted.length; i++) {
+				int slot = table.find(sorted[i]);
+				int offset = (int)(table.refs[slot] >>> 32);
+				write(out, sorted[i], table.counts[slot], table.text, offset, offset + (int)table.refs[slot]);
+			}
+		} finally {
+			out.close();
+		}
+		synchronized (runs) {
+			runs.add(file);
+		}
+		table.clear();
+	}
+
+	private static void write(DataOutputStream out, long key, long count, CharSequence text, int from, int to) throws IOException {
+		out.writeLong(key);
+		out.writeLong(count);
+		out.writeInt(to - from);
+		for (int i = from; i < to; i++)
+			out.writeChar(text.charAt(i));
+	}
+
+	private Worker borrow() {
+		Worker w = (Worker)idle.poll();
+		if (w == null) {
+			w = new Worker();
+			synchronized (workers) {
+				workers.add(w);
+				share = budget / workers.size();
+			}
+		}
+		return w;
+	}
+
+	/**
+	 * Runs the counting tasks, at most twice the parallelism tasks are submitted at a time so that
+	 * a reader is not read much further ahead than the lines are counted
+	 */
+	private class Tasks {
+		private final int max = parallelism * 2;
+		private final Semaphore permits = new Semaphore(max);
+		private volatile Throwable failure = null;
+		private String[] batch = new String[BATCH];
+		private int size = 0;
+
+		void add(String line) throws IOException {
+			batch[size++] = line;
+			if (size == batch.length) {
+				submit(new Batch(batch, size));
+				batch = new String[BATCH];
+				size = 0;
+			}
+		}
+
+		void submit(final Object input) throws IOException {
+			try {
+				permits.acquire();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			if (failure != null) {
+				permits.release();
+				throw failure();
+			}
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						Worker w = borrow();
+						try {
+							if (input instanceof Batch) {
+								Batch b = (Batch)input;
+								for (int i = 0; i < b.size; i++)
+									w.count(b.lines[i]);
+							} else {
+								MappedFile.Lines lines = (MappedFile.Lines)input;
+								for (CharSequence line; (line = lines.readLine()) != null; )
+									w.count(line);
+							}
+						} catch (Throwable t) {
+							if (failure == null) failure = t;
+						} finally {
+							idle.offer(w);
+							permits.release();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				permits.release();
+				throw e;
+			}
+		}
+
+		/**
+		 * Submits the last batch and waits for all tasks to complete
+		 */
+		void await() throws IOException {
+			if (size > 0) submit(new Batch(batch, size));
+			size = 0;
+			try {
+				permits.acquire(max);
+				permits.release(max);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			if (failure != null) throw failure();
+		}
+
+		private IOException failure() {
+			if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+			if (failure instanceof Error) throw (Error)failure;
+			return failure instanceof IOException ? (IOException)failure : new IOException(String.valueOf(failure));
+		}
+	}
+
+	private static class Batch {
+		final String[] lines;
+		final int size;
+
+		Batch(String[] lines, int size) {
+			this.lines = lines;
+			this.size = size;
+		}
+	}
+
+	/**
+	 * Counts the ngrams of the lines of one task at a time into its table
+	 */
+	private class Worker implements NGrams.LongSink {
+		final NGrams ngrams = new NGrams(delim, n);
+		final Table table = new Table();
+
+		void count(CharSequence line) throws IOException {
+			ngrams.hash(line, this);
+			if (table.bytes() > share) spill(table);
+		}
+
+		public void add(long hash) {
+			table.add(hash, ngrams);
+		}
+	}
+
+	/**
+	 * Open addressing table of ngram hashes, their counts and the position of their text in
+	 * a character buffer, @see LongCountMap
+	 */
+	private static final class Table {
+		private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+		private static final int INITIAL_CAPACITY = 1024;
+
+		long[] keys;
+		//0 marks a free slot
+		long[] counts;
+		//offset of the text in the upper and its length in the lower 32 bits
+		long[] refs;
+		int shift;
+		int size = 0;
+		final StringBuilder text = new StringBuilder();
+
+		Table() {
+			allocate(INITIAL_CAPACITY);
+		}
+
+		/**
+		 * Counts an occurrence of the ngram being emitted, its text is appended if it is new
+		 */
+		void add(long key, NGrams source) {
+			int i = find(key);
+			if (counts[i] != 0) {
+				counts[i]++;
+				return;
+			}
+			int offset = text.length();
+			source.appendTo(text);
+			insert(i, key, 1, offset);
+		}
+
+		void addAll(Table other) {
+			//inserting in the slot order of a larger table into a smaller one piles the keys up in long runs
+			while (keys.length * 2 / 3 < size + other.size)
+				grow();
+			for (int slot = other.next(-1); slot >= 0; slot = other.next(slot)) {
+				long key = other.keys[slot];
+				int i = find(key);
+				if (counts[i] != 0) {
+					counts[i] += other.counts[slot];
+					continue;
+				}
+				int offset = text.length(), from = (int)(other.refs[slot] >>> 32);
+				text.append(other.text, from, from + (int)other.refs[slot]);
+				insert(i, key, other.counts[slot], offset);
+			}
+		}
+
+		String text(int slot) {
+			int offset = (int)(refs[slot] >>> 32);
+			return text.substring(offset, offset + (int)refs[slot]);
+		}
+
+		/**
+		 * @return the slot holding the key or the free slot it would be inserted at
+		 */
+		int find(long key) {
+			final int mask = keys.length - 1;
+			int i = (int)((key * GOLDEN) >>> shift);
+			while (counts[i] != 0 && keys[i] != key)
+				i = (i + 1) & mask;
+			return i;
+		}
+
+		int next(int slot) {
+			for (int i = slot + 1; i < counts.length; i++)
+				if (counts[i] != 0) return i;
+			return -1;
+		}
+
+		/**
+		 * @return approximate number of bytes taken by the arrays and the text buffer
+		 */
+		long bytes() {
+			return keys.length * 24L + text.capacity() * 2L;
+		}
+
+		/**
+		 * Removes all entries and shrinks the arrays and the text buffer back to their initial size
+		 */
+		void clear() {
+			if (keys.length > INITIAL_CAPACITY) allocate(INITIAL_CAPACITY);
+			else if (size > 0) Arrays.fill(counts, 0);
+			size = 0;
+			text.setLength(0);
+			text.trimToSize();
+		}
+
+		private void insert(int i, long key, long count, int offset) {
+			keys[i] = key;
+			counts[i] = count;
+			refs[i] = (long)offset << 32 | (text.length() - offset);
+			if (++size > keys.length * 2 / 3) grow();
+		}
+
+		private void allocate(int capacity) {
+			keys = new long[capacity];
+			counts = new long[capacity];
+			refs = new long[capacity];
+			shift = 64 - Integer.numberOfTrailingZeros(capacity);
+		}
+
+		private void grow() {
+			long[] k = keys, c = counts, r = refs;
+			allocate(keys.length << 1);
+			for (int j = 0; j < k.length; j++) {
+				if (c[j] == 0) continue;
+				int i = find(k[j]);
+				keys[i] = k[j];
+				counts[i] = c[j];
+				refs[i] = r[j];
+			}
+		}
+	}
+
+	/**
+	 * Reads a run record by record
+	 */
+	private static final class Run {
+		private final DataInputStream in;
+		long key, count;
+		final StringBuilder text = new StringBuilder();
+
+		Run(File file) throws IOException {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), IOUtil.CACHE_SIZE));
+		}
+
+		boolean next() throws IOException {
+			try {
+				key = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			count = in.readLong();
+			text.setLength(0);
+			for (int i = in.readInt(); i > 0; i--)
+				text.append(in.readChar());
+			return true;
+		}
+
+		void close() throws IOException {
+			in.close();
+		}
+	}
+
+	/**
+	 * Compares counting the trigrams of a generated corpus line by line with WordUtil.ngrams into a
+	 * HashMap with the counter at increasing parallelism, entirely in memory and with a budget small enough to spill
+	 */
+	private static void benchmarkCount(int lines, int words) throws IOException {
+		File corpus = File.createTempFile("corpus", ".txt");
+		Random random = new Random(1);
+		FileWriter out = new FileWriter(corpus);
+		for (int i = 0; i < lines; i++) {
+			for (int j = 0; j < words; j++)
+				out.write((j == 0 ? "" : WordUtil.SPACE) + "w" + (int)Math.abs(random.nextGaussian() * 500));
+			out.write('\n');
+		}
+		out.close();
+		MappedFile file = new MappedFile(corpus, MappedFile.ISO_8859_1, MappedFile.DEFAULT_WINDOW);
+		long start = System.nanoTime();
+		Map counts = new HashMap();
+		List c = new ArrayList();
+		MappedFile.Lines l = file.lines();
+		for (CharSequence line; (line = l.readLine()) != null; c.clear()) {
+			WordUtil.ngrams(c, line, WordUtil.SPACE, 3);
+			for (int i = 0; i < c.size(); i++) {
+				Integer count = (Integer)counts.get(c.get(i));
+				counts.put(c.get(i), new Integer(count == null ? 1 : count.intValue() + 1));
+			}
+		}
+		System.out.println("WordUtil.ngrams + HashMap: " + (System.nanoTime() - start) / 1000000 + "ms, " + counts.size() + " ngrams");
+		int cores = Runtime.getRuntime().availableProcessors();
+		for (int threads = 1; threads <= cores; threads <<= 1) {
+			ExecutorService executor = Executors.newFixedThreadPool(threads);
+			for (int spill = 0; spill < 2; spill++) {
+				NGramCounter counter = new NGramCounter(WordUtil.SPACE, 3, executor, threads, spill == 0 ? Long.MAX_VALUE : 4L << 20, null);
+				start = System.nanoTime();
+				List top = counter.count(file).top(3);
+				System.out.println(threads + " threads" + (spill == 0 ? "" : ", spilling") + ": "
+						+ (System.nanoTime() - start) / 1000000 + "ms, top " + top);
+				counter.clear();
+			}
+			executor.shutdown();
+		}
+		file.close();
+		corpus.delete();
+	}
+
+	public static void main(String[] args) throws IOException {
+		//benchmarkCount(1000000, 20);
+	}
+}
@@ -0,0 +1,291 @@
+package osipov.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Ngrams of the words of an input, emitted as 64 bit hashes instead of strings, so that counting
+ * them does not go through String.intern() or allocate a string per ngram:
+ * - each word is hashed once, straight from the input through a @see Tokenizer
+ * - the hash of an ngram is folded from the hashes of its words and extended by one word
+ *   for the next longer ngram with the same first word
+ * - ngrams are emitted in the order of @see WordUtil#ngrams(Collection, CharSequence, String, int),
+ *   all unigrams first, then all bigrams and so on
+ *
+ * The hash of an ngram depends only on its words, the same ngram hashes the same regardless of the
+ * input and the delimiter it was found with, @see #hash(String[]). Distinct ngrams may collide.
+ * To see which text a hash stands for, a dictionary can be attached which records the text of
+ * each hash when it is first emitted, for debugging as it costs a string per distinct ngram.
+ *
+ * Usage:
+ * NGrams trigrams = new NGrams(WordUtil.SPACE, 3);
+ * LongCountMap counts = new LongCountMap();
+ * for (CharSequence line; (line = lines.readLine()) != null; )
+ *     trigrams.hash(line, counts);
+ *
+ * Not thread safe, each thread should use its own instance.
+ *
+ * @author @osipov
+ */
+public final class NGrams {
+	/**
+	 * Receives ngram hashes
+	 */
+	public interface LongSink {
+		void add(long hash);
+	}
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final long PRIME = 0x9E3779B97F4A7C15L;
+
+	private final Tokenizer words;
+	private final int n;
+	private Map dictionary = null;
+	//hash of each word and of the ngram being extended at each word, reused across inputs
+	private long[] hashes = new long[64];
+	private long[] ngrams = new long[64];
+	private final StringBuilder text = new StringBuilder();
+	//first word and length - 1 of the ngram being emitted
+	private int word = -1, length = -1;
+
+	/**
+	 * @param delim word delimiter, null for runs of whitespace @see Tokenizer
+	 * @param n the length of the longest ngram
+	 */
+	public NGrams(String delim, int n) {
+		this.words = new Tokenizer(delim);
+		this.n = n;
+	}
+
+	/**
+	 * Attaches a dictionary, hashes are mapped (as Long) to the text of the ngram they were first
+	 * emitted for, the map is shared with the caller
+	 * @param dictionary the map or null to stop recording
+	 * @return this instance
+	 */
+	public NGrams setDictionary(Map dictionary) {
+		this.dictionary = dictionary;
+		return this;
+	}
+
+	public Map getDictionary() {
+		return dictionary;
+	}
+
+	/**
+	 * Emits the hashes of the ngrams of the character sequence
+	 * @return number of hashes emitted
+	 */
+	public int hash(CharSequence s, LongSink sink) {
+		return emit(words.reset(s), sink);
+	}
+
+	/**
+	 * Emits the hashes of the ngrams of the characters in the range
+	 * @return number of hashes emitted
+	 */
+	public int hash(char[] c, int from, int to, LongSink sink) {
+		return emit(words.reset(c, from, to), sink);
+	}
+
+	/**
+	 * Emits the hashes of the ngrams of the single byte content between the position
+	 * and the limit of the buffer
+	 * @return number of hashes emitted
+	 */
+	public int hash(ByteBuffer b, LongSink sink) {
+		return emit(words.reset(b), sink);
+	}
+
+	/**
+	 * Adds the ngrams of the character sequence to the collection as strings, the same strings
+	 * as @see WordUtil#ngrams(Collection, CharSequence, String, int) except they are not interned
+	 * @return the collection
+	 */
+	public Collection strings(Collection c, CharSequence s) {
+		return WordUtil.ngrams(c, words.reset(s), n, false);
+	}
+
+	/**
+	 * @param ngram the words of an ngram
+	 * @return the hash emitted for the ngram
+	 */
+	public static long hash(String[] ngram) {
+		long h = 0;
+		for (int i = 0; i < ngram.length; i++)
+			h = extend(h, hash(ngram[i]));
+		return h;
+	}
+
+	private int emit(Tokenizer words, LongSink sink) {
+		final int count = words.count();
+		if (hashes.length < count) {
+			hashes = new long[Math.max(count, hashes.length << 1)];
+			ngrams = new long[hashes.length];
+		}
+		for (int j = 0; j < count; j++) {
+			long h = FNV_OFFSET;
+			for (int k = words.start(j), end = words.end(j); k < end; k++)
+				h = (h ^ words.charAt(k)) * FNV_PRIME;
+			hashes[j] = h;
+			ngrams[j] = 0;
+		}
+		int emitted = 0;
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < count - i; j++) {
+				long h = ngrams[j] = extend(ngrams[j], hashes[j + i]);
+				word = j;
+				length = i;
+				sink.add(h);
+				if (dictionary != null) record(h);
+				emitted++;
+			}
+		}
+		word = length = -1;
+		return emitted;
+	}
+
+	/**
+	 * Appends the words of the ngram whose hash is being emitted, separated by spaces,
+	 * meant to be called by the sink from @see LongSink#add(long) when it needs the text
+	 * @return the buffer
+	 */
+	public StringBuilder appendTo(StringBuilder buf) {
+		if (word < 0) throw new IllegalStateException("no ngram is being emitted");
+		for (int k = 0; k < length; k++)
+			words.appendTo(word + k, buf).append(WordUtil.SPACE);
+		return words.appendTo(word + length, buf);
+	}
+
+	private void record(long h) {
+		Long key = new Long(h);
+		if (dictionary.containsKey(key)) return;
+		text.setLength(0);
+		dictionary.put(key, appendTo(text).toString());
+	}
+
+	/**
+	 * @return FNV-1a hash of the characters of a word
+	 */
+	private static long hash(String word) {
+		long h = FNV_OFFSET;
+		for (int i = 0; i < word.length(); i++)
+			h = (h ^ word.charAt(i)) * FNV_PRIME;
+		return h;
+	}
+
+	/**
+	 * @return hash of the ngram extended by a word, with the bits of the word hash spread over
+	 * the result so that the order of the words matters
+	 */
+	private static long extend(long ngram, long word) {
+		long h = ngram * PRIME + word;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		return h ^ (h >>> 33);
+	}
+
+	/**
+	 * Compares interned string ngrams with hashed ngrams counted in a LongCountMap
+	 */
+	private static void benchmarkNGrams(int lines, int words) {
+		String[] input = new String[lines];
+		Random random = new Random(1);
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < lines; i++) {
+			line.setLength(0);
+			for (int j = 0; j < words; j++)
+				line.append(j == 0 ? "" : WordUtil.SPACE).append("w").append(random.nextInt(2000));
+			input[i] = line.toString();
+		}
+		NGrams trigrams = new NGrams(WordUtil.SPACE, 3);
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			Collection c = new ArrayList();
+			for (int i = 0; i < lines; i++) {
+				WordUtil.ngrams(c, input[i], 3);
+				c.clear();
+			}
+			long strings = System.nanoTime() - start;
+			start = System.nanoTime();
+			LongCountMap counts = new LongCountMap();
+			for (int i = 0; i < lines; i++)
+				trigrams.hash(input[i], counts);
+			long hashed = System.nanoTime() - start;
+			System.out.println("WordUtil.ngrams: " + strings / 1000000 + "ms, NGrams.hash: " + hashed / 1000000
+					+ "ms, " + counts.size() + " distinct ngrams");
+		}
+	}
+
+	private static void check(Object expected, Object actual) {
+		if (!expected.equals(actual)) throw new IllegalStateException("expected " + expected + " but was " + actual);
+	}
+
+	private static void testNGrams() {
+		NGrams bigrams = new NGrams(",", 2).setDictionary(new HashMap());
+		LongCountMap counts = new LongCountMap();
+		check(7, bigrams.hash("a,b,a,b", counts));
+		check(2L, counts.get(hash(new String[] {"a", "b"})));
+		check(1L, counts.get(hash(new String[] {"b", "a"})));
+		check(2L, counts.get(hash(new String[] {"a"})));
+		check(4, counts.size());
+		Map expected = new HashMap();
+		expected.put(new Long(hash(new String[] {"a"})), "a");
+		expected.put(new Long(hash(new String[] {"b"})), "b");
+		expected.put(new Long(hash(new String[] {"a", "b"})), "a b");
+		expected.put(new Long(hash(new String[] {"b", "a"})), "b a");
+		check(expected, bigrams.getDictionary());
+
+		//the same hashes from a char[] and a ByteBuffer
+		LongCountMap other = new LongCountMap();
+		char[] c = "a,b,a,b".toCharArray();
+		bigrams.hash(c, 0, c.length, other);
+		bigrams.hash(ByteBuffer.wrap("a,b,a,b".getBytes()), other);
+		check(4, other.size());
+		check(4L, other.get(hash(new String[] {"a", "b"})));
+
+		//the strings and the hashes of each ngram agree with WordUtil.ngrams, whatever the delimiter
+		String[] delims = {",", WordUtil.SPACE, "::", null};
+		String[] inputs = {"a,b,c", "a,,b,", "x y  z w", "x::y::::z", " lead\ttab  trail ", ""};
+		for (int d = 0; d < delims.length; d++) {
+			for (int i = 0; i < inputs.length; i++) {
+				final NGrams trigrams = new NGrams(delims[d], 3);
+				Collection strings = trigrams.strings(new ArrayList(), inputs[i]);
+				check(WordUtil.ngrams(new ArrayList(), inputs[i], delims[d], 3), strings);
+				final ArrayList hashes = new ArrayList();
+				final ArrayList texts = new ArrayList();
+				trigrams.hash(inputs[i], new LongSink() {
+					public void add(long hash) {
+						hashes.add(new Long(hash));
+						texts.add(trigrams.appendTo(new StringBuilder()).toString());
+					}
+				});
+				check(strings, texts);
+				Tokenizer words = new Tokenizer(delims[d]).reset(inputs[i]);
+				ArrayList expectedHashes = new ArrayList();
+				for (int n = 1; n <= 3; n++) {
+					for (int j = 0; j + n <= words.count(); j++) {
+						String[] ngram = new String[n];
+						for (int k = 0; k < n; k++)
+							ngram[k] = words.token(j + k);
+						expectedHashes.add(new Long(hash(ngram)));
+					}
+				}
+				check(expectedHashes, hashes);
+			}
+		}
+		System.out.println("NGrams tests passed");
+	}
+
+	public static void main(String[] args) {
+		//testNGrams();
+		//benchmarkNGrams(100000, 20);
+	}
+}
@@ -0,0 +1,249 @@
+package osipov.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resolves URIs against a fixed list of search paths, with the same rules as
+ * @see FileUtil#resolveAsFile(String[], String, boolean) but meant for repeated lookups:
+ * - the search paths are copied and normalized once, the caller's array is never modified
+ * - whether a file exists is answered from a listing of its directory, each directory is
+ *   listed once per time to live instead of probing the file system for every candidate,
+ *   names are compared ignoring case if the directory is on a case insensitive file system
+ * - the result of each URI is memoized for the time to live, until @see #invalidate()
+ *   or until @see #invalidate(String) for the URI
+ *
+ * Usage:
+ * PathResolver resolver = new PathResolver(new String[] {"conf", "lib"}, false);
+ * File f = resolver.resolve("log4j.xml");
+ *
+ * Instances are thread safe. Memoized results are kept for every distinct URI,
+ * a resolver is meant for a bounded set of resource names.
+ *
+ * @author @osipov
+ */
+public class PathResolver {
+	public static final long DEFAULT_TTL = 2000;
+
+	/**
+	 * The names in a directory and whether the file system the directory is on ignores case
+	 */
+	private static class Listing {
+		final Set names;
+		final boolean ignoreCase;
+
+		Listing(File dir) {
+			String[] list = dir.list();
+			if (list == null) list = new String[0];
+			ignoreCase = ignoresCase(dir, list);
+			names = new HashSet(list.length * 2);
+			for (int i = 0; i < list.length; i++)
+				names.add(ignoreCase ? list[i].toLowerCase(Locale.ENGLISH) : list[i]);
+		}
+
+		boolean contains(String name) {
+			return names.contains(ignoreCase ? name.toLowerCase(Locale.ENGLISH) : name);
+		}
+
+		/**
+		 * Looks up an entry of the directory with the case of its name swapped, java.io.File compares
+		 * paths case sensitively on case insensitive file systems such as the default one of macOS.
+		 * A directory without such an entry has no name that could match only when ignoring case.
+		 */
+		private static boolean ignoresCase(File dir, String[] list) {
+			Set present = new HashSet(Arrays.asList(list));
+			for (int i = 0; i < list.length; i++) {
+				String swapped = list[i].toUpperCase(Locale.ENGLISH);
+				if (swapped.equals(list[i])) swapped = list[i].toLowerCase(Locale.ENGLISH);
+				if (swapped.equals(list[i]) || present.contains(swapped)) continue;
+				return new File(dir, swapped).exists();
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * A memoized result or a directory listing along with the time it was taken
+	 */
+	private static class Entry {
+		final Object value;
+		final long time;
+
+		Entry(Object value, long time) {
+			this.value = value;
+			this.time = time;
+		}
+	}
+
+	private final String[] paths;
+	//directory of each search path on the local file system or null if the path is a URL
+	private final File[] dirs;
+	private final File base;
+	private final boolean unpack;
+	private final long ttl;
+	private final ConcurrentHashMap resolved = new ConcurrentHashMap();
+	private final ConcurrentHashMap listings = new ConcurrentHashMap();
+
+	public PathResolver(String[] paths, boolean unpack) {
+		this(paths, unpack, DEFAULT_TTL);
+	}
+
+	/**
+	 * @param paths the list of paths to search, the array is copied
+	 * @param unpack if the file has a .zip extension, unpack it
+	 * @param ttl number of milliseconds results and directory listings are reused for,
+	 * 0 to reuse them until invalidated
+	 */
+	public PathResolver(String[] paths, boolean unpack, long ttl) {
+		this.paths = new String[paths == null ? 0 : paths.length];
+		this.dirs = new File[this.paths.length];
+		this.unpack = unpack;
+		this.ttl = ttl;
+		this.base = canonical(new File("."));
+		for (int i = 0; i < this.paths.length; i++) {
+			this.paths[i] = paths[i].replace('\\', '/');
+			if (!FileUtil.isUrl(this.paths[i])) {
+				dirs[i] = canonical(new File(this.paths[i]));
+				//lists the directory and probes whether its file system ignores case
+				listing(dirs[i]);
+			}
+		}
+	}
+
+	/**
+	 * Returns a file handle to the requested resource, @see FileUtil#resolveAsFile(String[], String, boolean)
+	 * @param URI the URI of the resource
+	 * @return the resolved file, the unpacked directory or, when the resource was not found, the
+	 * location it was last looked for
+	 */
+	public File resolve(String URI) {
+		long now = ttl > 0 ? System.currentTimeMillis() : 0;
+		Entry e = (Entry)resolved.get(URI);
+		if (e != null && (ttl <= 0 || now - e.time < ttl)) return (File)e.value;
+		File file = lookup(URI);
+		resolved.put(URI, new Entry(file, now));
+		return file;
+	}
+
+	/**
+	 * Forgets all memoized results and directory listings
+	 */
+	public void invalidate() {
+		resolved.clear();
+		listings.clear();
+	}
+
+	/**
+	 * Forgets the memoized result of the URI, directory listings are refreshed as well
+	 * since the file may have been created in any of the search paths
+	 * @param URI the URI of the resource
+	 */
+	public void invalidate(String URI) {
+		resolved.remove(URI);
+		listings.clear();
+	}
+
+	private File lookup(String URI) {
+		try {
+			String uri = URI.replace('\\', '/');
+			File localFile = null;
+			if (!FileUtil.isUrl(uri)) {
+				boolean isAbsolute = (uri.charAt(0) == '/' || uri.indexOf(":/") >= 0);
+				String relative = isAbsolute ? uri : "/" + uri;
+				File candidate = new File(isAbsolute ? uri : base.getPath() + relative);
+				if (exists(candidate, relative)) localFile = candidate;
+				for (int i = 0; localFile == null && i < paths.length; i++) {
+					if (dirs[i] != null) {
+						candidate = new File(dirs[i].getPath() + relative);
+						if (exists(candidate, relative)) localFile = candidate;
+					} else {
+						String resolved = FileUtil.resolveUrlAsFile(paths[i] + relative);
+						if (resolved != null) candidate = new File(resolved);
+						if (resolved != null && candidate.exists()) localFile = candidate;
+					}
+				}
+				localFile = (localFile != null ? localFile : candidate).getCanonicalFile();
+			} else {
+				localFile = new File(FileUtil.resolveUrlAsFile(uri));
+			}
+			return unpack ? FileUtil.unpack(localFile) : new File(localFile.getAbsolutePath());
+		} catch (Exception e) {
+			throw new RuntimeException(e.getClass().getName()+":"+URI);
+		}
+	}
+
+	/**
+	 * Looks the file up in the listing of its directory, paths with . or .. segments
+	 * are checked directly on the file system
+	 */
+	private boolean exists(File candidate, String relative) {
+		if (relative.indexOf("/.") >= 0) return candidate.exists();
+		File dir = candidate.getParentFile();
+		return dir != null && listing(dir).contains(candidate.getName());
+	}
+
+	/**
+	 * @return the listing of the directory, taken at most once per time to live
+	 */
+	private Listing listing(File dir) {
+		long now = ttl > 0 ? System.currentTimeMillis() : 0;
+		Entry e = (Entry)listings.get(dir.getPath());
+		if (e != null && (ttl <= 0 || now - e.time < ttl)) return (Listing)e.value;
+		Listing listing = new Listing(dir);
+		listings.put(dir.getPath(), new Entry(listing, now));
+		return listing;
+	}
+
+	private static File canonical(File file) {
+		try {
+			return file.getCanonicalFile();
+		} catch (IOException e) {
+			return file.getAbsoluteFile();
+		}
+	}
+
+	/**
+	 * Compares FileUtil.resolveAsFile with a resolver over search paths of which only the last one
+	 * holds the files, @see FileUtil#resolveAsFile(String[], String, boolean)
+	 */
+	private static void benchmarkResolve(int files, int lookups) throws IOException {
+		File root = File.createTempFile("osipov", "paths");
+		root.delete();
+		String[] paths = new String[4];
+		for (int i = 0; i < paths.length; i++) {
+			File dir = new File(root, "path" + i);
+			dir.mkdirs();
+			paths[i] = dir.getPath();
+		}
+		for (int i = 0; i < files; i++)
+			new FileOutputStream(new File(paths[paths.length - 1], "resource" + i + ".xml")).close();
+		PathResolver resolver = new PathResolver(paths, false);
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < lookups; i++)
+				FileUtil.resolveAsFile(paths, "resource" + (i % files) + ".xml", false);
+			long legacy = System.nanoTime() - start;
+			start = System.nanoTime();
+			for (int i = 0; i < lookups; i++)
+				resolver.resolve("resource" + (i % files) + ".xml");
+			long memoized = System.nanoTime() - start;
+			System.out.println("FileUtil.resolveAsFile: " + legacy / lookups + "ns/lookup, "
+					+ "PathResolver.resolve: " + memoized / lookups + "ns/lookup");
+		}
+		for (int i = 0; i < files; i++)
+			new File(paths[paths.length - 1], "resource" + i + ".xml").delete();
+		for (int i = 0; i < paths.length; i++)
+			new File(paths[i]).delete();
+		root.delete();
+	}
+
+	public static void main(String[] args) throws IOException {
+		//benchmarkResolve(1000, 100000);
+	}
+}
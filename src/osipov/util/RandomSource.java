@@ -0,0 +1,245 @@
+package osipov.util;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Random number generator without shared state, for drawing random numbers from many threads at once.
+ * java.util.Random updates its seed with a compare and set on every call, which serializes the threads
+ * that share an instance, this generator is a plain SplitMix64 sequence that each thread keeps to itself:
+ * - @see #current() is the generator of the calling thread, derived from the master seed and the order
+ *   in which threads first asked for their generator
+ * - @see #stream(long) is a generator derived from the master seed and an index, for example the index
+ *   of a unit of work, so that a seeded run draws the same numbers no matter how many threads run it
+ *
+ * The master seed is taken from the osipov.random.seed system property if it is set, otherwise from the clock,
+ * and can be changed with @see #setMasterSeed(long).
+ *
+ * Usage:
+ * for (int i = 0; i < tasks; i++) {
+ *     final RandomSource random = RandomSource.stream(i);
+ *     executor.submit(...random.nextInt(6)...);
+ * }
+ *
+ * Instances are not thread safe, a generator should be used by one thread at a time.
+ * This is not a cryptographically secure generator.
+ *
+ * @author @osipov
+ */
+public class RandomSource extends Random {
+	private static final long serialVersionUID = 1L;
+
+	public static final String SEED_PROPERTY = "osipov.random.seed";
+
+	private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+	private static volatile long masterSeed = initialSeed();
+	//incremented whenever the master seed changes so that threads derive new generators
+	private static volatile int generation = 0;
+	private static final AtomicLong threads = new AtomicLong();
+	private static final ThreadLocal current = new ThreadLocal();
+
+	//assigned by setSeed, which the superclass constructor calls
+	private long state;
+	private int createdIn;
+
+	/**
+	 * Creates a generator seeded from the clock
+	 */
+	public RandomSource() {
+		this(mix(System.nanoTime() ^ threads.get() * GOLDEN));
+	}
+
+	/**
+	 * @param seed seed of the generator, the same seed always yields the same numbers
+	 */
+	public RandomSource(long seed) {
+		super(seed);
+	}
+
+	/**
+	 * @return the generator of the calling thread
+	 */
+	public static RandomSource current() {
+		RandomSource random = (RandomSource)current.get();
+		int g = generation;
+		if (random == null || random.createdIn != g) {
+			random = stream(masterSeed, Long.MIN_VALUE + threads.getAndIncrement());
+			random.createdIn = g;
+			current.set(random);
+		}
+		return random;
+	}
+
+	/**
+	 * @param index index of the stream, such as the index of a task
+	 * @return a new generator derived from the master seed and the index
+	 */
+	public static RandomSource stream(long index) {
+		return stream(masterSeed, index);
+	}
+
+	/**
+	 * @param seed seed the streams are derived from
+	 * @param index index of the stream
+	 * @return a new generator derived from the seed and the index
+	 */
+	public static RandomSource stream(long seed, long index) {
+		return new RandomSource(mix(mix(seed) + index * GOLDEN));
+	}
+
+	public static long getMasterSeed() {
+		return masterSeed;
+	}
+
+	/**
+	 * Changes the seed @see #stream(long) and, from their next call to @see #current(),
+	 * the generators of all threads are derived from
+	 */
+	public static void setMasterSeed(long seed) {
+		synchronized (RandomSource.class) {
+			masterSeed = seed;
+			threads.set(0);
+			generation++;
+		}
+	}
+
+	public void setSeed(long seed) {
+		state = seed;
+		//Random keeps a spare gaussian that belongs to the previous seed
+		super.setSeed(seed);
+	}
+
+	protected int next(int bits) {
+		return (int)(nextLong() >>> (64 - bits));
+	}
+
+	public long nextLong() {
+		return mix(state += GOLDEN);
+	}
+
+	public int nextInt() {
+		return (int)(nextLong() >>> 32);
+	}
+
+	/**
+	 * @return a uniformly distributed int in [0, bound)
+	 */
+	public int nextInt(int bound) {
+		if (bound <= 0) throw new IllegalArgumentException("bound must be positive");
+		//the upper 32 bits scaled to the bound, rejecting the few values that would favor the low results
+		long m = (nextLong() >>> 32) * bound;
+		if ((m & 0xffffffffL) < bound) {
+			long threshold = (0x100000000L - bound) % bound;
+			while ((m & 0xffffffffL) < threshold)
+				m = (nextLong() >>> 32) * bound;
+		}
+		return (int)(m >>> 32);
+	}
+
+	/**
+	 * @return a uniformly distributed long in [0, bound)
+	 */
+	public long nextLong(long bound) {
+		if (bound <= 0) throw new IllegalArgumentException("bound must be positive");
+		long limit = Long.MAX_VALUE - Long.MAX_VALUE % bound;
+		long r;
+		do {
+			r = nextLong() >>> 1;
+		} while (r >= limit);
+		return r % bound;
+	}
+
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	public boolean nextBoolean() {
+		return nextLong() < 0;
+	}
+
+	/**
+	 * Fills the range of the array with uniformly distributed ints
+	 */
+	public void nextInts(int[] a, int from, int to) {
+		int i = from;
+		for (; i + 1 < to; i += 2) {
+			long r = nextLong();
+			a[i] = (int)r;
+			a[i + 1] = (int)(r >>> 32);
+		}
+		if (i < to) a[i] = nextInt();
+	}
+
+	/**
+	 * Fills the range of the array with uniformly distributed ints in [origin, bound)
+	 */
+	public void nextInts(int[] a, int from, int to, int origin, int bound) {
+		if (origin >= bound) throw new IllegalArgumentException();
+		int n = bound - origin;
+		for (int i = from; i < to; i++)
+			a[i] = n > 0 ? origin + nextInt(n) : origin + (int)nextLong((long)bound - origin);
+	}
+
+	/**
+	 * Fills the range of the array with uniformly distributed longs
+	 */
+	public void nextLongs(long[] a, int from, int to) {
+		for (int i = from; i < to; i++)
+			a[i] = nextLong();
+	}
+
+	private static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+
+	private static long initialSeed() {
+		String seed = System.getProperty(SEED_PROPERTY);
+		if (seed != null) {
+			try {
+				return Long.parseLong(seed.trim());
+			} catch (NumberFormatException e) {
+				//fall back to the clock
+			}
+		}
+		return mix(System.currentTimeMillis()) ^ System.nanoTime();
+	}
+
+	/**
+	 * Compares drawing numbers from one shared java.util.Random with each thread drawing from @see #current()
+	 */
+	private static void benchmarkContention(final int threads, final int draws) throws InterruptedException {
+		final Random shared = new Random();
+		for (int round = 0; round < 3; round++) {
+			long[] elapsed = new long[2];
+			for (int mode = 0; mode < 2; mode++) {
+				final boolean local = mode == 1;
+				Thread[] t = new Thread[threads];
+				for (int i = 0; i < threads; i++) {
+					t[i] = new Thread() {
+						public void run() {
+							Random random = local ? current() : shared;
+							long sum = 0;
+							for (int j = 0; j < draws; j++)
+								sum += random.nextInt(1000);
+							if (sum == 42) System.out.print("");
+						}
+					};
+				}
+				long start = System.nanoTime();
+				for (int i = 0; i < threads; i++)
+					t[i].start();
+				for (int i = 0; i < threads; i++)
+					t[i].join();
+				elapsed[mode] = System.nanoTime() - start;
+			}
+			System.out.println(threads + " threads, shared Random: " + elapsed[0] / 1000000 + "ms, RandomSource.current(): " + elapsed[1] / 1000000 + "ms");
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		//benchmarkContention(Runtime.getRuntime().availableProcessors(), 10000000);
+	}
+}
@@ -0,0 +1,256 @@
+package osipov.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replaces several patterns in a single pass over the input. The patterns are compiled
+ * once into a character trie laid out in flat arrays, matching proceeds left to right and
+ * at each position the longest pattern starting there is replaced (leftmost longest).
+ * Replaced text is never scanned again, unlike calling @see StringUtil#replace(String, String, String)
+ * once per pattern.
+ *
+ * Usage:
+ * Replacer xml = new Replacer(new String[] {"&", "<", ">"}, new String[] {"&amp;", "&lt;", "&gt;"});
+ * String escaped = xml.replace(text);
+ *
+ * Instances are immutable and thread safe. When nothing matches, @see #replace(String)
+ * returns the input itself without allocating.
+ *
+ * @author @osipov
+ */
+public final class Replacer {
+	private static final int ASCII = 128;
+
+	//children of node n are keys[first[n]] .. keys[first[n + 1] - 1] (sorted) leading to nodes[...]
+	private final int[] first;
+	private final char[] keys;
+	private final int[] nodes;
+	//index of the replacement for a pattern ending at the node or -1, and the depth of the node
+	private final int[] output;
+	private final int[] depth;
+	//child of the root for each ASCII character, 0 if there is none
+	private final int[] ascii = new int[ASCII];
+	private final boolean nonAscii;
+	private final String[] to;
+
+	/**
+	 * @param from patterns, null and empty patterns are ignored and a pattern that occurs
+	 * more than once keeps its first replacement
+	 * @param to replacements, to[i] replaces from[i]
+	 */
+	public Replacer(String[] from, String[] to) {
+		if (from == null || to == null || to.length < from.length) throw new IllegalArgumentException();
+		this.to = new String[from.length];
+		//build a pointer based trie, then flatten it breadth first
+		List children = new ArrayList();
+		List outputs = new ArrayList();
+		List depths = new ArrayList();
+		children.add(new StringBuffer());
+		outputs.add(new int[] {-1});
+		depths.add(new int[] {0});
+		List targets = new ArrayList();
+		targets.add(new ArrayList());
+		for (int i = 0; i < from.length; i++) {
+			if (from[i] == null || from[i].length() == 0 || to[i] == null) continue;
+			this.to[i] = to[i];
+			int node = 0;
+			for (int j = 0; j < from[i].length(); j++) {
+				StringBuffer k = (StringBuffer)children.get(node);
+				int c = k.indexOf(String.valueOf(from[i].charAt(j)));
+				if (c < 0) {
+					k.append(from[i].charAt(j));
+					((List)targets.get(node)).add(new Integer(children.size()));
+					children.add(new StringBuffer());
+					targets.add(new ArrayList());
+					outputs.add(new int[] {-1});
+					depths.add(new int[] {j + 1});
+					node = children.size() - 1;
+				} else
+					node = ((Integer)((List)targets.get(node)).get(c)).intValue();
+			}
+			int[] o = (int[])outputs.get(node);
+			if (o[0] < 0) o[0] = i;
+		}
+		int n = children.size();
+		first = new int[n + 1];
+		output = new int[n];
+		depth = new int[n];
+		int edges = 0;
+		for (int i = 0; i < n; i++) {
+			first[i] = edges;
+			edges += ((StringBuffer)children.get(i)).length();
+			output[i] = ((int[])outputs.get(i))[0];
+			depth[i] = ((int[])depths.get(i))[0];
+		}
+		first[n] = edges;
+		keys = new char[edges];
+		nodes = new int[edges];
+		boolean nonAscii = false;
+		for (int i = 0; i < n; i++) {
+			char[] k = ((StringBuffer)children.get(i)).toString().toCharArray();
+			List t = (List)targets.get(i);
+			//sort the children by key for the binary search
+			long[] sorted = new long[k.length];
+			for (int j = 0; j < k.length; j++)
+				sorted[j] = ((long)k[j] << 32) | ((Integer)t.get(j)).intValue();
+			Arrays.sort(sorted);
+			for (int j = 0; j < k.length; j++) {
+				keys[first[i] + j] = (char)(sorted[j] >>> 32);
+				nodes[first[i] + j] = (int)sorted[j];
+				if (i == 0) {
+					if (keys[j] < ASCII) ascii[keys[j]] = nodes[j];
+					else nonAscii = true;
+				}
+			}
+		}
+		this.nonAscii = nonAscii;
+	}
+
+	/**
+	 * @param s input, may be null
+	 * @return the input with the patterns replaced, or the input itself if no pattern occurs in it
+	 */
+	public String replace(String s) {
+		if (s == null) return null;
+		long match = find(s, 0, s.length());
+		if (match < 0) return s;
+		StringBuilder buf = new StringBuilder(s.length() + 16);
+		replace(s, match, buf);
+		return buf.toString();
+	}
+
+	/**
+	 * Appends the input with the patterns replaced to the buffer, which can be reused across calls
+	 * @param s input
+	 * @param buf output
+	 * @return true if any of the patterns occurred in the input
+	 */
+	public boolean replace(CharSequence s, StringBuilder buf) {
+		long match = find(s, 0, s.length());
+		if (match < 0) {
+			buf.append(s);
+			return false;
+		}
+		replace(s, match, buf);
+		return true;
+	}
+
+	/**
+	 * Appends the input with the patterns replaced to the appendable, such as a Writer
+	 * @param s input
+	 * @param out output
+	 * @return true if any of the patterns occurred in the input
+	 * @throws IOException
+	 */
+	public boolean replace(CharSequence s, Appendable out) throws IOException {
+		if (out instanceof StringBuilder) return replace(s, (StringBuilder)out);
+		final int length = s.length();
+		boolean replaced = false;
+		int from = 0;
+		for (long match; (match = find(s, from, length)) >= 0; replaced = true) {
+			int start = (int)(match >>> 32), node = (int)match;
+			out.append(s, from, start).append(to[output[node]]);
+			from = start + depth[node];
+		}
+		out.append(s, from, length);
+		return replaced;
+	}
+
+	/**
+	 * @return the number of patterns replaced in the input
+	 */
+	public int count(CharSequence s) {
+		final int length = s.length();
+		int count = 0;
+		for (long match = find(s, 0, length); match >= 0; count++)
+			match = find(s, (int)(match >>> 32) + depth[(int)match], length);
+		return count;
+	}
+
+	/**
+	 * Appends the input from the first match on
+	 */
+	private void replace(CharSequence s, long match, StringBuilder buf) {
+		final int length = s.length();
+		int from = 0;
+		for (; match >= 0; match = find(s, from, length)) {
+			int start = (int)(match >>> 32), node = (int)match;
+			buf.append(s, from, start).append(to[output[node]]);
+			from = start + depth[node];
+		}
+		buf.append(s, from, length);
+	}
+
+	/**
+	 * @return the leftmost longest match at or after the specified position as the position
+	 * of the match in the upper and the node the pattern ends at in the lower 32 bits, or -1
+	 */
+	private long find(CharSequence s, int from, int length) {
+		for (int i = from; i < length; i++) {
+			char c = s.charAt(i);
+			int node = c < ASCII ? ascii[c] : nonAscii ? child(0, c) : 0;
+			if (node <= 0) continue;
+			int longer = longest(s, node, i + 1, length);
+			if (longer >= 0) return (long)i << 32 | longer;
+			if (output[node] >= 0) return (long)i << 32 | node;
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the deepest node below the node, reached by the characters starting at the position,
+	 * at which a pattern ends or -1 if there is none
+	 */
+	private int longest(CharSequence s, int node, int i, int length) {
+		int best = -1;
+		for (; i < length; i++) {
+			node = child(node, s.charAt(i));
+			if (node < 0) break;
+			if (output[node] >= 0) best = node;
+		}
+		return best;
+	}
+
+	private int child(int node, char c) {
+		int lo = first[node], hi = first[node + 1] - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			if (keys[mid] < c) lo = mid + 1;
+			else if (keys[mid] > c) hi = mid - 1;
+			else return nodes[mid];
+		}
+		return -1;
+	}
+
+	private static void check(String expected, String actual) {
+		if (!expected.equals(actual)) throw new IllegalStateException("expected " + expected + " but got " + actual);
+	}
+
+	private static void testReplace() throws IOException {
+		Replacer xml = new Replacer(new String[] {"&", "<", ">", "\""}, new String[] {"&amp;", "&lt;", "&gt;", "&quot;"});
+		String s = "no markup here";
+		if (xml.replace(s) != s) throw new IllegalStateException("input without patterns is not returned as is");
+		StringBuilder buf = new StringBuilder();
+		if (xml.replace(s, buf) || !buf.toString().equals(s)) throw new IllegalStateException("input without patterns is not appended as is");
+		check("&lt;a href=&quot;x&quot;&gt;&amp;&lt;/a&gt;", xml.replace("<a href=\"x\">&</a>"));
+		//at each position the longest pattern wins, matching resumes after it
+		Replacer longest = new Replacer(new String[] {"a", "ab", "abc", "bcd", "\u00e9"}, new String[] {"1", "2", "3", "4", "e"});
+		check("3d 2 1 4 2d c1fe", longest.replace("abcd ab a bcd abd caf\u00e9"));
+		if (longest.count("abcd ab a bcd") != 4) throw new IllegalStateException("count " + longest.count("abcd ab a bcd"));
+		java.io.StringWriter out = new java.io.StringWriter();
+		longest.replace("abcd ab", out);
+		check("3d 2", out.toString());
+		//replacements are not scanned again, unlike StringUtil.replace per pattern
+		Replacer swap = new Replacer(new String[] {"x", "y"}, new String[] {"y", "x"});
+		check("yxyx", swap.replace("xyxy"));
+		check("yxyx", StringUtil.escape("xyxy", new String[] {"x", "y"}, new String[] {"y", "x"}));
+		System.out.println("Replacer tests passed");
+	}
+
+	public static void main(String[] args) throws IOException {
+		//testReplace();
+	}
+}
@@ -0,0 +1,361 @@
+package osipov.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Precompiled Boyer-Moore-Horspool search for one needle, meant to be built once and
+ * used for many searches, for example over large log buffers:
+ * - character content is searched as a CharSequence or char[]
+ * - single byte (ISO-8859-1 or ASCII) content is searched as a byte[] or ByteBuffer,
+ *   a needle of one byte is matched eight bytes at a time within a long (SWAR)
+ *
+ * Occurrences are counted and enumerated without overlapping, the search resumes right
+ * after each occurrence, the same way as @see StringUtil#countOccurrencesOf(String, String).
+ *
+ * Usage:
+ * Searcher errors = new Searcher("ERROR");
+ * int count = errors.count(buffer, 0, buffer.length);
+ *
+ * Instances are immutable and thread safe.
+ *
+ * @author @osipov
+ */
+public final class Searcher {
+	private static final long ONES = 0x0101010101010101L;
+	private static final long LOW7 = 0x7f7f7f7f7f7f7f7fL;
+	//needles shorter than this are searched by their first byte
+	private static final int SHORT = 4;
+
+	private final String needle;
+	private final char[] pattern;
+	//the needle as single bytes or null if it has characters above 255
+	private final byte[] bytes;
+	//shift for the character in the last position of the window, indexed by its low byte
+	private final int[] shift = new int[256];
+
+	/**
+	 * @param needle non empty string to search for
+	 */
+	public Searcher(String needle) {
+		if (needle == null || needle.length() == 0) throw new IllegalArgumentException("empty needle");
+		this.needle = needle;
+		this.pattern = needle.toCharArray();
+		final int m = pattern.length;
+		byte[] b = new byte[m];
+		for (int i = 0; i < m && b != null; i++)
+			if (pattern[i] > 0xff) b = null;
+			else b[i] = (byte)pattern[i];
+		this.bytes = b;
+		for (int i = 0; i < shift.length; i++)
+			shift[i] = m;
+		//characters sharing a low byte end up with the smallest of their shifts
+		for (int i = 0; i < m - 1; i++)
+			shift[pattern[i] & 0xff] = m - 1 - i;
+	}
+
+	public String getNeedle() {
+		return needle;
+	}
+
+	/**
+	 * @return index of the first occurrence at or after the index or -1, equivalent to String.indexOf
+	 */
+	public int indexOf(CharSequence s, int fromIndex) {
+		return indexOf(s, fromIndex, s.length());
+	}
+
+	/**
+	 * @param s characters to search
+	 * @param fromIndex start of the search, inclusive
+	 * @param toIndex end of the search, exclusive
+	 * @return index of the first occurrence within the range or -1
+	 */
+	public int indexOf(CharSequence s, int fromIndex, int toIndex) {
+		final char[] p = pattern;
+		final int last = p.length - 1;
+		final char end = p[last];
+		if (fromIndex < 0) fromIndex = 0;
+		for (int i = fromIndex + last; i < toIndex; ) {
+			char c = s.charAt(i);
+			if (c == end) {
+				int j = last - 1, k = i - 1;
+				while (j >= 0 && s.charAt(k) == p[j]) { j--; k--; }
+				if (j < 0) return i - last;
+			}
+			i += shift[c & 0xff];
+		}
+		return -1;
+	}
+
+	/**
+	 * @see #indexOf(CharSequence, int, int)
+	 */
+	public int indexOf(char[] s, int fromIndex, int toIndex) {
+		final char[] p = pattern;
+		final int last = p.length - 1;
+		final char end = p[last];
+		if (fromIndex < 0) fromIndex = 0;
+		for (int i = fromIndex + last; i < toIndex; ) {
+			char c = s[i];
+			if (c == end) {
+				int j = last - 1, k = i - 1;
+				while (j >= 0 && s[k] == p[j]) { j--; k--; }
+				if (j < 0) return i - last;
+			}
+			i += shift[c & 0xff];
+		}
+		return -1;
+	}
+
+	/**
+	 * @return number of occurrences at or after the index
+	 */
+	public int count(CharSequence s, int fromIndex) {
+		final int length = s.length();
+		int count = 0;
+		for (int i = indexOf(s, fromIndex, length); i > -1; i = indexOf(s, i + pattern.length, length))
+			count++;
+		return count;
+	}
+
+	/**
+	 * @param s characters to search
+	 * @param fromIndex start of the search, inclusive
+	 * @param nth number of the occurrence, counted from 1
+	 * @return index of the nth occurrence at or after the index or -1 if there are fewer occurrences
+	 */
+	public int indexOf(CharSequence s, int fromIndex, int toIndex, int nth) {
+		int i = nth < 1 ? -1 : indexOf(s, fromIndex, toIndex);
+		for (int n = 1; n < nth && i > -1; n++)
+			i = indexOf(s, i + pattern.length, toIndex);
+		return i;
+	}
+
+	/**
+	 * Stores the indices of the occurrences at or after the index in the array. If there are
+	 * more occurrences than fit in the array, the search can be continued from
+	 * indices[indices.length - 1] + getNeedle().length().
+	 * @param s characters to search
+	 * @param fromIndex start of the search, inclusive
+	 * @param indices reusable array receiving the indices
+	 * @return number of indices stored
+	 */
+	public int indicesOf(CharSequence s, int fromIndex, int[] indices) {
+		final int length = s.length();
+		int n = 0;
+		for (int i = indexOf(s, fromIndex, length); i > -1 && n < indices.length; i = indexOf(s, i + pattern.length, length))
+			indices[n++] = i;
+		return n;
+	}
+
+	/**
+	 * Searches single byte content, bytes are read as ISO-8859-1 characters
+	 * @param b bytes to search
+	 * @param fromIndex start of the search, inclusive
+	 * @param toIndex end of the search, exclusive
+	 * @return index of the first occurrence within the range or -1
+	 */
+	public int indexOf(byte[] b, int fromIndex, int toIndex) {
+		if (bytes == null) return -1;
+		if (fromIndex < 0) fromIndex = 0;
+		if (bytes.length < SHORT) return indexOfShort(ByteBuffer.wrap(b), fromIndex, toIndex);
+		final byte[] p = bytes;
+		final int last = p.length - 1;
+		final byte end = p[last];
+		for (int i = fromIndex + last; i < toIndex; ) {
+			byte c = b[i];
+			if (c == end) {
+				int j = last - 1, k = i - 1;
+				while (j >= 0 && b[k] == p[j]) { j--; k--; }
+				if (j < 0) return i - last;
+			}
+			i += shift[c & 0xff];
+		}
+		return -1;
+	}
+
+	/**
+	 * Searches the bytes between the position and the limit of the buffer, which are left unchanged
+	 * @return absolute index of the first occurrence or -1
+	 */
+	public int indexOf(ByteBuffer b) {
+		if (bytes == null) return -1;
+		if (bytes.length < SHORT) return indexOfShort(b, b.position(), b.limit());
+		final byte[] p = bytes;
+		final int last = p.length - 1;
+		final byte end = p[last];
+		for (int i = b.position() + last, to = b.limit(); i < to; ) {
+			byte c = b.get(i);
+			if (c == end) {
+				int j = last - 1, k = i - 1;
+				while (j >= 0 && b.get(k) == p[j]) { j--; k--; }
+				if (j < 0) return i - last;
+			}
+			i += shift[c & 0xff];
+		}
+		return -1;
+	}
+
+	/**
+	 * @return number of occurrences within the range of single byte content
+	 */
+	public int count(byte[] b, int fromIndex, int toIndex) {
+		if (bytes == null) return 0;
+		if (fromIndex < 0) fromIndex = 0;
+		if (bytes.length == 1) return count(ByteBuffer.wrap(b), fromIndex, toIndex, bytes[0]);
+		int count = 0;
+		for (int i = indexOf(b, fromIndex, toIndex); i > -1; i = indexOf(b, i + bytes.length, toIndex))
+			count++;
+		return count;
+	}
+
+	/**
+	 * @return number of occurrences between the position and the limit of the buffer
+	 */
+	public int count(ByteBuffer b) {
+		if (bytes == null) return 0;
+		if (bytes.length == 1) return count(b, b.position(), b.limit(), bytes[0]);
+		ByteBuffer window = b.duplicate();
+		int count = 0;
+		for (int i = indexOf(window); i > -1; i = indexOf(window)) {
+			count++;
+			window.position(i + bytes.length);
+		}
+		return count;
+	}
+
+	/**
+	 * Finds a needle too short for Horspool to skip much by looking for its first byte
+	 * eight bytes at a time and comparing the rest
+	 */
+	private int indexOfShort(ByteBuffer b, int from, int to) {
+		final byte[] p = bytes;
+		for (int i = from, max = to - p.length + 1; (i = indexOf(b, i, max, p[0])) > -1; i++) {
+			int j = 1;
+			while (j < p.length && b.get(i + j) == p[j]) j++;
+			if (j == p.length) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Counts the occurrences of a byte, eight bytes at a time
+	 */
+	static int count(ByteBuffer b, int from, int to, byte value) {
+		final long pattern = (value & 0xffL) * ONES;
+		int count = 0, i = from;
+		for (; i + 8 <= to; i += 8)
+			count += Long.bitCount(zeros(b.getLong(i) ^ pattern));
+		for (; i < to; i++)
+			count += (((b.get(i) ^ value) & 0xff) - 1) >>> 31;
+		return count;
+	}
+
+	/**
+	 * Finds the first occurrence of a byte, eight bytes at a time
+	 */
+	static int indexOf(ByteBuffer b, int from, int to, byte value) {
+		final long pattern = (value & 0xffL) * ONES;
+		final boolean bigEndian = b.order() == ByteOrder.BIG_ENDIAN;
+		int i = from;
+		for (; i + 8 <= to; i += 8) {
+			long z = zeros(b.getLong(i) ^ pattern);
+			if (z != 0)
+				return i + ((bigEndian ? Long.numberOfLeadingZeros(z) : Long.numberOfTrailingZeros(z)) >>> 3);
+		}
+		for (; i < to; i++)
+			if (b.get(i) == value) return i;
+		return -1;
+	}
+
+	/**
+	 * @return the word with the high bit of each zero byte set and all other bits cleared
+	 */
+	private static long zeros(long x) {
+		return ~(((x & LOW7) + LOW7) | x | LOW7);
+	}
+
+	/**
+	 * @return number of non overlapping occurrences of the needle in the range, with String.indexOf
+	 */
+	private static int naiveCount(String s, String needle, int from, int to) {
+		String range = s.substring(0, to);
+		int count = 0;
+		for (int i = range.indexOf(needle, from); i > -1; i = range.indexOf(needle, i + needle.length()))
+			count++;
+		return count;
+	}
+
+	private static void check(boolean condition, String what, String s, String needle, int from, int to) {
+		if (!condition) throw new IllegalStateException(what + " failed for " + needle + " in " + s + " [" + from + ", " + to + ")");
+	}
+
+	/**
+	 * Compares the searches with String.indexOf over random text of characters that share their low
+	 * byte ('a', U+0161, U+0261), single byte text searched as heap, little endian and direct buffers
+	 * at unaligned positions, and needles of 1 to 5 characters
+	 */
+	private static void testSearcher() {
+		Random random = new Random(1);
+		char[] wide = {'a', 'b', 'c', '\u0161', '\u0261'};
+		char[] narrow = {'a', 'b', 'c', '\u0000', '\u0080', '\u00ff', '\u00e1'};
+		for (int t = 0; t < 20000; t++) {
+			char[] alphabet = t % 2 == 0 ? wide : narrow;
+			char[] c = new char[random.nextInt(200)];
+			for (int i = 0; i < c.length; i++)
+				c[i] = alphabet[random.nextInt(t % 3 == 0 ? 2 : alphabet.length)];
+			String s = new String(c);
+			char[] n = new char[1 + random.nextInt(5)];
+			for (int i = 0; i < n.length; i++)
+				n[i] = alphabet[random.nextInt(t % 3 == 0 ? 2 : alphabet.length)];
+			String needle = new String(n);
+			Searcher searcher = new Searcher(needle);
+			int from = random.nextInt(s.length() + 1), to = from + random.nextInt(s.length() - from + 1);
+			int expected = s.substring(0, to).indexOf(needle, from);
+
+			check(searcher.indexOf(s, from) == s.indexOf(needle, from), "indexOf(CharSequence, int)", s, needle, from, to);
+			check(searcher.indexOf(s, from, to) == expected, "indexOf(CharSequence, int, int)", s, needle, from, to);
+			check(searcher.indexOf(c, from, to) == expected, "indexOf(char[], int, int)", s, needle, from, to);
+			int count = naiveCount(s, needle, from, s.length());
+			check(searcher.count(s, from) == count, "count(CharSequence, int)", s, needle, from, to);
+			int[] indices = new int[count + 1];
+			check(searcher.indicesOf(s, from, indices) == count, "indicesOf", s, needle, from, to);
+			for (int i = 0; i < count; i++)
+				check(searcher.indexOf(s, from, s.length(), i + 1) == indices[i], "indexOf nth", s, needle, from, to);
+			check(searcher.indexOf(s, from, s.length(), count + 1) == -1, "indexOf nth beyond count", s, needle, from, to);
+
+			if (alphabet != narrow) continue;
+			//single byte content, the needle may still have characters above 255
+			byte[] b = new byte[c.length];
+			for (int i = 0; i < c.length; i++)
+				b[i] = (byte)c[i];
+			boolean single = needle.indexOf('\u0161') < 0 && needle.indexOf('\u0261') < 0;
+			int expectedBytes = single ? expected : -1, countBytes = single ? naiveCount(s, needle, from, to) : 0;
+			check(searcher.indexOf(b, from, to) == expectedBytes, "indexOf(byte[], int, int)", s, needle, from, to);
+			check(searcher.count(b, from, to) == countBytes, "count(byte[], int, int)", s, needle, from, to);
+			ByteBuffer direct = ByteBuffer.allocateDirect(b.length);
+			direct.put(b).clear();
+			ByteBuffer[] buffers = {ByteBuffer.wrap(b), ByteBuffer.wrap(b).order(ByteOrder.LITTLE_ENDIAN), direct,
+					direct.duplicate().order(ByteOrder.LITTLE_ENDIAN)};
+			for (int k = 0; k < buffers.length; k++) {
+				ByteBuffer buffer = buffers[k];
+				buffer.limit(to).position(from);
+				String what = "ByteBuffer " + k + " ";
+				check(searcher.indexOf(buffer) == expectedBytes, what + "indexOf", s, needle, from, to);
+				check(searcher.count(buffer) == countBytes, what + "count", s, needle, from, to);
+				check(buffer.position() == from && buffer.limit() == to, what + "position and limit unchanged", s, needle, from, to);
+				byte value = (byte)n[0];
+				String one = String.valueOf((char)(value & 0xff));
+				check(indexOf(buffer, from, to, value) == s.substring(0, to).indexOf(one, from), what + "indexOf byte", s, one, from, to);
+				check(count(buffer, from, to, value) == naiveCount(s, one, from, to), what + "count byte", s, one, from, to);
+			}
+		}
+		System.out.println("Searcher tests passed");
+	}
+
+	public static void main(String[] args) {
+		//testSearcher();
+	}
+}
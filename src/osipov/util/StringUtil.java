@@ -1,14 +1,43 @@
 package osipov.util;
 
+import java.io.IOException;
+import java.util.Arrays;
+
 public class StringUtil {
+    /**
+     * Returns the number of occurences of a character within the indicies of the specified string.
+     * The string is counted in blocks, sparse blocks jump from one occurence to the next with
+     * String.indexOf while dense blocks are counted with a loop that has no branch per character.
+     * @see Searcher for counting in single byte content.
+     * @param ch a character
+     * @param s a string
+     * @param fromIndex starting index, inclusive
+     * @param toIndex ending index, exclusive
+     * @return number of occurences
+     */
     public static final int countOccurencesOf(char ch, String s, int fromIndex, int toIndex) {
-        int count = 0;
-        while ( (fromIndex = s.indexOf(ch, fromIndex)) > -1 && fromIndex < toIndex) {
-            count++;
-            fromIndex++;
+        final int n = Math.min(toIndex, s.length());
+        int count = 0, i = Math.max(fromIndex, 0);
+        boolean dense = false;
+        while (i < n) {
+            int end = Math.min(n, i + DENSITY_BLOCK), hits = 0;
+            if (dense) {
+                for (; i < end; i++)
+                    hits += ((s.charAt(i) ^ ch) - 1) >>> 31;
+            } else {
+                while ((i = s.indexOf(ch, i)) > -1 && i < end) {
+                    hits++;
+                    i++;
+                }
+                if (i < 0) i = n;
+            }
+            count += hits;
+            //past one occurence in 16 characters the branch free loop is faster
+            dense = hits * 16 > DENSITY_BLOCK;
         }
         return count;
     }
+    private static final int DENSITY_BLOCK = 1024;
     
     /**
      * Returns the string index of the Nth occurence of a character within the indicies of the specified string
@@ -27,11 +56,30 @@ public class StringUtil {
         return fromIndex < toIndex ? fromIndex : -1;
     }
 	
+	/**
+	 * the patterns and the replacer compiled by the last call to escape
+	 */
+	private static volatile Object[] escapeCache = null;
+
+	/**
+	 * Replaces each of the from strings with the corresponding to string in a single
+	 * pass, @see Replacer. The replacer compiled for the patterns is reused as long as
+	 * consecutive calls pass the same patterns, callers with a fixed set of patterns
+	 * can also hold on to a Replacer of their own.
+	 * @param buff the string to operate on
+	 * @param from patterns
+	 * @param to replacements
+	 * @return the string with the replacements made or the input itself if no pattern occurs in it
+	 */
 	public static String escape(String buff, String[] from, String[] to)
 	{
-		for(int i=0;i<from.length;i++)
-			buff = replace(buff,from[i],to[i]);
-		return(buff);
+		if (buff == null) return null;
+		Object[] cache = escapeCache;
+		if (cache == null || !Arrays.equals((String[])cache[0], from) || !Arrays.equals((String[])cache[1], to)) {
+			cache = new Object[] {from.clone(), to.clone(), new Replacer(from, to)};
+			escapeCache = cache;
+		}
+		return ((Replacer)cache[2]).replace(buff);
 	}
 	public static boolean isLetter(char[] c) {
 		for (int i = 0; i < c.length; i++) 
@@ -44,34 +92,113 @@ public class StringUtil {
 			if (!Character.isLetter(s.charAt(i))) return false;
 		return true;			
 	}
+	/**
+	 * In the given String, removes any characters that pass
+	 * Character.isWhitespace test
+	 * @param s original string
+	 * @return the original string without any whitespace characters, 
+	 * the original string itself if it has none
+	 */
 	public static String removeWhitespaceCharacters(String s) {
-		StringBuffer buf = new StringBuffer(s);
-		for (int i = 0; i < buf.length(); i++) {
-			if (Character.isWhitespace(buf.charAt(i)))
-				buf.deleteCharAt(i);
-		}
-		return buf.toString();
+		return removeWhitespaceCharacters((CharSequence)s).toString();
+	}
+
+	/**
+	 * @see #removeWhitespaceCharacters(String)
+	 * @return the original character sequence itself if it has no whitespace characters
+	 */
+	public static CharSequence removeWhitespaceCharacters(CharSequence s) {
+		int i = next(s, 0, WHITESPACE, true);
+		if (i == s.length()) return s;
+		StringBuilder buf = new StringBuilder(s.length() - 1);
+		remove(s, WHITESPACE, buf);
+		return buf;
+	}
+
+	/**
+	 * Appends the character sequence without any whitespace characters to the buffer
+	 * @return true if any characters were removed
+	 */
+	public static boolean removeWhitespaceCharacters(CharSequence s, StringBuilder out) {
+		return remove(s, WHITESPACE, out);
+	}
+
+	/**
+	 * Appends the character sequence without any whitespace characters to the appendable
+	 * @return true if any characters were removed
+	 */
+	public static boolean removeWhitespaceCharacters(CharSequence s, Appendable out) throws IOException {
+		return remove(s, WHITESPACE, out);
 	}
 	
 	/** Replaces s1 with s2 in the string buf
 	 * 
-	 * @return A new string with the replacement made
+	 * @return A new string with the replacement made, or the original 
+	 * string itself if s1 does not occur in it
 	 * @param buf The string to operate on
 	 * @param s1 The string to replace with string s2
 	 * @param s2 The string to replace s1 with
 	 */
 	public static String replace(String buf, String s1, String s2) {
-		int offset1;
-		int offset2;
-		StringBuffer result = new StringBuffer("");
 		if (buf == null || s1 == null || s1.length() == 0 || s2 == null)
 			return (buf);
+		return replace((CharSequence)buf, s1, s2).toString();
+	}
 
-		for (offset1 = 0;(offset2 = buf.indexOf(s1, offset1)) >= 0; offset1 = offset2 + s1.length())
-			result.append(buf.substring(offset1, offset2) + s2);
-		if (offset2 < 0)
-			result.append(buf.substring(offset1, buf.length()));
-		return (result.toString());
+	/**
+	 * @see #replace(String, String, String)
+	 * @return the original character sequence itself if s1 does not occur in it
+	 */
+	public static CharSequence replace(CharSequence buf, String s1, String s2) {
+		if (buf == null || s1 == null || s1.length() == 0 || s2 == null)
+			return (buf);
+		int offset = indexOf(buf, s1, 0);
+		if (offset < 0) return buf;
+		StringBuilder result = new StringBuilder(buf.length() + Math.max(16, s2.length() - s1.length()));
+		try {
+			replace(buf, s1, s2, offset, result);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+		return result;
+	}
+
+	/**
+	 * Appends buf with s1 replaced by s2 to the buffer
+	 * @return true if s1 occurs in buf
+	 */
+	public static boolean replace(CharSequence buf, String s1, String s2, StringBuilder out) {
+		try {
+			return replace(buf, s1, s2, (Appendable)out);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Appends buf with s1 replaced by s2 to the appendable
+	 * @return true if s1 occurs in buf
+	 */
+	public static boolean replace(CharSequence buf, String s1, String s2, Appendable out) throws IOException {
+		int offset = s1 == null || s1.length() == 0 || s2 == null ? -1 : indexOf(buf, s1, 0);
+		if (offset < 0) {
+			out.append(buf);
+			return false;
+		}
+		replace(buf, s1, s2, offset, out);
+		return true;
+	}
+
+	/**
+	 * Appends buf from the first occurrence of s1 at the offset on
+	 */
+	private static void replace(CharSequence buf, String s1, String s2, int offset, Appendable out) throws IOException {
+		int from = 0;
+		for (; offset >= 0; offset = indexOf(buf, s1, from)) {
+			out.append(buf, from, offset).append(s2);
+			from = offset + s1.length();
+		}
+		out.append(buf, from, buf.length());
 	}
 
 	/**
@@ -103,8 +230,20 @@ public class StringUtil {
 	 */
 	public static String getLeftOf(String str, String seg, String ifNoSeg) {
 		if (str == null || seg == null) return null;
-		if (str.indexOf(seg) == -1) return ifNoSeg;
-		return str.substring(0, str.indexOf(seg));
+		int i = str.indexOf(seg);
+		if (i == -1) return ifNoSeg;
+		return str.substring(0, i);
+	}
+
+	/**
+	 * @see #getLeftOf(String, String, String)
+	 * @return a subsequence of the source, which is not copied if the source is a String
+	 */
+	public static CharSequence getLeftOf(CharSequence str, String seg, CharSequence ifNoSeg) {
+		if (str == null || seg == null) return null;
+		int i = indexOf(str, seg, 0);
+		if (i == -1) return ifNoSeg;
+		return str.subSequence(0, i);
 	}
 
 	/**
@@ -179,8 +318,20 @@ public class StringUtil {
 	 */
 	public static String getRightOf(String str, String seg, String ifNoSeg) {
 		if (str == null || seg == null) return null;
-		if (str.lastIndexOf(seg) == -1) return ifNoSeg;
-		return str.substring(str.lastIndexOf(seg) + seg.length(), str.length());
+		int i = str.lastIndexOf(seg);
+		if (i == -1) return ifNoSeg;
+		return str.substring(i + seg.length(), str.length());
+	}
+
+	/**
+	 * @see #getRightOf(String, String, String)
+	 * @return a subsequence of the source, which is not copied if the source is a String
+	 */
+	public static CharSequence getRightOf(CharSequence str, String seg, CharSequence ifNoSeg) {
+		if (str == null || seg == null) return null;
+		int i = lastIndexOf(str, seg);
+		if (i == -1) return ifNoSeg;
+		return str.subSequence(i + seg.length(), str.length());
 	}
 	
 	/**
@@ -204,25 +355,99 @@ public class StringUtil {
 	 * @return
 	 */
 	public static int countOccurrencesOf(String str, String seg, int fromIndex) {
+		return countOccurrencesOf((CharSequence)str, seg, fromIndex);
+	}
+
+	/**
+	 * @see #countOccurrencesOf(String, String, int)
+	 */
+	public static int countOccurrencesOf(CharSequence str, String seg, int fromIndex) {
 		if (str == null || seg == null) return -1;
+		if (useSearcher(str, seg)) return new Searcher(seg).count(str, fromIndex);
 		int count = 0;
-		int i = str.indexOf(seg, fromIndex);
+		int i = indexOf(str, seg, fromIndex);
 		while (i > -1) {
 			count++;
 			i += seg.length();
-			i = str.indexOf(seg, i);
+			i = indexOf(str, seg, i);
 		}
 		return count;
 	}
 	
 	
+	/**
+	 * Returns the index of the first occurrence of a string segment in a
+	 * character sequence starting at the specified index, or -1 if the 
+	 * segment does not occur. Equivalent to String.indexOf for character 
+	 * sequences that are not strings.
+	 * @param str source character sequence
+	 * @param seg segment to look for
+	 * @param fromIndex index to start the search from
+	 * @return
+	 */
+	public static int indexOf(CharSequence str, String seg, int fromIndex) {
+		if (str instanceof String) return ((String)str).indexOf(seg, fromIndex);
+		final int n = seg.length();
+		if (fromIndex < 0) fromIndex = 0;
+		if (n == 0) return fromIndex <= str.length() ? fromIndex : -1;
+		final char first = seg.charAt(0);
+		for (int i = fromIndex, max = str.length() - n; i <= max; i++) {
+			if (str.charAt(i) != first) continue;
+			int j = 1;
+			while (j < n && str.charAt(i + j) == seg.charAt(j)) j++;
+			if (j == n) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the last occurrence of a string segment in a
+	 * character sequence, or -1 if the segment does not occur.
+	 * Equivalent to String.lastIndexOf for character sequences that are not strings.
+	 * @param str source character sequence
+	 * @param seg segment to look for
+	 * @return
+	 */
+	public static int lastIndexOf(CharSequence str, String seg) {
+		if (str instanceof String) return ((String)str).lastIndexOf(seg);
+		final int n = seg.length();
+		for (int i = str.length() - n; i >= 0; i--) {
+			int j = 0;
+			while (j < n && str.charAt(i + j) == seg.charAt(j)) j++;
+			if (j == n) return i;
+		}
+		return -1;
+	}
+	
 	public static int indexOfOccurrence(String str, String seg, int occurrence) {
+		return indexOfOccurrence((CharSequence)str, seg, occurrence);
+	}
+
+	/**
+	 * @see #indexOfOccurrence(String, String, int)
+	 */
+	public static int indexOfOccurrence(CharSequence str, String seg, int occurrence) {
 		int index = -1;
+		if (occurrence > 1 && useSearcher(str, seg)) {
+			Searcher searcher = new Searcher(seg);
+			for (int i = 0; i < occurrence; i++)
+				index = searcher.indexOf(str, index) + seg.length();
+			return index;
+		}
 		for (int i = 0; i < occurrence; i++)
-			index = str.indexOf(seg, index) + seg.length();
+			index = indexOf(str, seg, index) + seg.length();
 		return index;
 			 
 	}
+
+	/**
+	 * String.indexOf is a JVM intrinsic that outperforms Horspool on strings, other
+	 * character sequences are searched with a @see Searcher once the segment is long
+	 * enough for the skips to pay for building it
+	 */
+	private static boolean useSearcher(CharSequence str, String seg) {
+		return !(str instanceof String) && seg.length() >= 4 && str.length() >= 256;
+	}
 	
 	/**
 	 * In the given String, removes any characters that do not pass
@@ -231,14 +456,122 @@ public class StringUtil {
 	 * @return the original string without any non alpha number characters 
 	 */
 	public static String removeNonAlphaNumericCharacters(String s) {
-		StringBuffer buf = new StringBuffer();
-		for(int i = 0, j = 0; j < s.length(); j++) {
-			while(j < s.length() && Character.isLetterOrDigit(s.charAt(j))) j++;
-			buf.append(s.substring(i, j));	
+		return removeNonAlphaNumericCharacters((CharSequence)s).toString();
+	}
+
+	/**
+	 * @see #removeNonAlphaNumericCharacters(String)
+	 * @return the original character sequence itself if all of its characters are letters or digits
+	 */
+	public static CharSequence removeNonAlphaNumericCharacters(CharSequence s) {
+		int i = next(s, 0, NON_ALPHANUMERIC, true);
+		if (i == s.length()) return s;
+		StringBuilder buf = new StringBuilder(s.length() - 1);
+		remove(s, NON_ALPHANUMERIC, buf);
+		return buf;
+	}
 
-			while(j < s.length() && !Character.isLetterOrDigit(s.charAt(j))) j++;
-			i = j;
+	/**
+	 * Appends the character sequence without any non alpha numeric characters to the buffer
+	 * @return true if any characters were removed
+	 */
+	public static boolean removeNonAlphaNumericCharacters(CharSequence s, StringBuilder out) {
+		return remove(s, NON_ALPHANUMERIC, out);
+	}
+
+	/**
+	 * Appends the character sequence without any non alpha numeric characters to the appendable
+	 * @return true if any characters were removed
+	 */
+	public static boolean removeNonAlphaNumericCharacters(CharSequence s, Appendable out) throws IOException {
+		return remove(s, NON_ALPHANUMERIC, out);
+	}
+
+	private static final int WHITESPACE = 0;
+	private static final int NON_ALPHANUMERIC = 1;
+
+	private static boolean matches(char c, int kind) {
+		return kind == WHITESPACE ? Character.isWhitespace(c) : !Character.isLetterOrDigit(c);
+	}
+
+	/**
+	 * @return index of the first character at or after the index that is (or is not) of the kind,
+	 * or the length of the sequence
+	 */
+	private static int next(CharSequence s, int i, int kind, boolean match) {
+		final int length = s.length();
+		while (i < length && matches(s.charAt(i), kind) != match) i++;
+		return i;
+	}
+
+	private static boolean remove(CharSequence s, int kind, StringBuilder out) {
+		try {
+			return remove(s, kind, (Appendable)out);
+		} catch (IOException e) {
+			throw new IllegalStateException(e.getMessage());
 		}
-		return buf.toString();
+	}
+
+	/**
+	 * Appends the runs of characters that are not of the kind
+	 * @return true if any characters were removed
+	 */
+	private static boolean remove(CharSequence s, int kind, Appendable out) throws IOException {
+		final int length = s.length();
+		boolean removed = false;
+		for (int from = 0; from < length; ) {
+			int i = next(s, from, kind, true);
+			out.append(s, from, i);
+			from = next(s, i, kind, false);
+			removed |= from > i;
+		}
+		return removed;
+	}
+
+	/**
+	 * Measures the bytes allocated per call of the String and of the StringBuilder based methods
+	 * with com.sun.management.ThreadMXBean#getThreadAllocatedBytes where available
+	 */
+	private static void benchmarkAllocation() {
+		String text = "The quick brown fox jumps over the lazy dog, 42 times in a row.";
+		String clean = "Thequickbrownfoxjumpsoverthelazydog";
+		StringBuilder out = new StringBuilder(256);
+		int ops = 1000000;
+		for (int round = 0; round < 3; round++) {
+			long a0 = allocatedBytes();
+			for (int i = 0; i < ops; i++)
+				replace(text, "fox", "cat");
+			long a1 = allocatedBytes();
+			for (int i = 0; i < ops; i++) {
+				out.setLength(0);
+				replace(text, "fox", "cat", out);
+			}
+			long a2 = allocatedBytes();
+			for (int i = 0; i < ops; i++)
+				removeNonAlphaNumericCharacters(clean);
+			long a3 = allocatedBytes();
+			for (int i = 0; i < ops; i++) {
+				out.setLength(0);
+				removeWhitespaceCharacters(text, out);
+			}
+			long a4 = allocatedBytes();
+			System.out.println("replace: " + (a1 - a0) / ops + " B/op, replace into a StringBuilder: " + (a2 - a1) / ops
+					+ " B/op, removeNonAlphaNumericCharacters with nothing to remove: " + (a3 - a2) / ops
+					+ " B/op, removeWhitespaceCharacters into a StringBuilder: " + (a4 - a3) / ops + " B/op");
+		}
+	}
+
+	private static long allocatedBytes() {
+		try {
+			Object bean = java.lang.management.ManagementFactory.getThreadMXBean();
+			java.lang.reflect.Method m = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", new Class[] {long.class});
+			return ((Long)m.invoke(bean, new Object[] {new Long(Thread.currentThread().getId())})).longValue();
+		} catch (Exception e) {
+			return 0;
+		}
+	}
+
+	public static void main(String[] args) {
+		//benchmarkAllocation();
 	}
 }
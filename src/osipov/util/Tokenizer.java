@@ -0,0 +1,416 @@
+package osipov.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reusable cursor over the tokens of a character sequence, a char[] or single byte
+ * (ISO-8859-1 or ASCII) content in a ByteBuffer. Tokens are reported as start and end
+ * offsets into the input and materialized only on request, so that tokenizing a line
+ * such as @see MappedFile.Lines#readLine() allocates nothing.
+ *
+ * Tokens are separated by:
+ * - a single character or a string delimiter, with the same rules as
+ *   @see WordUtil#split(java.util.Collection, String, String, int): adjacent delimiters
+ *   yield empty tokens and an input with n delimiters has n + 1 tokens
+ * - runs of whitespace (Character.isWhitespace), leading and trailing whitespace is skipped
+ *   and no empty tokens are reported, like java.util.StringTokenizer
+ *
+ * Offsets are indices into the input as it was passed to reset: into the character sequence,
+ * into the char[] or absolute indices into the ByteBuffer. Tokens are also accessible by their
+ * index, through a table of offsets built on the first such access and kept until the next reset.
+ *
+ * Usage:
+ * Tokenizer words = new Tokenizer(' ');
+ * for (words.reset(line); words.next(); )
+ *     count(line, words.start(), words.end());
+ *
+ * Not thread safe, an instance is meant to be reused by one thread for many inputs.
+ *
+ * @author @osipov
+ */
+public final class Tokenizer {
+	private static final int SEQUENCE = 0;
+	private static final int CHARS = 1;
+	private static final int BYTES = 2;
+
+	//delimiter, null for whitespace
+	private final String delim;
+	private final Searcher searcher;
+	private final char single;
+
+	private int mode;
+	private CharSequence sequence;
+	private char[] chars;
+	private ByteBuffer bytes;
+	//bytes with its position moved for the multi character search
+	private ByteBuffer window;
+	private int from, to;
+
+	//position the next token is looked for at, beyond to when the input is exhausted
+	private int position;
+	private int start = -1, end = -1;
+
+	//start and end of each token, valid for the first count tokens once built
+	private int[] offsets = new int[32];
+	private int count = -1;
+
+	/**
+	 * Creates a tokenizer for tokens separated by runs of whitespace
+	 */
+	public Tokenizer() {
+		this.delim = null;
+		this.searcher = null;
+		this.single = 0;
+	}
+
+	/**
+	 * Creates a tokenizer for tokens separated by a single character
+	 */
+	public Tokenizer(char delim) {
+		this(String.valueOf(delim));
+	}
+
+	/**
+	 * Creates a tokenizer for tokens separated by a string
+	 * @param delim non empty delimiter, null for whitespace
+	 */
+	public Tokenizer(String delim) {
+		if (delim != null && delim.length() == 0) throw new IllegalArgumentException("empty delimiter");
+		this.delim = delim;
+		this.searcher = delim != null && delim.length() > 1 ? new Searcher(delim) : null;
+		this.single = delim != null ? delim.charAt(0) : 0;
+	}
+
+	public String getDelimiter() {
+		return delim;
+	}
+
+	/**
+	 * Starts tokenizing the character sequence
+	 * @return this tokenizer
+	 */
+	public Tokenizer reset(CharSequence s) {
+		return reset(SEQUENCE, s, null, null, 0, s.length());
+	}
+
+	/**
+	 * Starts tokenizing the characters in the range
+	 * @param c characters
+	 * @param from start of the range, inclusive
+	 * @param to end of the range, exclusive
+	 * @return this tokenizer
+	 */
+	public Tokenizer reset(char[] c, int from, int to) {
+		return reset(CHARS, null, c, null, from, to);
+	}
+
+	/**
+	 * Starts tokenizing the bytes between the position and the limit of the buffer,
+	 * which are left unchanged. Bytes are read as ISO-8859-1 characters.
+	 * @return this tokenizer
+	 */
+	public Tokenizer reset(ByteBuffer b) {
+		if (searcher != null && (window == null || b != bytes)) window = b.duplicate();
+		return reset(BYTES, null, null, b, b.position(), b.limit());
+	}
+
+	private Tokenizer reset(int mode, CharSequence s, char[] c, ByteBuffer b, int from, int to) {
+		this.mode = mode;
+		this.sequence = s;
+		this.chars = c;
+		this.bytes = b;
+		this.from = from;
+		this.to = to;
+		this.position = from;
+		this.start = this.end = -1;
+		this.count = -1;
+		return this;
+	}
+
+	/**
+	 * Moves to the next token
+	 * @return false if there are no more tokens
+	 */
+	public boolean next() {
+		if (position > to) return false;
+		if (delim == null) {
+			int i = position;
+			while (i < to && Character.isWhitespace(charAt(i))) i++;
+			if (i == to) {
+				position = to + 1;
+				return false;
+			}
+			start = i;
+			while (i < to && !Character.isWhitespace(charAt(i))) i++;
+			end = i;
+			position = i;
+			return true;
+		}
+		int i = indexOfDelimiter(position);
+		start = position;
+		end = i < 0 ? to : i;
+		position = i < 0 ? to + 1 : i + delim.length();
+		return true;
+	}
+
+	/**
+	 * @return start of the current token, inclusive
+	 */
+	public int start() {
+		return start;
+	}
+
+	/**
+	 * @return end of the current token, exclusive
+	 */
+	public int end() {
+		return end;
+	}
+
+	/**
+	 * @return length of the current token
+	 */
+	public int length() {
+		return end - start;
+	}
+
+	/**
+	 * @return the character at an offset of the input
+	 */
+	public char charAt(int i) {
+		switch (mode) {
+		case CHARS: return chars[i];
+		case BYTES: return (char)(bytes.get(i) & 0xff);
+		default: return sequence.charAt(i);
+		}
+	}
+
+	/**
+	 * @return the current token as a new string
+	 */
+	public String token() {
+		return substring(start, end);
+	}
+
+	/**
+	 * Appends the current token to the buffer
+	 * @return the buffer
+	 */
+	public StringBuilder appendTo(StringBuilder buf) {
+		return appendTo(buf, start, end);
+	}
+
+	/**
+	 * @return true if the current token consists of the same characters as the specified sequence
+	 */
+	public boolean tokenEquals(CharSequence s) {
+		return regionEquals(start, end, s);
+	}
+
+	/**
+	 * @return number of tokens in the input
+	 */
+	public int count() {
+		if (count < 0) index();
+		return count;
+	}
+
+	/**
+	 * @param i zero indexed position of the token
+	 * @return start of the token, inclusive
+	 */
+	public int start(int i) {
+		return offsets[offset(i)];
+	}
+
+	/**
+	 * @param i zero indexed position of the token
+	 * @return end of the token, exclusive
+	 */
+	public int end(int i) {
+		return offsets[offset(i) + 1];
+	}
+
+	/**
+	 * @param i zero indexed position of the token
+	 * @return the token as a new string
+	 */
+	public String token(int i) {
+		int o = offset(i);
+		return substring(offsets[o], offsets[o + 1]);
+	}
+
+	/**
+	 * Appends a token to the buffer
+	 * @param i zero indexed position of the token
+	 * @return the buffer
+	 */
+	public StringBuilder appendTo(int i, StringBuilder buf) {
+		int o = offset(i);
+		return appendTo(buf, offsets[o], offsets[o + 1]);
+	}
+
+	/**
+	 * @param i zero indexed position of the token
+	 * @return true if the token consists of the same characters as the specified sequence
+	 */
+	public boolean tokenEquals(int i, CharSequence s) {
+		int o = offset(i);
+		return regionEquals(offsets[o], offsets[o + 1], s);
+	}
+
+	private int offset(int i) {
+		if (i < 0 || i >= count()) throw new IndexOutOfBoundsException("token " + i + " of " + count);
+		return i << 1;
+	}
+
+	/**
+	 * Records the offsets of all tokens with a separate scan, the cursor is left where it was
+	 */
+	private void index() {
+		int position = this.position, start = this.start, end = this.end;
+		this.position = from;
+		int n = 0;
+		while (next()) {
+			if (n + 2 > offsets.length) {
+				int[] grown = new int[offsets.length << 1];
+				System.arraycopy(offsets, 0, grown, 0, n);
+				offsets = grown;
+			}
+			offsets[n++] = this.start;
+			offsets[n++] = this.end;
+		}
+		count = n >> 1;
+		this.position = position;
+		this.start = start;
+		this.end = end;
+	}
+
+	private int indexOfDelimiter(int i) {
+		if (searcher == null) {
+			switch (mode) {
+			case CHARS:
+				for (; i < to; i++)
+					if (chars[i] == single) return i;
+				return -1;
+			case BYTES:
+				return single > 0xff ? -1 : Searcher.indexOf(bytes, i, to, (byte)single);
+			default:
+				for (; i < to; i++)
+					if (sequence.charAt(i) == single) return i;
+				return -1;
+			}
+		}
+		switch (mode) {
+		case CHARS: return searcher.indexOf(chars, i, to);
+		case BYTES:
+			window.limit(to).position(i);
+			return searcher.indexOf(window);
+		default: return searcher.indexOf(sequence, i, to);
+		}
+	}
+
+	private String substring(int start, int end) {
+		switch (mode) {
+		case CHARS: return new String(chars, start, end - start);
+		case BYTES: return appendTo(new StringBuilder(end - start), start, end).toString();
+		default: return sequence.subSequence(start, end).toString();
+		}
+	}
+
+	private StringBuilder appendTo(StringBuilder buf, int start, int end) {
+		switch (mode) {
+		case CHARS: return buf.append(chars, start, end - start);
+		case BYTES:
+			for (int i = start; i < end; i++)
+				buf.append((char)(bytes.get(i) & 0xff));
+			return buf;
+		default: return buf.append(sequence, start, end);
+		}
+	}
+
+	private boolean regionEquals(int start, int end, CharSequence s) {
+		if (end - start != s.length()) return false;
+		for (int i = start, j = 0; i < end; i++, j++)
+			if (charAt(i) != s.charAt(j)) return false;
+		return true;
+	}
+
+	/**
+	 * @return the remaining tokens, each in brackets
+	 */
+	private static String tokens(Tokenizer t) {
+		StringBuilder buf = new StringBuilder();
+		while (t.next())
+			t.appendTo(buf.append('[')).append(']');
+		return buf.toString();
+	}
+
+	private static void check(Object expected, Object actual) {
+		if (!expected.equals(actual)) throw new IllegalStateException("expected " + expected + " but was " + actual);
+	}
+
+	private static void testTokenizer() {
+		Tokenizer comma = new Tokenizer(',');
+		check("[][a][][bc][]", tokens(comma.reset(",a,,bc,")));
+		check(5, comma.count());
+		check("bc", comma.token(3));
+		check("[]", tokens(comma.reset("")));
+		check(1, comma.count());
+		check("[a][]", tokens(comma.reset("a,")));
+
+		//count and token(i) in the middle of an iteration leave the cursor where it was
+		comma.reset("x,yy,zzz");
+		check(true, comma.next());
+		check(true, comma.next());
+		check(3, comma.count());
+		check("zzz", comma.token(2));
+		check("yy", comma.token());
+		check(2, comma.start());
+		check(true, comma.tokenEquals("yy"));
+		check("[zzz]", tokens(comma));
+		check("x", comma.appendTo(0, new StringBuilder()).toString());
+		try {
+			comma.token(3);
+			throw new IllegalStateException("token beyond count");
+		} catch (IndexOutOfBoundsException expected) {
+		}
+
+		Tokenizer arrow = new Tokenizer("->");
+		char[] c = "x->y->->z".toCharArray();
+		check("[x][y][][z]", tokens(arrow.reset(c, 0, c.length)));
+		check(4, arrow.count());
+		check("[][y][][z]", tokens(arrow.reset(c, 1, c.length)));
+		check("[x][y-]", tokens(arrow.reset(c, 0, 5)));
+		check("[a][-b]", tokens(new Tokenizer("--").reset("a---b")));
+
+		//multi character delimiter on a buffer with a non zero position, offsets are absolute
+		ByteBuffer b = ByteBuffer.wrap("..x->y->->z->".getBytes());
+		b.position(2);
+		check("[x][y][][z][]", tokens(arrow.reset(b)));
+		check(5, arrow.count());
+		check(5, arrow.start(1));
+		check(true, arrow.tokenEquals(3, "z"));
+		check(2, b.position());
+		check(13, b.limit());
+		b.limit(8);
+		check("[x][y][]", tokens(arrow.reset(b)));
+
+		Tokenizer space = new Tokenizer();
+		ByteBuffer s = ByteBuffer.wrap("  one \t two\nthree  ".getBytes());
+		space.reset(s);
+		check(true, space.next());
+		check(3, space.count());
+		check("one", space.token());
+		check("[two][three]", tokens(space));
+		check(true, space.tokenEquals(1, "two"));
+		check("three", space.token(2));
+		check("", tokens(space.reset(" \t ")));
+		check(0, space.count());
+		System.out.println("Tokenizer tests passed");
+	}
+
+	public static void main(String[] args) {
+		//testTokenizer();
+	}
+}
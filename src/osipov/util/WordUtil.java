@@ -39,7 +39,8 @@ public class WordUtil {
 	}
 
 	/**
-	 * Returns a word in a string 
+	 * Returns a word in a string, to go through all words of a string
+	 * use a @see Tokenizer instead of calling this method for each position
 	 * @param s the string containing a word
 	 * @param pos zero indexed position of the word in a string
 	 * @param sep word separator to use in the string, 
@@ -51,7 +52,7 @@ public class WordUtil {
 	public static String getWord(final String s, final int pos, final String sep, final String ifNoWord) {
 		int i = 0, j = 0, k = 0;
 		while((j = s.indexOf(sep, j)) != -1 && i < pos) {
-			k = ++j; i++;
+			k = j += sep.length(); i++;
 		}
 		if (j < 0)
 			if (pos > i)
@@ -135,8 +136,23 @@ public class WordUtil {
 		c.add(s.substring(i, s.length()));
 		return c;
 	}
-    
 
+    /**
+     * Same as @see #split(Collection, String, String, int) for any character sequence,
+     * for example a line of a memory mapped file @see MappedFile.Lines#readLine()
+     */
+	public static Collection split(final Collection c, final CharSequence s, final String delim, final int nth) {
+		if (s instanceof String) return split(c, (String)s, delim, nth);
+        c.clear();
+		final int length = delim.length();
+		int i = 0, j = 0, k = 0;
+		while ((j = StringUtil.indexOf(s, delim, i)) != -1 && k < nth) {
+			c.add(s.subSequence(i, j).toString());
+			i = j + length; k++;
+		}
+		c.add(s.subSequence(i, s.length()).toString());
+		return c;
+	}
     
 	private static void testSplit() throws SecurityException, RuntimeException, NoSuchMethodException {
 		//assertTrue(Arrays.deepEquals(new String[]{"a", "b", "c"}, split("a,b,c", ",", new String[3])), new RuntimeException(new WordUtil().getClass().getMethod("split", new Class[]{String.class, String.class, String[].class}).toString()));
@@ -194,20 +210,15 @@ public class WordUtil {
 	}
 	
 	public static Collection ngrams(final Collection c, String s, String delim, int n) {
-		StringBuffer ngram = new StringBuffer();
-		List words = (List)split(new ArrayList(), s, delim, Integer.MAX_VALUE);
-		for (int i = 0; i < n; i++) {
-			for (int j = 0; j < words.size() - i; j++) {
-				int k = 0;
-				for (; k < i; k++) {
-					ngram.append(words.get(j + k)); ngram.append(SPACE);
-				}
-				ngram.append(words.get(j + k));
-				c.add(ngram.toString().intern());
-				ngram.setLength(0);
-			}
-		}
-		return c;
+		return ngrams(c, (CharSequence)s, delim, n);
+	}
+
+	/**
+	 * Adds the interned ngrams of the words of the input, to count ngrams without creating
+	 * and interning a string for each of them use @see NGrams
+	 */
+	public static Collection ngrams(final Collection c, CharSequence s, String delim, int n) {
+		return ngrams(c, new Tokenizer(delim).reset(s), n, true);
 	}
 	
 	public static Collection ngrams2(final Collection c, String s, int n) {
@@ -215,28 +226,45 @@ public class WordUtil {
 	}
 	
 	public static Collection ngrams2(final Collection c, String s, String delim, int n) {
-		StringBuffer ngram = new StringBuffer();
+		return ngrams(c, new Tokenizer(delim).reset(s), n, true);
+	}
+
+	/**
+	 * Adds the space separated ngrams of the tokens of the input, shorter ngrams first,
+	 * in the order of @see #ngrams(Collection, CharSequence, String, int). Words are appended
+	 * straight from the input through the tokenizer's offset table, without splitting the
+	 * input into word strings first.
+	 * @param c the collection that should hold the result
+	 * @param words tokenizer positioned over the input
+	 * @param n the length of the longest ngram
+	 * @param intern whether the ngrams should be interned
+	 * @return
+	 */
+	public static Collection ngrams(final Collection c, final Tokenizer words, int n, boolean intern) {
+		StringBuilder ngram = new StringBuilder();
+		final int count = words.count();
 		for (int i = 0; i < n; i++) {
-			String word = null;
-			for (int j = 0; (word = getWord(s, j, SPACE, null)) != null; j++) {
-			empty:{				
-				ngram.append(word.intern());
-				for(int k = j + 1; k < j + 1 + i; k++) {
-					word = getWord(s, k, SPACE, null);
-					if (word == null)  
-						{break empty;} 
-					else
-						ngram.append(SPACE); ngram.append(word.intern());
+			for (int j = 0; j < count - i; j++) {
+				int k = 0;
+				for (; k < i; k++) {
+					words.appendTo(j + k, ngram).append(SPACE);
 				}
-				c.add(ngram.toString().intern());
-			}
+				words.appendTo(j + k, ngram);
+				c.add(intern ? ngram.toString().intern() : ngram.toString());
 				ngram.setLength(0);
 			}
 		}
 		return c;
 	}
     
+	private static void testNgrams() throws Throwable {
+		Collection c = ngrams(new ArrayList(), "a b  c", 2);
+		assertTrue(c.equals(ngrams2(new ArrayList(), "a b  c", 2)), new RuntimeException(WordUtil.class.getName() + ".ngrams2()"));
+		System.out.println(c);
+	}
+
 	public static void main(String[] args) throws Throwable {
+		//testNgrams();
 	}
 	
 	public static String join(final Collection c) {
@@ -3,14 +3,87 @@ package osipov.util;
 import static osipov.util.IOUtil.copy;
 
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 public class ZipUtil {
+	/**
+	 * Entries smaller than this are extracted in batches rather than one task per entry
+	 */
+	private static final long SMALL_ENTRY = 64 * 1024;
+	/**
+	 * Uncompressed size of the entries in one batch of small entries
+	 */
+	private static final long BATCH_SIZE = 1024 * 1024;
+	
+	private static final String MANIFEST = ".manifest";
+	private static final String STAGING = ".staging";
+	
+	/**
+	 * Statistics of a parallel extraction, @see ZipUtil#unzip(String, String, ExecutorService)
+	 */
+	public static class ExtractionReport {
+		/** number of files extracted */
+		public int entries;
+		/** number of files left in place by an incremental extraction */
+		public int unchanged;
+		/** number of files deleted by an incremental extraction */
+		public int removed;
+		/** number of directories created */
+		public int directories;
+		/** number of bytes written */
+		public long bytes;
+		/** time spent reading the central directory and planning the extraction */
+		public long scanNanos;
+		/** time spent creating directories */
+		public long mkdirNanos;
+		/** time spent extracting the files */
+		public long extractNanos;
+		
+		public String toString() {
+			return "entries=" + entries + " unchanged=" + unchanged + " removed=" + removed + " directories=" + directories + " bytes=" + bytes
+				+ " scan=" + scanNanos / 1000000 + "ms mkdir=" + mkdirNanos / 1000000 + "ms extract=" + extractNanos / 1000000 + "ms";
+		}
+	}
 	
 	/** Unzips the zip file to the destination directory
 	 * 
@@ -32,7 +105,7 @@ public class ZipUtil {
 				}
 
 				new File((new File(base+entry.getName())).getParent()).mkdirs();
-				copy(zipFile.getInputStream(entry),	new BufferedOutputStream(new FileOutputStream(base+entry.getName())));
+				copy(zipFile.getInputStream(entry), new FileOutputStream(base+entry.getName()));
 			}
 
 			zipFile.close();
@@ -41,4 +114,861 @@ public class ZipUtil {
 		}
 
 	}
+	
+	/**
+	 * Unzips the zip file to the destination directory using the specified number of threads
+	 * @see #unzip(String, String, ExecutorService)
+	 */
+	public static ExtractionReport unzip(String file, String destination, int threads) {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			return unzip(file, destination, executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/** Unzips the zip file to the destination directory extracting the entries in parallel.
+	 * All of the directories are created up front, then the entries are extracted by 
+	 * the tasks submitted to the executor. Small entries are grouped into batches so
+	 * that each task does a meaningful amount of work, large entries are extracted 
+	 * by a task of their own.
+	 * 
+	 * @param file The file to unzip
+	 * @param destination The directory to unzip to
+	 * @param executor Runs the extraction tasks, for example a fixed thread pool, 
+	 * a fork join pool or a virtual thread per task executor
+	 * @return statistics of the extraction
+	 */
+	public static ExtractionReport unzip(String file, String destination, ExecutorService executor) {
+		ZipFile zipFile = null;
+		try {
+			ExtractionReport report = new ExtractionReport();
+			long start = System.nanoTime();
+			zipFile = new ZipFile(file);
+			List entries = Collections.list(zipFile.entries());
+			report.scanNanos = System.nanoTime() - start;
+			extract(zipFile, entries, destination, executor, report);
+			return report;
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e.getMessage());
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		} finally {
+			if (zipFile != null) try {zipFile.close();} catch (IOException e) {}
+		}
+	}
+	
+	/**
+	 * Extracts the specified entries of the zip file to the destination directory
+	 * in parallel, @see #unzip(String, String, ExecutorService)
+	 */
+	private static void extract(final ZipFile zipFile, List entries, String destination, ExecutorService executor, ExtractionReport report) throws IOException, InterruptedException {
+		final String base = destination.replace('\\', '/') + "/";
+		final AtomicLong bytes = new AtomicLong();
+		long start = System.nanoTime();
+		Set dirs = new HashSet();
+		dirs.add(base);
+		List large = new ArrayList(), small = new ArrayList();
+		for (int i = 0; i < entries.size(); i++) {
+			ZipEntry entry = (ZipEntry)entries.get(i);
+			String name = base + entry.getName();
+			if (entry.isDirectory()) {
+				dirs.add(name);
+				continue;
+			}
+			dirs.add(name.substring(0, name.lastIndexOf('/') + 1));
+			if (entry.getSize() > -1 && entry.getSize() < SMALL_ENTRY)
+				small.add(entry);
+			else
+				large.add(entry);
+		}
+		List batches = new ArrayList();
+		for (int i = 0; i < large.size(); i++)
+			batches.add(Collections.singletonList(large.get(i)));
+		List batch = new ArrayList();
+		long batchSize = 0;
+		for (int i = 0; i < small.size(); i++) {
+			ZipEntry entry = (ZipEntry)small.get(i);
+			batch.add(entry);
+			batchSize += entry.getSize();
+			if (batchSize >= BATCH_SIZE) {
+				batches.add(batch);
+				batch = new ArrayList(); batchSize = 0;
+			}
+		}
+		if (!batch.isEmpty()) batches.add(batch);
+		report.entries += large.size() + small.size();
+		report.scanNanos += System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		List sorted = new ArrayList(dirs);
+		Collections.sort(sorted);
+		for (int i = 0; i < sorted.size(); i++) {
+			File dir = new File((String)sorted.get(i));
+			if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("Unable to create " + dir);
+		}
+		report.directories += sorted.size();
+		report.mkdirNanos += System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		List futures = new ArrayList();
+		//tells the tasks to stop at the next entry once one of them failed
+		final AtomicBoolean stop = new AtomicBoolean();
+		try {
+			for (int i = 0; i < batches.size(); i++) {
+				final List tasks = (List)batches.get(i);
+				futures.add(executor.submit(new Callable() {
+					public Object call() throws IOException {
+						for (int j = 0; j < tasks.size() && !stop.get(); j++) {
+							ZipEntry entry = (ZipEntry)tasks.get(j);
+							//the output is opened first so that a failure to create it cannot leak the entry stream
+							FileOutputStream out = new FileOutputStream(base + entry.getName());
+							InputStream in = null;
+							try {
+								in = zipFile.getInputStream(entry);
+							} finally {
+								if (in == null) try {out.close();} catch (IOException e) {}
+							}
+							long n = IOUtil.transfer(in, out, true);
+							if (n < 0) throw new IOException("Unable to extract " + entry.getName());
+							bytes.addAndGet(n);
+						}
+						return null;
+					}
+				}));
+			}
+			for (int i = 0; i < futures.size(); i++)
+				((Future)futures.get(i)).get();
+		} catch (ExecutionException e) {
+			stop.set(true);
+			settle(futures);
+			throw new IOException(e.getCause().getMessage());
+		} catch (InterruptedException e) {
+			stop.set(true);
+			settle(futures);
+			throw e;
+		} catch (RuntimeException e) {
+			stop.set(true);
+			settle(futures);
+			throw e;
+		}
+		report.bytes += bytes.get();
+		report.extractNanos += System.nanoTime() - start;
+	}
+	
+	/**
+	 * Waits for all of the tasks to finish and ignores their outcome, so that none of them
+	 * still reads from the zip file or writes to the destination once the zip file is closed
+	 */
+	private static void settle(List futures) {
+		boolean interrupted = false;
+		for (int i = 0; i < futures.size(); i++) {
+			while (true) {
+				try {
+					((Future)futures.get(i)).get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					break;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+	
+	/**
+	 * Incrementally unzips the zip file to the destination directory 
+	 * @see #unzipIncremental(String, String, ExecutorService)
+	 */
+	public static ExtractionReport unzipIncremental(String file, String destination) {
+		return unzipIncremental(file, destination, null);
+	}
+	
+	/** 
+	 * Unzips the zip file to the destination directory, extracting only the entries
+	 * that were added or changed since the previous extraction. The entries extracted 
+	 * into the destination are recorded in a manifest file (destination + ".manifest")
+	 * holding the CRC32 checksum, size and modification time of each entry. If the
+	 * size and modification time of the archive match the ones in the manifest the
+	 * archive is not even opened. Otherwise, the added and changed entries are 
+	 * extracted into a staging directory (destination + ".staging") and only then
+	 * moved into the destination, entries no longer in the archive are deleted.
+	 * An interrupted extraction leaves either the previous contents and manifest 
+	 * in place, or no manifest, in which case the next call extracts everything again. 
+	 * 
+	 * @param file The file to unzip
+	 * @param destination The directory to unzip to
+	 * @param executor Runs the extraction tasks, @see #unzip(String, String, ExecutorService).
+	 * If null, a thread pool with a thread per processor is used when there is something to extract.
+	 * @return statistics of the extraction
+	 */
+	public static ExtractionReport unzipIncremental(String file, String destination, ExecutorService executor) {
+		ExtractionReport report = new ExtractionReport();
+		File archive = new File(file), dest = new File(destination);
+		File manifest = new File(destination + MANIFEST), staging = new File(destination + STAGING);
+		String header = archive.length() + " " + archive.lastModified();
+		ZipFile zipFile = null;
+		ExecutorService pool = null;
+		try {
+			long start = System.nanoTime();
+			Map previous = dest.isDirectory() ? readManifest(manifest) : null;
+			if (previous != null && header.equals(previous.get(null))) {
+				report.unchanged = previous.size() - 1;
+				report.scanNanos = System.nanoTime() - start;
+				return report;
+			}
+			delete(staging);
+			
+			zipFile = new ZipFile(file);
+			Map current = new HashMap();
+			List changed = new ArrayList();
+			for (Enumeration entries = zipFile.entries(); entries.hasMoreElements(); ) {
+				ZipEntry entry = (ZipEntry) entries.nextElement();
+				if (entry.isDirectory()) {
+					changed.add(entry);
+					continue;
+				}
+				String line = manifestLine(entry);
+				current.put(entry.getName(), line);
+				if (previous != null && line.equals(previous.get(entry.getName())) 
+						&& new File(dest, entry.getName()).isFile())
+					report.unchanged++;
+				else
+					changed.add(entry);
+			}
+			report.scanNanos = System.nanoTime() - start;
+			
+			if (executor == null)
+				executor = pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			extract(zipFile, changed, staging.getPath(), executor, report);
+
+			//commit, the manifest is removed first so that an interrupted commit 
+			//is followed by a full extraction 
+			start = System.nanoTime();
+			if (manifest.exists() && !manifest.delete()) throw new IOException("Unable to delete " + manifest);
+			if (previous == null) {
+				delete(dest);
+				if (!dest.getAbsoluteFile().getParentFile().isDirectory()) dest.getAbsoluteFile().getParentFile().mkdirs();
+				if (!staging.renameTo(dest)) throw new IOException("Unable to rename " + staging + " to " + dest);
+			} else {
+				for (int i = 0; i < changed.size(); i++) {
+					ZipEntry entry = (ZipEntry)changed.get(i);
+					File target = new File(dest, entry.getName());
+					if (entry.isDirectory()) {
+						target.mkdirs();
+						continue;
+					}
+					target.getParentFile().mkdirs();
+					if (target.exists() && !target.delete()) throw new IOException("Unable to delete " + target);
+					if (!new File(staging, entry.getName()).renameTo(target)) throw new IOException("Unable to rename to " + target);
+				}
+				for (Iterator i = previous.keySet().iterator(); i.hasNext(); ) {
+					String name = (String)i.next();
+					if (name != null && !current.containsKey(name)) {
+						new File(dest, name).delete();
+						report.removed++;
+					}
+				}
+				delete(staging);
+			}
+			writeManifest(manifest, header, current);
+			report.extractNanos += System.nanoTime() - start;
+			return report;
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e.getMessage());
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		} finally {
+			if (zipFile != null) try {zipFile.close();} catch (IOException e) {}
+			if (pool != null) pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Selects zip entries, @see ZipUtil#entries(String, EntryFilter)
+	 */
+	public interface EntryFilter {
+		public boolean accept(ZipEntry entry);
+	}
+	
+	/**
+	 * Returns a filter that accepts the entries whose names match the glob pattern.
+	 * ** matches any sequence of characters, * matches any sequence of characters 
+	 * other than / and ? matches any single character other than /
+	 * For example: "models/**.bin" or "*.properties"
+	 * @param pattern glob pattern
+	 * @return entry filter
+	 */
+	public static EntryFilter glob(String pattern) {
+		StringBuffer regex = new StringBuffer();
+		for (int i = 0; i < pattern.length(); i++) {
+			char c = pattern.charAt(i);
+			if (c == '*' && i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+				regex.append(".*"); i++;
+			} else if (c == '*')
+				regex.append("[^/]*");
+			else if (c == '?')
+				regex.append("[^/]");
+			else if (Character.isLetterOrDigit(c) || c == '/')
+				regex.append(c);
+			else
+				regex.append('\\').append(c);
+		}
+		final Pattern p = Pattern.compile(regex.toString());
+		return new EntryFilter() {
+			public boolean accept(ZipEntry entry) {
+				return p.matcher(entry.getName()).matches();
+			}
+		};
+	}
+	
+	/**
+	 * A zip entry whose contents can be read without extracting the entry to disk
+	 */
+	public static abstract class Entry {
+		protected final ZipEntry entry;
+		
+		Entry(ZipEntry entry) {
+			this.entry = entry;
+		}
+		
+		public ZipEntry getEntry() {
+			return entry;
+		}
+		
+		public String getName() {
+			return entry.getName();
+		}
+		
+		/**
+		 * @return stream over the uncompressed contents of the entry, the stream 
+		 * reaches its end at the end of the entry
+		 * @throws IOException
+		 */
+		public abstract InputStream openStream() throws IOException;
+		
+		public ReadableByteChannel openChannel() throws IOException {
+			return Channels.newChannel(openStream());
+		}
+		
+		public String toString() {
+			return entry.getName();
+		}
+	}
+	
+	/**
+	 * Lazy iterator over the entries of a zip file or a zip stream. Each call to next()
+	 * returns an @see Entry. Entries read from a stream can only be read until the next 
+	 * call to hasNext() or next(). The iterator should be closed when no longer needed. 
+	 */
+	public static abstract class Entries implements Iterator {
+		protected final EntryFilter filter;
+		protected Entry next;
+		
+		Entries(EntryFilter filter) {
+			this.filter = filter;
+		}
+		
+		/**
+		 * @return next accepted entry or null if there are no more entries
+		 */
+		protected abstract Entry advance() throws IOException;
+		
+		public boolean hasNext() {
+			try {
+				if (next == null) next = advance();
+			} catch (IOException e) {
+				throw new RuntimeException(e.getMessage());
+			}
+			return next != null;
+		}
+		
+		public Object next() {
+			if (!hasNext()) throw new NoSuchElementException();
+			Entry e = next;
+			next = null;
+			return e;
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		public abstract void close() throws IOException;
+	}
+	
+	/**
+	 * Random access to the entries of a zip file. The central directory of the archive
+	 * is read once when the archive is opened and entries are looked up by name 
+	 * from then on. Archives opened with @see ZipUtil#open(String) are cached and shared,
+	 * each open must be matched with a close.
+	 */
+	public static class Archive {
+		private final ZipFile zipFile;
+		private final long length, lastModified;
+		private int references = 1;
+		
+		private Archive(File file) throws IOException {
+			this.length = file.length();
+			this.lastModified = file.lastModified();
+			this.zipFile = new ZipFile(file);
+		}
+		
+		/**
+		 * @param name name of the entry
+		 * @return the entry or null if the archive does not contain an entry with the name
+		 */
+		public Entry get(String name) {
+			final ZipEntry entry = zipFile.getEntry(name);
+			if (entry == null) return null;
+			return new Entry(entry) {
+				public InputStream openStream() throws IOException {
+					return zipFile.getInputStream(entry);
+				}
+			};
+		}
+		
+		public Entries entries() {
+			return entries(null);
+		}
+		
+		/**
+		 * @param filter selects the entries to return, null to return all entries
+		 * @return iterator over the entries of the archive, closing the iterator does not close the archive
+		 */
+		public Entries entries(EntryFilter filter) {
+			final Enumeration entries = zipFile.entries();
+			return new Entries(filter) {
+				protected Entry advance() {
+					while (entries.hasMoreElements()) {
+						ZipEntry entry = (ZipEntry)entries.nextElement();
+						if (this.filter == null || this.filter.accept(entry)) 
+							return get(entry.getName());
+					}
+					return null;
+				}
+				
+				public void close() {
+				}
+			};
+		}
+		
+		private synchronized void retain() {
+			references++;
+		}
+		
+		public synchronized void close() throws IOException {
+			if (--references == 0) zipFile.close();
+		}
+	}
+	
+	private static final int ARCHIVE_CACHE_SIZE = 16;
+	
+	private static final Map archives = new LinkedHashMap(ARCHIVE_CACHE_SIZE, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry eldest) {
+			if (size() <= ARCHIVE_CACHE_SIZE) return false;
+			try {((Archive)eldest.getValue()).close();} catch (IOException e) {}
+			return true;
+		}
+	};
+	
+	/**
+	 * Opens the zip file for random access. Recently opened archives are cached,
+	 * so opening the same unchanged archive again reuses its central directory.
+	 * @param file zip file
+	 * @return archive that must be closed when no longer needed
+	 * @throws IOException
+	 */
+	public static Archive open(String file) throws IOException {
+		File f = new File(file).getAbsoluteFile();
+		synchronized (archives) {
+			Archive a = (Archive)archives.get(f.getPath());
+			if (a == null || a.length != f.length() || a.lastModified != f.lastModified()) {
+				if (a != null) a.close();
+				a = new Archive(f);
+				archives.put(f.getPath(), a);
+			}
+			a.retain();
+			return a;
+		}
+	}
+	
+	/**
+	 * Opens the zip file with a memory mapped reader, @see MappedZipFile
+	 * @param file zip file
+	 * @param persistIndex controls whether the index of the central directory is kept next to the zip file
+	 * @return memory mapped zip file
+	 * @throws IOException
+	 */
+	public static MappedZipFile map(String file, boolean persistIndex) throws IOException {
+		return new MappedZipFile(new File(file), persistIndex);
+	}
+	
+	/**
+	 * Opens a stream over the contents of a single entry of the zip file
+	 * @param file zip file
+	 * @param name name of the entry
+	 * @return stream over the contents of the entry or null if the zip file does not have the entry
+	 * @throws IOException
+	 */
+	public static InputStream openEntry(String file, String name) throws IOException {
+		final Archive archive = open(file);
+		Entry entry = archive.get(name);
+		if (entry == null) {
+			archive.close();
+			return null;
+		}
+		return new FilterInputStream(entry.openStream()) {
+			private boolean closed = false;
+			public void close() throws IOException {
+				if (closed) return;
+				closed = true;
+				try {
+					super.close();
+				} finally {
+					archive.close();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Iterates over the entries of the zip file without extracting them
+	 * @param file zip file
+	 * @param filter selects the entries to return, null to return all entries, @see #glob(String)
+	 * @return iterator over the entries, the iterator must be closed when no longer needed
+	 * @throws IOException
+	 */
+	public static Entries entries(String file, EntryFilter filter) throws IOException {
+		final Archive archive = open(file);
+		final Entries entries = archive.entries(filter);
+		return new Entries(filter) {
+			protected Entry advance() throws IOException {
+				return entries.hasNext() ? (Entry)entries.next() : null;
+			}
+			
+			public void close() throws IOException {
+				archive.close();
+			}
+		};
+	}
+	
+	/**
+	 * Iterates over the entries of a zip stream, for example a zip file downloaded over HTTP,
+	 * without extracting them. Each entry can only be read until the iterator moves to the next entry. 
+	 * @param in zip stream
+	 * @param filter selects the entries to return, null to return all entries, @see #glob(String)
+	 * @return iterator over the entries, closing the iterator closes the stream
+	 */
+	public static Entries entries(InputStream in, EntryFilter filter) {
+		final ZipInputStream zin = in instanceof ZipInputStream ? (ZipInputStream)in : new ZipInputStream(in);
+		return new Entries(filter) {
+			protected Entry advance() throws IOException {
+				for (ZipEntry entry; (entry = zin.getNextEntry()) != null; ) {
+					if (this.filter != null && !this.filter.accept(entry)) continue;
+					return new Entry(entry) {
+						public InputStream openStream() {
+							//the entry ends where ZipInputStream reports the end of the stream,
+							//closing the entry stream must not close the zip stream
+							return new FilterInputStream(zin) {
+								public void close() {
+								}
+							};
+						}
+					};
+				}
+				return null;
+			}
+			
+			public void close() throws IOException {
+				zin.close();
+			}
+		};
+	}
+	
+	/**
+	 * Files larger than this are streamed rather than compressed in memory by @see #zip(String, String, ExecutorService, boolean)
+	 */
+	private static final long STREAM_THRESHOLD = 8 * 1024 * 1024;
+	
+	/**
+	 * Extensions of files that are already compressed and are stored rather than deflated
+	 */
+	private static final Set COMPRESSED = new HashSet(Arrays.asList(new String[]{
+		"zip", "jar", "war", "ear", "gz", "tgz", "bz2", "xz", "7z", "rar", "jpg", "jpeg", "png", "gif", "webp", "mp3", "mp4", "ogg", "avi", "mov"}));
+	
+	/**
+	 * Zips the contents of the source directory into the zip file using a thread per processor
+	 * @see #zip(String, String, ExecutorService, boolean)
+	 */
+	public static long zip(String source, String file) {
+		ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+		try {
+			return zip(source, file, executor, true);
+		} finally {
+			executor.shutdown();
+		}
+	}
+	
+	/**
+	 * Zips the contents of the source directory into the zip file. The files are read and
+	 * compressed into independent deflate streams by the tasks submitted to the executor,
+	 * while the calling thread writes the compressed entries to the zip file in the order 
+	 * of the file names. Only a few entries ahead of the one being written are held in memory.
+	 * Files with the extensions of already compressed formats, or files that do not get
+	 * smaller when compressed, are stored without compression.
+	 * 
+	 * @param source The directory to zip
+	 * @param file The zip file to create
+	 * @param executor Runs the compression tasks
+	 * @param streaming If true, files larger than 8MB are deflated straight into the zip file 
+	 * by the calling thread instead of being compressed in memory
+	 * @return size of the zip file
+	 */
+	public static long zip(String source, String file, ExecutorService executor, boolean streaming) {
+		final File base = new File(source);
+		final int window = 2 * Runtime.getRuntime().availableProcessors();
+		List files = new ArrayList();
+		list(base, "", files);
+		LinkedList pending = new LinkedList();
+		ZipWriter writer = null;
+		boolean done = false;
+		try {
+			writer = new ZipWriter(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+			for (int i = 0; i < files.size(); i++) {
+				final String name = (String)files.get(i);
+				final File f = new File(base, name);
+				if (name.endsWith("/") || (streaming && f.length() > STREAM_THRESHOLD))
+					pending.add(name);
+				else 
+					pending.add(executor.submit(new Callable() {
+						public Object call() throws IOException {
+							return compress(f, name);
+						}
+					}));
+				while (pending.size() > window)
+					write(writer, base, pending.removeFirst());
+			}
+			while (!pending.isEmpty())
+				write(writer, base, pending.removeFirst());
+			writer.close();
+			done = true;
+			return new File(file).length();
+		} catch (IOException e) {
+			throw new RuntimeException(e.getMessage());
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e.getMessage());
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause().getMessage());
+		} finally {
+			for (Iterator i = pending.iterator(); i.hasNext(); ) {
+				Object o = i.next();
+				if (o instanceof Future) ((Future)o).cancel(false);
+			}
+			//a failed archive is not finished with a central directory that would make it look complete
+			if (!done && writer != null) {
+				try {writer.abort();} catch (IOException e) {}
+				new File(file).delete();
+			}
+		}
+	}
+	
+	/**
+	 * Recursively collects the directory and file names relative to the base directory in sorted order,
+	 * directory names end with a /
+	 */
+	private static void list(File dir, String prefix, List names) {
+		String[] children = dir.list();
+		if (children == null) return;
+		Arrays.sort(children);
+		for (int i = 0; i < children.length; i++) {
+			File child = new File(dir, children[i]);
+			if (child.isDirectory()) {
+				names.add(prefix + children[i] + "/");
+				list(child, prefix + children[i] + "/", names);
+			} else
+				names.add(prefix + children[i]);
+		}
+	}
+	
+	/**
+	 * Entry compressed in memory, ready to be written
+	 */
+	private static class Compressed {
+		String name;
+		long time, crc, size;
+		int method, len;
+		byte[] data;
+	}
+	
+	private static Compressed compress(File f, String name) throws IOException {
+		Compressed c = new Compressed();
+		c.name = name;
+		c.time = f.lastModified();
+		if (f.length() > Integer.MAX_VALUE) throw new IOException("Unable to compress " + f + " in memory");
+		byte[] data = new byte[(int)f.length()];
+		FileInputStream in = new FileInputStream(f);
+		try {
+			int off = 0;
+			for (int n; off < data.length && (n = in.read(data, off, data.length - off)) > 0; )
+				off += n;
+			if (off < data.length) throw new IOException("Unable to read " + f);
+		} finally {
+			in.close();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		c.crc = crc.getValue();
+		c.size = data.length;
+		c.method = ZipWriter.STORED; c.data = data; c.len = data.length;
+		if (data.length == 0 || COMPRESSED.contains(StringUtil.getRightOf(name, ".").toLowerCase())) return c;
+		
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		try {
+			deflater.setInput(data);
+			deflater.finish();
+			//give up on compression as soon as the output is not smaller than the input
+			byte[] out = new byte[data.length];
+			int len = 0;
+			while (!deflater.finished() && len < out.length)
+				len += deflater.deflate(out, len, out.length - len);
+			if (deflater.finished() && len < data.length) {
+				c.method = ZipWriter.DEFLATED; c.data = out; c.len = len;
+			}
+		} finally {
+			deflater.end();
+		}
+		return c;
+	}
+	
+	/**
+	 * Writes the next pending entry: a directory name, a file name to stream or a future compressed entry
+	 */
+	private static void write(ZipWriter writer, File base, Object pending) throws IOException, InterruptedException, ExecutionException {
+		if (pending instanceof Future) {
+			Compressed c = (Compressed)((Future)pending).get();
+			writer.writeEntry(c.name, c.time, c.method, c.data, c.len, c.crc, c.size);
+			return;
+		}
+		String name = (String)pending;
+		File f = new File(base, name);
+		if (name.endsWith("/")) {
+			writer.writeDirectory(name, f.lastModified());
+			return;
+		}
+		OutputStream out = writer.beginEntry(name, f.lastModified(), Deflater.DEFAULT_COMPRESSION);
+		InputStream in = new FileInputStream(f);
+		try {
+			if (IOUtil.transfer(in, out, false) < 0) throw new IOException("Unable to read " + f);
+		} finally {
+			in.close();
+		}
+		out.close();
+	}
+	
+	/**
+	 * Compares the time it takes to zip a directory using java.util.zip.ZipOutputStream 
+	 * and using @see #zip(String, String)
+	 */
+	private static void benchmarkZip(String source) throws IOException {
+		File single = File.createTempFile("osipov", ".zip"), parallel = File.createTempFile("osipov", ".zip");
+		List files = new ArrayList();
+		list(new File(source), "", files);
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(single), 64 * 1024));
+			for (int i = 0; i < files.size(); i++) {
+				String name = (String)files.get(i);
+				out.putNextEntry(new ZipEntry(name));
+				if (!name.endsWith("/")) {
+					InputStream in = new FileInputStream(new File(source, name));
+					try {
+						if (IOUtil.transfer(in, out, false) < 0) throw new IOException("Unable to read " + name);
+					} finally {
+						in.close();
+					}
+				}
+				out.closeEntry();
+			}
+			out.close();
+			long zipOutputStream = System.nanoTime() - start;
+			
+			start = System.nanoTime();
+			zip(source, parallel.getPath());
+			long zip = System.nanoTime() - start;
+			System.out.println("ZipOutputStream: " + zipOutputStream / 1000000 + "ms " + single.length() + " bytes, "
+					+ "ZipUtil.zip: " + zip / 1000000 + "ms " + parallel.length() + " bytes");
+		}
+		single.delete();
+		parallel.delete();
+	}
+	
+	public static void main(String[] args) throws IOException {
+		//benchmarkZip(args[0]);
+	}
+
+	private static String manifestLine(ZipEntry entry) {
+		return entry.getCrc() + "\t" + entry.getSize() + "\t" + entry.getTime();
+	}
+	
+	/**
+	 * Reads the manifest of a previous extraction
+	 * @return map of entry names to manifest lines, plus the header line of the manifest mapped to the null key, 
+	 * or null if the manifest does not exist or could not be read
+	 */
+	private static Map readManifest(File manifest) {
+		if (!manifest.isFile()) return null;
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+			Map map = new HashMap();
+			String line = reader.readLine();
+			if (line == null) return null;
+			map.put(null, line);
+			while ((line = reader.readLine()) != null) {
+				int i = StringUtil.indexOfOccurrence(line, "\t", 3);
+				if (i < 1) return null;
+				map.put(line.substring(i), line.substring(0, i - 1));
+			}
+			return map;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			if (reader != null) try {reader.close();} catch (IOException e) {}
+		}
+	}
+	
+	/**
+	 * Writes the manifest to a temporary file first and renames it once it is complete 
+	 */
+	private static void writeManifest(File manifest, String header, Map entries) throws IOException {
+		File tmp = new File(manifest.getPath() + ".tmp");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+		try {
+			writer.write(header);
+			writer.write('\n');
+			for (Iterator i = entries.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry e = (Map.Entry)i.next();
+				writer.write((String)e.getValue());
+				writer.write('\t');
+				writer.write((String)e.getKey());
+				writer.write('\n');
+			}
+		} finally {
+			writer.close();
+		}
+		if (!tmp.renameTo(manifest)) throw new IOException("Unable to rename " + tmp + " to " + manifest);
+	}
+	
+	/**
+	 * Recursively deletes a file or a directory
+	 */
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		for (int i = 0; files != null && i < files.length; i++)
+			delete(files[i]);
+		file.delete();
+	}
 }
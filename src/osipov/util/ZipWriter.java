@@ -0,0 +1,279 @@
+package osipov.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.Calendar;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Low level zip file writer. Unlike java.util.zip.ZipOutputStream, entries can be
+ * written with data that was already compressed (for example by several threads in
+ * parallel, @see ZipUtil#zip(String, String, java.util.concurrent.ExecutorService, boolean)),
+ * the writer only lays out the local headers, the data and the central directory.
+ * Entries can also be streamed through a Deflater with the sizes and the checksum written
+ * in a data descriptor after the data.
+ *
+ * Entry names are written as UTF-8. Archives with more than 65535 entries get a zip64 end
+ * of central directory record, but entries and archives larger than 4GB are not supported.
+ * Not thread safe.
+ *
+ * @author @osipov
+ */
+public class ZipWriter {
+	public static final int STORED = 0;
+	public static final int DEFLATED = 8;
+
+	private static final int LOC_SIGNATURE = 0x04034b50;
+	private static final int CEN_SIGNATURE = 0x02014b50;
+	private static final int EXT_SIGNATURE = 0x08074b50;
+	private static final int EOCD_SIGNATURE = 0x06054b50;
+	private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+	private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+	private static final int FLAG_DESCRIPTOR = 0x08;
+	private static final int FLAG_UTF8 = 0x800;
+	private static final long MAX_32 = 0xffffffffL;
+
+	private final OutputStream out;
+	private final ByteArrayOutputStream central = new ByteArrayOutputStream();
+	private final byte[] scratch = new byte[8];
+	private long written = 0;
+	private int entries = 0;
+	private EntryStream open = null;
+	private boolean closed = false;
+
+	/**
+	 * @param out stream to write the zip file to, it is closed by @see #close()
+	 */
+	public ZipWriter(OutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Writes a directory entry
+	 * @param name name of the directory, a / is appended if missing
+	 * @param time modification time in milliseconds
+	 */
+	public void writeDirectory(String name, long time) throws IOException {
+		writeEntry(name.endsWith("/") ? name : name + "/", time, STORED, new byte[0], 0, 0, 0);
+	}
+
+	/**
+	 * Writes an entry with data that is already compressed
+	 * @param name name of the entry
+	 * @param time modification time in milliseconds
+	 * @param method STORED or DEFLATED, in which case the data must be a raw (nowrap) deflate stream
+	 * @param data compressed data
+	 * @param len number of bytes of compressed data
+	 * @param crc CRC32 checksum of the uncompressed data
+	 * @param size number of bytes of uncompressed data
+	 * @throws IOException
+	 */
+	public void writeEntry(String name, long time, int method, byte[] data, int len, long crc, long size) throws IOException {
+		checkWritable();
+		byte[] n = bytes(name);
+		long offset = written;
+		header(out, LOC_SIGNATURE, FLAG_UTF8, method, time, crc, len, size, n, offset, name.endsWith("/"));
+		write(data, 0, len);
+		header(central, CEN_SIGNATURE, FLAG_UTF8, method, time, crc, len, size, n, offset, name.endsWith("/"));
+		entries++;
+	}
+
+	/**
+	 * Starts a DEFLATED entry whose data is written to the returned stream, the sizes
+	 * and checksum are written after the data once the stream is closed. The whole entry
+	 * never has to be held in memory.
+	 * @param name name of the entry
+	 * @param time modification time in milliseconds
+	 * @param level compression level
+	 * @return stream for the uncompressed data of the entry, must be closed before the next entry is written
+	 * @throws IOException
+	 */
+	public OutputStream beginEntry(String name, long time, int level) throws IOException {
+		checkWritable();
+		byte[] n = bytes(name);
+		open = new EntryStream(name, n, time, written, level);
+		header(out, LOC_SIGNATURE, FLAG_UTF8 | FLAG_DESCRIPTOR, DEFLATED, time, 0, 0, 0, n, 0, false);
+		return open;
+	}
+
+	/**
+	 * Writes the central directory and closes the underlying stream, does nothing if the writer
+	 * is already closed or aborted
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (closed) return;
+		if (open != null) throw new ZipException("entry " + open.name + " is still open");
+		closed = true;
+		try {
+			long offset = written;
+			byte[] cen = central.toByteArray();
+			write(cen, 0, cen.length);
+			if (entries > 0xffff) {
+				long zip64 = written;
+				writeInt(ZIP64_EOCD_SIGNATURE, 4); writeLong(44); writeInt(45, 2); writeInt(45, 2);
+				writeInt(0, 4); writeInt(0, 4); writeLong(entries); writeLong(entries); writeLong(cen.length); writeLong(offset);
+				writeInt(ZIP64_LOCATOR_SIGNATURE, 4); writeInt(0, 4); writeLong(zip64); writeInt(1, 4);
+			}
+			writeInt(EOCD_SIGNATURE, 4); writeInt(0, 2); writeInt(0, 2);
+			writeInt(Math.min(entries, 0xffff), 2); writeInt(Math.min(entries, 0xffff), 2);
+			writeInt(cen.length, 4); writeInt((int)offset, 4); writeInt(0, 2);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Gives up on the archive: closes the underlying stream without finishing the open entry
+	 * or writing the central directory, does nothing if the writer is already closed
+	 * @throws IOException
+	 */
+	public void abort() throws IOException {
+		if (closed) return;
+		closed = true;
+		if (open != null) open.release();
+		out.close();
+	}
+
+	/**
+	 * @return number of bytes written so far
+	 */
+	public long size() {
+		return written;
+	}
+
+	/**
+	 * Writes a local (to the zip stream) or a central (to the central directory buffer) header
+	 */
+	private void header(OutputStream o, int signature, int flags, int method, long time, long crc, long csize, long size, byte[] name, long offset, boolean directory) throws IOException {
+		if (csize > MAX_32 || size > MAX_32 || offset > MAX_32) throw new ZipException("entries larger than 4GB are not supported");
+		int dos = dosTime(time);
+		ByteArrayOutputStream b = new ByteArrayOutputStream(46 + name.length);
+		le(b, signature, 4);
+		if (signature == CEN_SIGNATURE) le(b, 20, 2);
+		le(b, 20, 2); le(b, flags, 2); le(b, method, 2); le(b, dos, 4);
+		le(b, (int)crc, 4); le(b, (int)csize, 4); le(b, (int)size, 4);
+		le(b, name.length, 2); le(b, 0, 2);
+		if (signature == CEN_SIGNATURE) {
+			le(b, 0, 2); le(b, 0, 2); le(b, 0, 2);
+			le(b, directory ? 0x10 : 0, 4);
+			le(b, (int)offset, 4);
+		}
+		b.write(name);
+		if (o == out) {
+			byte[] h = b.toByteArray();
+			write(h, 0, h.length);
+		} else
+			b.writeTo(o);
+	}
+
+	private void checkWritable() throws IOException {
+		if (closed) throw new ZipException("zip writer is closed");
+		if (open != null) throw new ZipException("entry " + open.name + " is still open");
+	}
+
+	private static void le(OutputStream o, int v, int bytes) throws IOException {
+		for (int i = 0; i < bytes; i++, v >>>= 8)
+			o.write(v & 0xff);
+	}
+
+	private void writeInt(int v, int bytes) throws IOException {
+		for (int i = 0; i < bytes; i++, v >>>= 8)
+			scratch[i] = (byte)v;
+		write(scratch, 0, bytes);
+	}
+
+	private void writeLong(long v) throws IOException {
+		for (int i = 0; i < 8; i++, v >>>= 8)
+			scratch[i] = (byte)v;
+		write(scratch, 0, 8);
+	}
+
+	private void write(byte[] b, int off, int len) throws IOException {
+		out.write(b, off, len);
+		written += len;
+	}
+
+	private static byte[] bytes(String name) throws UnsupportedEncodingException {
+		return name.getBytes("UTF-8");
+	}
+
+	/**
+	 * Converts java time to MS-DOS date and time
+	 */
+	private static int dosTime(long time) {
+		Calendar c = Calendar.getInstance();
+		c.setTimeInMillis(time);
+		int year = c.get(Calendar.YEAR);
+		if (year < 1980) return (1 << 21) | (1 << 16);
+		return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+			| c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+	}
+
+	/**
+	 * Deflates the data of a streamed entry directly into the zip stream
+	 */
+	private class EntryStream extends OutputStream {
+		private final String name;
+		private final byte[] n;
+		private final long time, offset, start;
+		private final Deflater deflater;
+		private final CRC32 crc = new CRC32();
+		private final byte[] buf = BufferPool.getDefault().getBytes(IOUtil.CACHE_SIZE);
+		private long size = 0;
+
+		EntryStream(String name, byte[] n, long time, long offset, int level) {
+			this.name = name;
+			this.n = n;
+			this.time = time;
+			this.offset = offset;
+			this.start = offset + 30 + n.length;
+			this.deflater = new Deflater(level, true);
+		}
+
+		public void write(int b) throws IOException {
+			write(new byte[]{(byte)b}, 0, 1);
+		}
+
+		public void write(byte[] b, int off, int len) throws IOException {
+			crc.update(b, off, len);
+			size += len;
+			deflater.setInput(b, off, len);
+			while (!deflater.needsInput())
+				deflate();
+		}
+
+		private void deflate() throws IOException {
+			int len = deflater.deflate(buf, 0, buf.length);
+			if (len > 0) ZipWriter.this.write(buf, 0, len);
+		}
+
+		public void close() throws IOException {
+			if (open != this) return;
+			try {
+				deflater.finish();
+				while (!deflater.finished())
+					deflate();
+				long csize = written - start;
+				writeInt(EXT_SIGNATURE, 4); writeInt((int)crc.getValue(), 4); writeInt((int)csize, 4); writeInt((int)size, 4);
+				header(central, CEN_SIGNATURE, FLAG_UTF8 | FLAG_DESCRIPTOR, DEFLATED, time, crc.getValue(), csize, size, n, offset, false);
+				entries++;
+			} finally {
+				release();
+			}
+		}
+
+		/**
+		 * Ends the entry without writing the rest of its data
+		 */
+		void release() {
+			open = null;
+			deflater.end();
+			BufferPool.getDefault().release(buf);
+		}
+	}
+}